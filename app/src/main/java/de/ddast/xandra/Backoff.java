@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2017  Dennis Dast
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.ddast.xandra;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff with jitter for reconnection attempts.  The n-th delay is drawn
+ * uniformly from [d/2, d] with d = min(max, base * 2^n), so that clients do not retry in
+ * lockstep and a flapping network does not cause a reconnect storm.
+ */
+class Backoff {
+    private final long mBase, mMax;
+    private final Random mRandom = new Random();
+    private int mAttempts = 0;
+
+    Backoff(long base, long max) {
+        mBase = base;
+        mMax = max;
+    }
+
+    long nextDelay() {
+        long delay = mMax;
+        if (mAttempts < 30 && (mBase << mAttempts) < mMax) {
+            delay = mBase << mAttempts;
+        }
+        ++mAttempts;
+        return delay/2 + (long)(mRandom.nextDouble()*(delay/2));
+    }
+
+    void reset() {
+        mAttempts = 0;
+    }
+}
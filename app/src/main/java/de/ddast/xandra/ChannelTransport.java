@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2017  Dennis Dast
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.ddast.xandra;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Non-blocking SocketChannel with connect and write timeouts.  Readiness is awaited with a
+ * Selector owned by the transport.  After connect() returns, the transport must only be used
+ * by a single writer thread and a single reader thread, each with its own Selector; close()
+ * may be called from any thread.
+ */
+class ChannelTransport {
+    private final SocketChannel mChannel;
+    private final Selector mSelector;
+    private final SelectionKey mKey;
+    private final Selector mReadSelector;
+
+    private ChannelTransport(SocketChannel channel, Selector selector, Selector readSelector)
+            throws IOException {
+        mChannel = channel;
+        mSelector = selector;
+        mKey = channel.register(selector, 0);
+        mReadSelector = readSelector;
+        channel.register(readSelector, SelectionKey.OP_READ);
+    }
+
+    static ChannelTransport connect(InetSocketAddress address, long timeoutMillis)
+            throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        Selector selector = null;
+        Selector readSelector = null;
+        try {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            selector = Selector.open();
+            readSelector = Selector.open();
+            ChannelTransport transport = new ChannelTransport(channel, selector, readSelector);
+            if (!channel.connect(address)) {
+                transport.await(SelectionKey.OP_CONNECT, timeoutMillis);
+                channel.finishConnect();
+            }
+            return transport;
+        } catch (IOException e) {
+            channel.close();
+            if (selector != null) {
+                selector.close();
+            }
+            if (readSelector != null) {
+                readSelector.close();
+            }
+            throw e;
+        }
+    }
+
+    InetSocketAddress getRemoteAddress() {
+        return (InetSocketAddress)mChannel.socket().getRemoteSocketAddress();
+    }
+
+    /**
+     * Gathering write of all remaining bytes of bufs[offset..offset+length).  Blocks until
+     * everything is written or throws SocketTimeoutException if the socket did not accept
+     * any data within timeoutMillis.
+     */
+    void write(ByteBuffer[] bufs, int offset, int length, long timeoutMillis)
+            throws IOException {
+        int last = offset + length - 1;
+        while (offset <= last) {
+            if (mChannel.write(bufs, offset, last - offset + 1) == 0) {
+                await(SelectionKey.OP_WRITE, timeoutMillis);
+            }
+            while (offset <= last && !bufs[offset].hasRemaining()) {
+                ++offset;
+            }
+        }
+    }
+
+    /**
+     * Reads into dst and blocks until at least one byte was read.  Throws
+     * SocketTimeoutException if nothing arrived within timeoutMillis, a timeout of zero or
+     * less waits forever.
+     *
+     * @return the number of bytes read or -1 if the server closed the connection
+     */
+    int read(ByteBuffer dst, long timeoutMillis) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        try {
+            int n;
+            while ((n = mChannel.read(dst)) == 0) {
+                if (timeoutMillis > 0) {
+                    long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                    if (remaining <= 0) {
+                        throw new SocketTimeoutException("Nothing received within "
+                                                         + timeoutMillis + " ms");
+                    }
+                    mReadSelector.select(remaining);
+                } else {
+                    mReadSelector.select();
+                }
+                mReadSelector.selectedKeys().clear();
+                if (!mChannel.isOpen()) {
+                    throw new ClosedChannelException();
+                }
+            }
+            return n;
+        } catch (ClosedSelectorException | CancelledKeyException e) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    private void await(int op, long timeoutMillis) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        try {
+            mKey.interestOps(op);
+            while (true) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) {
+                    throw new SocketTimeoutException("No progress within " + timeoutMillis
+                                                     + " ms");
+                }
+                if (mSelector.select(remaining) > 0) {
+                    mSelector.selectedKeys().clear();
+                    if ((mKey.readyOps() & op) != 0) {
+                        mKey.interestOps(0);
+                        return;
+                    }
+                }
+                if (!mChannel.isOpen()) {
+                    throw new ClosedChannelException();
+                }
+            }
+        } catch (ClosedSelectorException | CancelledKeyException e) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    void close() throws IOException {
+        try {
+            mChannel.close();
+        } finally {
+            try {
+                mSelector.close();
+            } finally {
+                mReadSelector.close();
+            }
+        }
+    }
+}
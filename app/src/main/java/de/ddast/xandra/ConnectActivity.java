@@ -19,21 +19,37 @@ package de.ddast.xandra;
 
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.os.Handler;
 import android.preference.PreferenceManager;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
+import android.util.Log;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.Button;
 import android.widget.EditText;
+import android.widget.LinearLayout;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
 
 public class ConnectActivity extends AppCompatActivity {
     public final static String SERVERADDR = "serveraddr";
     public static boolean themeHasChanged = false;
 
+    private static final String TAG = "ConnectActivity";
+    private static final long DISCOVERY_TIMEOUT = 2000L;
+
+    private final Handler mHandler = new Handler();
+    private final Map<InetAddress, Button> mServerButtons = new HashMap<InetAddress, Button>();
     private EditText mServerEdit;
+    private LinearLayout mServerList;
+    private ServerDiscovery mDiscovery = null;
+    private boolean mDiscoveryFinished = false;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -50,6 +66,7 @@ public class ConnectActivity extends AppCompatActivity {
         setContentView(R.layout.activity_connect);
 
         mServerEdit = (EditText)findViewById(R.id.server_edit);
+        mServerList = (LinearLayout)findViewById(R.id.server_list);
         Button mConnectButton = (Button)findViewById(R.id.connect_button);
 
         SharedPreferences settings = getPreferences(MODE_PRIVATE);
@@ -59,16 +76,101 @@ public class ConnectActivity extends AppCompatActivity {
         mConnectButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                Intent i = new Intent(ConnectActivity.this, MainActivity.class);
-                i.putExtra(SERVERADDR, mServerEdit.getText().toString());
-                startActivity(i);
+                connect(mServerEdit.getText().toString());
             }
         });
     }
 
+    private void connect(String serverAddr) {
+        Intent i = new Intent(ConnectActivity.this, MainActivity.class);
+        i.putExtra(SERVERADDR, serverAddr);
+        startActivity(i);
+    }
+
+    /**
+     * Searches the local network for servers in the background and lists them below the
+     * connect button.  Servers found before are listed right away.  The search runs once per
+     * activity; it is cancelled in onPause() and only started again if it did not finish.
+     */
+    private void startDiscovery() {
+        SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(this);
+        int port = Integer.valueOf(sharedPreferences.getString(
+                this.getString(R.string.pref_port), this.getString(R.string.pref_port_default)));
+        final ServerDiscovery discovery = new ServerDiscovery(port,
+                new ServerDiscovery.Listener() {
+                    @Override
+                    public void serverFound(final ServerDiscovery.Server server) {
+                        mHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                showServer(server);
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void serverLost(final ServerDiscovery.Server server) {
+                        mHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                Button button = mServerButtons.remove(server.getAddress());
+                                if (button != null) {
+                                    mServerList.removeView(button);
+                                }
+                            }
+                        });
+                    }
+                });
+        mDiscovery = discovery;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    discovery.run(ServerDiscovery.localSubnets(), DISCOVERY_TIMEOUT);
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            // a cancelled discovery was already reset by onPause()
+                            if (discovery == mDiscovery) {
+                                mDiscovery = null;
+                                mDiscoveryFinished = true;
+                            }
+                        }
+                    });
+                } catch (IOException e) {
+                    Log.e(TAG, "Server discovery failed: " + e.getMessage());
+                }
+            }
+        }, "ServerDiscovery").start();
+    }
+
+    private void showServer(ServerDiscovery.Server server) {
+        final String address = server.getAddress().getHostAddress();
+        Button button = mServerButtons.get(server.getAddress());
+        if (button == null) {
+            button = new Button(this);
+            button.setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View v) {
+                    mServerEdit.setText(address);
+                    connect(address);
+                }
+            });
+            mServerButtons.put(server.getAddress(), button);
+            mServerList.addView(button);
+        }
+        button.setText(server.getName() == null
+                       ? address
+                       : this.getString(R.string.discovered_server, server.getName(), address));
+    }
+
     @Override
     protected void onPause() {
         super.onPause();
+        if (mDiscovery != null) {
+            mDiscovery.cancel();
+            mDiscovery = null;
+        }
 
         SharedPreferences settings = getPreferences(MODE_PRIVATE);
         SharedPreferences.Editor editor = settings.edit();
@@ -83,6 +185,9 @@ public class ConnectActivity extends AppCompatActivity {
             recreate();
         }
         super.onResume();
+        if (!mDiscoveryFinished && mDiscovery == null) {
+            startDiscovery();
+        }
     }
 
     @Override
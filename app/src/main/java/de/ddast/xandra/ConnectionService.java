@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2017  Dennis Dast
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.ddast.xandra;
+
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.IBinder;
+import android.support.v4.app.NotificationCompat;
+import android.util.Log;
+
+/**
+ * Owns the TcpClients so that the connections outlive MainActivity.  The activity attaches
+ * on resume and detaches on pause.  After detaching, the connections are kept alive for a
+ * grace period, during which the service runs in the foreground, so that switching to
+ * another app for a moment does not cost a reconnect.
+ *
+ * Besides the connection the activity is attached to, connections to further servers are
+ * kept open in a SessionPool, so that the activity can switch to them without reconnecting.
+ * Connections that were not used for the idle timeout are closed.
+ */
+public class ConnectionService extends Service {
+    private static final String TAG    = "ConnectionService";
+    private static final boolean DEBUG = false;
+
+    private static final int NOTIFICATION_ID = 1;
+
+    private final IBinder mBinder = new LocalBinder();
+    private final Handler mHandler = new Handler();
+    private final SessionPool<Session> mPool = new SessionPool<Session>(
+            new SessionPool.Factory<Session>() {
+                @Override
+                public Session open(String host) {
+                    if (DEBUG) {
+                        Log.d(TAG, "Creating new connection to " + host);
+                    }
+                    return new Session(host);
+                }
+
+                @Override
+                public void close(String host, Session session) {
+                    if (DEBUG) {
+                        Log.d(TAG, "Closing connection to " + host);
+                    }
+                    session.mTcpClient.disconnect();
+                }
+            }, HandlerTimerDriver.createTimerWheel(mHandler), 0);
+    private TcpClientObserver mObserver = null;
+    private int mPort;
+    private long mHeartbeatInterval, mWriteTimeout;
+    private boolean mUseDatagrams;
+    private boolean mInForeground = false;
+
+    class LocalBinder extends Binder {
+        ConnectionService getService() {
+            return ConnectionService.this;
+        }
+    }
+
+    /**
+     * A pooled connection.  Only the state changes of the active one are forwarded to the
+     * observer.
+     */
+    private class Session implements TcpClientObserver {
+        private final TcpClient mTcpClient;
+
+        Session(String host) {
+            mTcpClient = new TcpClient(host, mPort, mHeartbeatInterval, mWriteTimeout,
+                                       mUseDatagrams, this);
+            mTcpClient.connect();
+        }
+
+        private boolean isObserved() {
+            return mObserver != null && mPool.getActive() == this;
+        }
+
+        @Override
+        public void connectionEstablished() {
+            if (isObserved()) {
+                mObserver.connectionEstablished();
+            }
+        }
+
+        @Override
+        public void connectionLost() {
+            if (isObserved()) {
+                mObserver.connectionLost();
+            }
+        }
+
+        @Override
+        public void congestionChanged(boolean congested) {
+            if (isObserved()) {
+                mObserver.congestionChanged(congested);
+            }
+        }
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mBinder;
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        return START_NOT_STICKY;
+    }
+
+    /**
+     * Returns a client for the given server, reusing an open connection if it was made with
+     * the same parameters.  Connection state changes of the returned client are forwarded to
+     * observer until detach() is called or another client is returned.
+     *
+     * @param warmHosts further servers to open a connection to if no connection is open yet;
+     *                  once such a connection was closed for being idle it is only opened
+     *                  again when its server is selected
+     * @param idleTimeout time in milliseconds after which an unused connection is closed
+     */
+    TcpClient attach(String serverAddr, int port, long heartbeatInterval, long writeTimeout,
+                     boolean useDatagrams, Iterable<String> warmHosts, long idleTimeout,
+                     TcpClientObserver observer) {
+        mHandler.removeCallbacks(mGracePeriodExpired);
+        leaveForeground();
+        if (!(port == mPort && heartbeatInterval == mHeartbeatInterval
+              && writeTimeout == mWriteTimeout && useDatagrams == mUseDatagrams)) {
+            mPool.close();
+            mPort = port;
+            mHeartbeatInterval = heartbeatInterval;
+            mWriteTimeout = writeTimeout;
+            mUseDatagrams = useDatagrams;
+        }
+        mPool.setIdleTimeout(idleTimeout);
+        mObserver = observer;
+        boolean firstAttach = mPool.getHosts().isEmpty();
+        TcpClient tcpClient = mPool.activate(serverAddr).mTcpClient;
+        if (firstAttach) {
+            for (String host : warmHosts) {
+                mPool.warm(host);
+            }
+        }
+        return tcpClient;
+    }
+
+    /**
+     * Makes the connection to serverAddr the one state changes are forwarded for, opening it
+     * if it is not open yet.
+     */
+    TcpClient switchTo(String serverAddr) {
+        return mPool.activate(serverAddr).mTcpClient;
+    }
+
+    /**
+     * Whether there is an open connection to serverAddr, which switchTo() would reuse.
+     */
+    boolean isOpen(String serverAddr) {
+        return mPool.isOpen(serverAddr);
+    }
+
+    /**
+     * Stops forwarding connection state changes and disconnects after gracePeriod
+     * milliseconds unless attach() is called again in the meantime.
+     */
+    void detach(long gracePeriod) {
+        mObserver = null;
+        if (mPool.getActive() == null) {
+            stopSelf();
+            return;
+        }
+        if (gracePeriod <= 0) {
+            mGracePeriodExpired.run();
+            return;
+        }
+        // Keep the service alive while no activity is bound to it
+        startService(new Intent(this, ConnectionService.class));
+        enterForeground();
+        mHandler.postDelayed(mGracePeriodExpired, gracePeriod);
+    }
+
+    private final Runnable mGracePeriodExpired = new Runnable() {
+        @Override
+        public void run() {
+            if (DEBUG) {
+                Log.d(TAG, "Disconnecting after grace period");
+            }
+            mPool.close();
+            leaveForeground();
+            stopSelf();
+        }
+    };
+
+    private void enterForeground() {
+        Intent intent = new Intent(this, MainActivity.class);
+        intent.putExtra(ConnectActivity.SERVERADDR, mPool.getActiveHost());
+        intent.addFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
+        PendingIntent pendingIntent = PendingIntent.getActivity(
+                this, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+        NotificationCompat.Builder builder = new NotificationCompat.Builder(this)
+                .setSmallIcon(R.mipmap.ic_launcher)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText(getString(R.string.notification_keepalive,
+                                          mPool.getActiveHost()))
+                .setContentIntent(pendingIntent)
+                .setOngoing(true);
+        startForeground(NOTIFICATION_ID, builder.build());
+        mInForeground = true;
+    }
+
+    private void leaveForeground() {
+        if (mInForeground) {
+            stopForeground(true);
+            mInForeground = false;
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        mHandler.removeCallbacks(mGracePeriodExpired);
+        mPool.close();
+        super.onDestroy();
+    }
+}
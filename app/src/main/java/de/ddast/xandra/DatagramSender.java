@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2017  Dennis Dast
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.ddast.xandra;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Sends mouse movements, scroll deltas and wheel keys as UDP datagrams, so that a lost packet
+ * does not delay all following pointer frames until TCP has retransmitted it.  Movements are
+ * accumulated while a datagram is being sent and go out with the next one; there is no queue
+ * that could build up.  A lost datagram loses its movement, which is preferable to a late one.
+ */
+class DatagramSender extends Thread {
+    interface Callback {
+        void datagramFailed(DatagramSender sender, IOException e);
+    }
+
+    static final int MAX_KEYS = 16;
+
+    private final DatagramChannel mChannel;
+    private final Callback mCallback;
+    private final byte[] mKeys = new byte[MAX_KEYS];
+    private int mKeyCount = 0;
+    private int mPendingX = 0;
+    private int mPendingY = 0;
+    private int mPendingScrollX = 0;
+    private int mPendingScrollY = 0;
+    private int mSequence = 0;
+    private boolean mClosed = false;
+    private boolean mCompactMotion = false;
+    private long mDroppedKeys = 0;
+
+    DatagramSender(InetSocketAddress address, Callback callback) throws IOException {
+        super("DatagramSender");
+        mChannel = DatagramChannel.open();
+        try {
+            mChannel.connect(address);
+        } catch (IOException e) {
+            mChannel.close();
+            throw e;
+        }
+        mCallback = callback;
+        setPriority(Thread.MAX_PRIORITY);
+        setDaemon(true);
+    }
+
+    synchronized void offerMouse(int distanceX, int distanceY) {
+        mPendingX = clamp((long)mPendingX + distanceX);
+        mPendingY = clamp((long)mPendingY + distanceY);
+        notifyAll();
+    }
+
+    synchronized void offerScroll(int deltaX, int deltaY) {
+        mPendingScrollX = clamp((long)mPendingScrollX + deltaX);
+        mPendingScrollY = clamp((long)mPendingScrollY + deltaY);
+        notifyAll();
+    }
+
+    /**
+     * Enqueues a special key frame for the next datagram.  Keys beyond MAX_KEYS per datagram
+     * are dropped.
+     */
+    synchronized void offerKey(byte key) {
+        if (mKeyCount == MAX_KEYS) {
+            ++mDroppedKeys;
+            return;
+        }
+        mKeys[mKeyCount++] = key;
+        notifyAll();
+    }
+
+    /**
+     * Encodes mouse movements as compact motion frames instead of legacy mouse frames.
+     */
+    synchronized void setCompactMotion(boolean compactMotion) {
+        mCompactMotion = compactMotion;
+    }
+
+    /**
+     * Number of keys dropped because the next datagram was full.
+     */
+    synchronized long getDroppedKeys() {
+        return mDroppedKeys;
+    }
+
+    private static int clamp(long distance) {
+        return (int)Math.max(Integer.MIN_VALUE/2, Math.min(Integer.MAX_VALUE/2, distance));
+    }
+
+    private int saturate(int distance) {
+        int max = mCompactMotion ? FrameCodec.MAX_MOTION_DELTA : FrameCodec.MAX_MOUSE_DELTA;
+        return Math.max(-max, Math.min(max, distance));
+    }
+
+    private static int saturateScroll(int delta) {
+        return Math.max(-FrameCodec.MAX_SCROLL_DELTA,
+                        Math.min(FrameCodec.MAX_SCROLL_DELTA, delta));
+    }
+
+    /**
+     * Waits for pending movements, scroll deltas or keys and encodes them into datagram.
+     *
+     * @return false if the sender was shut down
+     */
+    private synchronized boolean take(ByteBuffer datagram) throws InterruptedException {
+        while (mPendingX == 0 && mPendingY == 0 && mPendingScrollX == 0 && mPendingScrollY == 0
+               && mKeyCount == 0 && !mClosed) {
+            wait();
+        }
+        if (mClosed) {
+            return false;
+        }
+        byte[] dst = datagram.array();
+        int pos = FrameCodec.encodeDatagramHeader(dst, 0, mSequence++);
+        if (mPendingX != 0 || mPendingY != 0) {
+            int distanceX = saturate(mPendingX);
+            int distanceY = saturate(mPendingY);
+            mPendingX -= distanceX;
+            mPendingY -= distanceY;
+            pos += mCompactMotion ? FrameCodec.encodeMotion(dst, pos, distanceX, distanceY)
+                                  : FrameCodec.encodeMouse(dst, pos, distanceX, distanceY);
+        }
+        if (mPendingScrollX != 0 || mPendingScrollY != 0) {
+            int deltaX = saturateScroll(mPendingScrollX);
+            int deltaY = saturateScroll(mPendingScrollY);
+            mPendingScrollX -= deltaX;
+            mPendingScrollY -= deltaY;
+            pos += FrameCodec.encodeScroll(dst, pos, deltaX, deltaY);
+        }
+        for (int i = 0; i < mKeyCount; ++i) {
+            pos += FrameCodec.encodeSpecialKey(dst, pos, mKeys[i]);
+        }
+        mKeyCount = 0;
+        datagram.limit(pos).position(0);
+        return true;
+    }
+
+    void shutdown() {
+        synchronized (this) {
+            mClosed = true;
+            notifyAll();
+        }
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            // nothing left to clean up
+        }
+    }
+
+    @Override
+    public void run() {
+        ByteBuffer datagram = ByteBuffer.allocate(FrameCodec.DATAGRAM_HEADER_SIZE
+                                                  + FrameCodec.MAX_MOTION_FRAME_SIZE
+                                                  + FrameCodec.SCROLL_FRAME_SIZE
+                                                  + MAX_KEYS*FrameCodec.SPECIAL_KEY_FRAME_SIZE);
+        try {
+            while (take(datagram)) {
+                int len = mChannel.write(datagram);
+                if (Metrics.isEnabled()) {
+                    Metrics.countFrames(Metrics.DATAGRAM, 1, len);
+                }
+            }
+        } catch (InterruptedException e) {
+            // shutdown() was called
+        } catch (IOException e) {
+            boolean closed;
+            synchronized (this) {
+                closed = mClosed;
+            }
+            if (!closed) {
+                mCallback.datagramFailed(this, e);
+            }
+        }
+    }
+}
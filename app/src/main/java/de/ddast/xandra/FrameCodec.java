@@ -0,0 +1,495 @@
+/*
+ * Copyright (C) 2017  Dennis Dast
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.ddast.xandra;
+
+/**
+ * Encoder and decoder for the xandra wire protocol.
+ *
+ * The protocol is a byte stream of UTF-8 text with the following frames embedded:
+ * a single 0x00 byte as heartbeat, UTF-8 like 5 byte sequences starting with 0xf8 for mouse
+ * movements and 6 byte sequences starting with 0xfc for special keys.  All encode methods
+ * write into a caller supplied buffer and return the number of bytes written.
+ *
+ * Frames added later are extension frames: the lead byte 0xfe, a continuation byte with the
+ * payload length, a continuation byte with the frame type and the payload, which consists of
+ * continuation bytes carrying 6 bits each.  A receiver skips extension frames of unknown
+ * type.  They may only be sent to servers that support them.  The scroll frame carries a
+ * signed 18 bit delta for each axis in 1/SCROLL_UNITS_PER_STEP wheel steps, positive
+ * values scroll right and down.  The key frame presses or releases a special key: its
+ * payload is 1 for pressed or 0 for released followed by the key code in 12 bits.  Holding a
+ * key thus takes two frames and the repeat is left to the server.
+ *
+ * Servers supporting FEATURE_COMPACT_MOTION receive mouse movements as compact motion frames
+ * instead: the lead byte 0xff followed by the zigzag encoded distances as varints of 7 bits
+ * per byte, the high bit marking that another byte follows.  The lowest bit of the first
+ * varint is a tag.  If it is set, the frame is two bytes long and the other six bits of
+ * the second byte hold both distances in the range [-4, 3].  Otherwise the remaining bits
+ * of the first varint hold x and the second varint holds y.  A move with x in [-32, 31] and
+ * y in [-64, 63] takes three bytes.
+ *
+ * Right after connecting the client sends a hello frame with its PROTOCOL_VERSION and the
+ * FEATURE flags it supports.  A server that knows the hello frame answers with its own on
+ * the same connection.  The hello frame is sent unsolicited to every server, so a legacy
+ * server is expected to ignore the 0xfe extension frame and never answers.  Until the answer
+ * arrives the client only sends legacy frames, afterwards both sides may use the features
+ * announced by both.  A server supporting FEATURE_HEARTBEAT_ECHO answers every heartbeat
+ * frame with one.  The client then sends a heartbeat at least once per heartbeat interval,
+ * also while other frames are sent, and considers a connection dead on which nothing arrives
+ * for several intervals.
+ *
+ * Pointer frames may alternatively be sent as UDP datagrams, each consisting of a 4 byte big
+ * endian sequence number followed by complete mouse and special key frames.  The receiver
+ * drops every datagram that is not newer than the last one it accepted.
+ */
+final class FrameCodec {
+    static final byte HEARTBEAT              = (byte)0x00;
+    static final int MOUSE_LEAD              = 0xf8;
+    static final int SPECIAL_KEY_LEAD        = 0xfc;
+    static final int EXTENSION_LEAD          = 0xfe;
+    static final int MOTION_LEAD             = 0xff;
+    static final int SCROLL_TYPE             = 0x01;
+    static final int HELLO_TYPE              = 0x02;
+    static final int KEY_TYPE                = 0x03;
+    static final int HEARTBEAT_FRAME_SIZE    = 1;
+    static final int MOUSE_FRAME_SIZE        = 5;
+    static final int SPECIAL_KEY_FRAME_SIZE  = 6;
+    static final int EXTENSION_HEADER_SIZE   = 3;
+    static final int MAX_EXTENSION_PAYLOAD   = 0x3f;
+    static final int SCROLL_FRAME_SIZE       = EXTENSION_HEADER_SIZE + 6;
+    static final int HELLO_FRAME_SIZE        = EXTENSION_HEADER_SIZE + 3;
+    static final int KEY_FRAME_SIZE          = EXTENSION_HEADER_SIZE + 3;
+    static final int MAX_MOTION_FRAME_SIZE   = 7;
+    static final int MAX_FRAME_SIZE          = 9;
+    static final int MAX_CODE_POINT_SIZE     = 4;
+    static final int MAX_MOUSE_DELTA         = 0xfff;
+    static final int MAX_MOTION_DELTA        = 0x7ffff;
+    static final int MAX_SCROLL_DELTA        = 0x1ffff;
+    static final int SCROLL_UNITS_PER_STEP   = 120;
+    static final int DATAGRAM_HEADER_SIZE    = 4;
+
+    static final int PROTOCOL_VERSION        = 1;
+    static final int FEATURE_SCROLL          = 0x001;
+    static final int FEATURE_DATAGRAM        = 0x002;
+    static final int FEATURE_COMPACT_MOTION  = 0x004;
+    static final int FEATURE_KEY_STATE       = 0x008;
+    static final int FEATURE_HEARTBEAT_ECHO  = 0x010;
+
+    private FrameCodec() {}
+
+    static int encodeHeartbeat(byte[] dst, int off) {
+        dst[off] = HEARTBEAT;
+        return HEARTBEAT_FRAME_SIZE;
+    }
+
+    /**
+     * Encodes a mouse movement.  Both distances must not exceed MAX_MOUSE_DELTA in magnitude.
+     */
+    static int encodeMouse(byte[] dst, int off, int distanceX, int distanceY) {
+        boolean isNegX = distanceX < 0;
+        boolean isNegY = distanceY < 0;
+        distanceX = Math.abs(distanceX);
+        distanceY = Math.abs(distanceY);
+        dst[off]   = (byte)(MOUSE_LEAD | (isNegX ? 0x02 : 0x00) | distanceX>>>11);
+        dst[off+1] = (byte)(0x80 | distanceX>>>5 & 0x3f);
+        dst[off+2] = (byte)(0x80 | (distanceX & 0x1f)<<1 | (isNegY ? 0x01 : 0x00));
+        dst[off+3] = (byte)(0x80 | distanceY>>>6);
+        dst[off+4] = (byte)(0x80 | distanceY & 0x3f);
+        return MOUSE_FRAME_SIZE;
+    }
+
+    /**
+     * Encodes a mouse movement as compact motion frame.  Both distances must not exceed
+     * MAX_MOTION_DELTA in magnitude.
+     */
+    static int encodeMotion(byte[] dst, int off, int distanceX, int distanceY) {
+        int zigzagX = distanceX<<1 ^ distanceX>>31;
+        int zigzagY = distanceY<<1 ^ distanceY>>31;
+        dst[off] = (byte)MOTION_LEAD;
+        if ((zigzagX | zigzagY) < 8) {
+            dst[off+1] = (byte)(zigzagY<<4 | zigzagX<<1 | 1);
+            return 2;
+        }
+        int pos = encodeVarint(dst, off + 1, zigzagX<<1);
+        return encodeVarint(dst, pos, zigzagY) - off;
+    }
+
+    private static int encodeVarint(byte[] dst, int off, int value) {
+        while ((value & ~0x7f) != 0) {
+            dst[off++] = (byte)(0x80 | value & 0x7f);
+            value >>>= 7;
+        }
+        dst[off++] = (byte)value;
+        return off;
+    }
+
+    static int encodeSpecialKey(byte[] dst, int off, byte key) {
+        dst[off]   = (byte)SPECIAL_KEY_LEAD;
+        dst[off+1] = (byte)0x80;
+        dst[off+2] = (byte)0x80;
+        dst[off+3] = (byte)0x80;
+        dst[off+4] = (byte)0x80;
+        dst[off+5] = (byte)(0x80 | key);
+        return SPECIAL_KEY_FRAME_SIZE;
+    }
+
+    /**
+     * Encodes a scroll delta in 1/SCROLL_UNITS_PER_STEP wheel steps.  Both deltas must not
+     * exceed MAX_SCROLL_DELTA in magnitude.
+     */
+    static int encodeScroll(byte[] dst, int off, int deltaX, int deltaY) {
+        int pos = encodeExtensionHeader(dst, off, SCROLL_TYPE, SCROLL_FRAME_SIZE);
+        pos = encodeSigned18(dst, pos, deltaX);
+        encodeSigned18(dst, pos, deltaY);
+        return SCROLL_FRAME_SIZE;
+    }
+
+    /**
+     * Encodes the press or release of a special key.
+     */
+    static int encodeKey(byte[] dst, int off, byte key, boolean pressed) {
+        int pos = encodeExtensionHeader(dst, off, KEY_TYPE, KEY_FRAME_SIZE);
+        dst[pos]   = (byte)(0x80 | (pressed ? 0x01 : 0x00));
+        dst[pos+1] = (byte)(0x80 | (key & 0xff)>>>6);
+        dst[pos+2] = (byte)(0x80 | key & 0x3f);
+        return KEY_FRAME_SIZE;
+    }
+
+    /**
+     * Encodes a hello frame announcing the protocol version and the supported features.
+     */
+    static int encodeHello(byte[] dst, int off, int version, int features) {
+        int pos = encodeExtensionHeader(dst, off, HELLO_TYPE, HELLO_FRAME_SIZE);
+        dst[pos]   = (byte)(0x80 | version & 0x3f);
+        dst[pos+1] = (byte)(0x80 | features>>>6 & 0x3f);
+        dst[pos+2] = (byte)(0x80 | features & 0x3f);
+        return HELLO_FRAME_SIZE;
+    }
+
+    private static int encodeExtensionHeader(byte[] dst, int off, int type, int frameSize) {
+        dst[off]   = (byte)EXTENSION_LEAD;
+        dst[off+1] = (byte)(0x80 | frameSize - EXTENSION_HEADER_SIZE);
+        dst[off+2] = (byte)(0x80 | type);
+        return off + EXTENSION_HEADER_SIZE;
+    }
+
+    private static int encodeSigned18(byte[] dst, int off, int value) {
+        dst[off]   = (byte)(0x80 | value>>>12 & 0x3f);
+        dst[off+1] = (byte)(0x80 | value>>>6 & 0x3f);
+        dst[off+2] = (byte)(0x80 | value & 0x3f);
+        return off + 3;
+    }
+
+    private static int decodeSigned18(byte[] src, int off) {
+        int value = (src[off] & 0x3f)<<12 | (src[off+1] & 0x3f)<<6 | src[off+2] & 0x3f;
+        return value<<14>>14;
+    }
+
+    static int encodeDatagramHeader(byte[] dst, int off, int sequence) {
+        dst[off]   = (byte)(sequence>>>24);
+        dst[off+1] = (byte)(sequence>>>16);
+        dst[off+2] = (byte)(sequence>>>8);
+        dst[off+3] = (byte)sequence;
+        return DATAGRAM_HEADER_SIZE;
+    }
+
+    static int decodeDatagramSequence(byte[] src, int off) {
+        return (src[off] & 0xff)<<24 | (src[off+1] & 0xff)<<16 | (src[off+2] & 0xff)<<8
+               | src[off+3] & 0xff;
+    }
+
+    /**
+     * Compares sequence numbers in serial number arithmetic, so that the comparison keeps
+     * working after the counter wrapped around.
+     */
+    static boolean isNewerSequence(int sequence, int last) {
+        return sequence - last > 0;
+    }
+
+    /**
+     * Returns the number of bytes encodeUtf8 writes for the given range.
+     */
+    static int utf8Length(CharSequence s, int start, int end) {
+        int len = 0;
+        for (int i = start; i < end; i += charCount(s, i, end)) {
+            len += codePointSize(s, i, end);
+        }
+        return len;
+    }
+
+    /**
+     * Encodes the code point starting at s[index] and returns the number of bytes written.
+     * A surrogate pair is encoded as one 4 byte sequence, the caller has to skip the low
+     * surrogate in that case (see charCount).  Unpaired surrogates are replaced by '?'.
+     */
+    static int encodeUtf8Char(CharSequence s, int index, int end, byte[] dst, int off) {
+        char c = s.charAt(index);
+        if (c < 0x80) {
+            dst[off] = (byte)c;
+            return 1;
+        } else if (c < 0x800) {
+            dst[off]   = (byte)(0xc0 | c>>>6);
+            dst[off+1] = (byte)(0x80 | c & 0x3f);
+            return 2;
+        } else if (isSurrogatePair(s, index, end)) {
+            int cp = Character.toCodePoint(c, s.charAt(index+1));
+            dst[off]   = (byte)(0xf0 | cp>>>18);
+            dst[off+1] = (byte)(0x80 | cp>>>12 & 0x3f);
+            dst[off+2] = (byte)(0x80 | cp>>>6 & 0x3f);
+            dst[off+3] = (byte)(0x80 | cp & 0x3f);
+            return 4;
+        } else if (isSurrogate(c)) {
+            dst[off] = (byte)'?';
+            return 1;
+        } else {
+            dst[off]   = (byte)(0xe0 | c>>>12);
+            dst[off+1] = (byte)(0x80 | c>>>6 & 0x3f);
+            dst[off+2] = (byte)(0x80 | c & 0x3f);
+            return 3;
+        }
+    }
+
+    /**
+     * Returns the number of chars the code point starting at s[index] occupies.
+     */
+    static int charCount(CharSequence s, int index, int end) {
+        return isSurrogatePair(s, index, end) ? 2 : 1;
+    }
+
+    /**
+     * Encodes s[start..end) as UTF-8.  dst must have room for utf8Length(s, start, end) bytes.
+     */
+    static int encodeUtf8(CharSequence s, int start, int end, byte[] dst, int off) {
+        int pos = off;
+        for (int i = start; i < end; i += charCount(s, i, end)) {
+            pos += encodeUtf8Char(s, i, end, dst, pos);
+        }
+        return pos - off;
+    }
+
+    private static int codePointSize(CharSequence s, int index, int end) {
+        char c = s.charAt(index);
+        if (c < 0x80) {
+            return 1;
+        } else if (c < 0x800) {
+            return 2;
+        } else if (isSurrogatePair(s, index, end)) {
+            return 4;
+        } else if (isSurrogate(c)) {
+            return 1;
+        } else {
+            return 3;
+        }
+    }
+
+    // Character.isSurrogate needs API level 19
+    private static boolean isSurrogate(char c) {
+        return c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE;
+    }
+
+    private static boolean isSurrogatePair(CharSequence s, int index, int end) {
+        return Character.isHighSurrogate(s.charAt(index)) && index + 1 < end
+                && Character.isLowSurrogate(s.charAt(index+1));
+    }
+
+    /**
+     * Incremental decoder for the byte stream produced by the encode methods.  Frames may be
+     * split arbitrarily across calls to feed.
+     */
+    static class Decoder {
+        private static final int VARIABLE_LENGTH = -1;
+        private static final int MAX_VARINT_SIZE = 5;
+
+        interface Listener {
+            void onHeartbeat();
+            void onMouse(int distanceX, int distanceY);
+            void onSpecialKey(int key);
+            void onText(int codePoint);
+            void onScroll(int deltaX, int deltaY);
+            void onHello(int version, int features);
+            void onKey(int key, boolean pressed);
+        }
+
+        private final Listener mListener;
+        private final byte[] mPending = new byte[EXTENSION_HEADER_SIZE + MAX_EXTENSION_PAYLOAD];
+        private int mPendingLen = 0;
+        private int mExpectedLen = 0;
+        private int mInvalidBytes = 0;
+
+        Decoder(Listener listener) {
+            mListener = listener;
+        }
+
+        int getInvalidBytes() {
+            return mInvalidBytes;
+        }
+
+        void feed(byte[] buf, int off, int len) {
+            for (int i = off; i < off + len; ++i) {
+                feed(buf[i]);
+            }
+        }
+
+        void feed(byte b) {
+            if (mPendingLen == 0) {
+                mExpectedLen = frameLength(b & 0xff);
+                if (mExpectedLen == 0) {
+                    ++mInvalidBytes;
+                    return;
+                }
+            } else if (mExpectedLen == VARIABLE_LENGTH) {
+                feedMotion(b);
+                return;
+            } else if ((b & 0xc0) != 0x80) {
+                mInvalidBytes += mPendingLen;
+                mPendingLen = 0;
+                feed(b);
+                return;
+            }
+            mPending[mPendingLen++] = b;
+            if (mPendingLen == 2 && (mPending[0] & 0xff) == EXTENSION_LEAD) {
+                mExpectedLen = EXTENSION_HEADER_SIZE + (b & 0x3f);
+            }
+            if (mPendingLen == mExpectedLen) {
+                dispatch();
+                mPendingLen = 0;
+            }
+        }
+
+        /**
+         * Motion frames are not made of continuation bytes, their end is found by counting
+         * the completed varints.
+         */
+        private void feedMotion(byte b) {
+            mPending[mPendingLen++] = b;
+            if (mPendingLen == 2 && (b & 0x81) == 0x01) {
+                mListener.onMouse(decodeZigzag(b>>1 & 0x07), decodeZigzag(b>>4 & 0x07));
+                mPendingLen = 0;
+                return;
+            }
+            if ((b & 0x80) != 0) {
+                if (mPendingLen == 1 + 2*MAX_VARINT_SIZE) {
+                    mInvalidBytes += mPendingLen;
+                    mPendingLen = 0;
+                }
+                return;
+            }
+            int pos = 1;
+            int zigzagX = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte v = mPending[pos++];
+                zigzagX |= (v & 0x7f)<<shift;
+                if ((v & 0x80) == 0) {
+                    break;
+                }
+            }
+            if (pos == mPendingLen) {
+                // only the first varint is complete
+                return;
+            }
+            int zigzagY = 0;
+            for (int shift = 0; pos < mPendingLen; shift += 7) {
+                zigzagY |= (mPending[pos++] & 0x7f)<<shift;
+            }
+            mListener.onMouse(decodeZigzag(zigzagX>>>1), decodeZigzag(zigzagY));
+            mPendingLen = 0;
+        }
+
+        private static int decodeZigzag(int value) {
+            return value>>>1 ^ -(value & 1);
+        }
+
+        private static int frameLength(int lead) {
+            if (lead < 0x80) {
+                return 1;
+            } else if (lead < 0xc0) {
+                return 0;
+            } else if (lead < 0xe0) {
+                return 2;
+            } else if (lead < 0xf0) {
+                return 3;
+            } else if (lead < 0xf8) {
+                return 4;
+            } else if (lead < 0xfc) {
+                return MOUSE_FRAME_SIZE;
+            } else if (lead < 0xfe) {
+                return SPECIAL_KEY_FRAME_SIZE;
+            } else if (lead == EXTENSION_LEAD) {
+                return EXTENSION_HEADER_SIZE;
+            } else {
+                return VARIABLE_LENGTH;
+            }
+        }
+
+        private void dispatch() {
+            byte[] p = mPending;
+            if ((p[0] & 0xff) == EXTENSION_LEAD) {
+                dispatchExtension(p[2] & 0x3f);
+                return;
+            }
+            switch (mExpectedLen) {
+                case 1:
+                    if (p[0] == HEARTBEAT) {
+                        mListener.onHeartbeat();
+                    } else {
+                        mListener.onText(p[0]);
+                    }
+                    break;
+                case 2:
+                    mListener.onText((p[0] & 0x1f)<<6 | p[1] & 0x3f);
+                    break;
+                case 3:
+                    mListener.onText((p[0] & 0x0f)<<12 | (p[1] & 0x3f)<<6 | p[2] & 0x3f);
+                    break;
+                case 4:
+                    mListener.onText((p[0] & 0x07)<<18 | (p[1] & 0x3f)<<12 | (p[2] & 0x3f)<<6
+                                     | p[3] & 0x3f);
+                    break;
+                case MOUSE_FRAME_SIZE: {
+                    int distanceX = (p[0] & 0x01)<<11 | (p[1] & 0x3f)<<5 | (p[2] & 0x3f)>>>1;
+                    int distanceY = (p[3] & 0x3f)<<6 | p[4] & 0x3f;
+                    mListener.onMouse((p[0] & 0x02) != 0 ? -distanceX : distanceX,
+                                      (p[2] & 0x01) != 0 ? -distanceY : distanceY);
+                    break;
+                }
+                case SPECIAL_KEY_FRAME_SIZE: {
+                    int key = p[0] & 0x01;
+                    for (int i = 1; i < SPECIAL_KEY_FRAME_SIZE; ++i) {
+                        key = key<<6 | p[i] & 0x3f;
+                    }
+                    mListener.onSpecialKey(key);
+                    break;
+                }
+            }
+        }
+
+        private void dispatchExtension(int type) {
+            byte[] p = mPending;
+            if (type == SCROLL_TYPE && mExpectedLen == SCROLL_FRAME_SIZE) {
+                mListener.onScroll(decodeSigned18(p, EXTENSION_HEADER_SIZE),
+                                   decodeSigned18(p, EXTENSION_HEADER_SIZE + 3));
+            } else if (type == HELLO_TYPE && mExpectedLen >= HELLO_FRAME_SIZE) {
+                // later versions may append fields to the hello frame
+                int pos = EXTENSION_HEADER_SIZE;
+                mListener.onHello(p[pos] & 0x3f, (p[pos+1] & 0x3f)<<6 | p[pos+2] & 0x3f);
+            } else if (type == KEY_TYPE && mExpectedLen == KEY_FRAME_SIZE) {
+                int pos = EXTENSION_HEADER_SIZE;
+                mListener.onKey((p[pos+1] & 0x3f)<<6 | p[pos+2] & 0x3f, (p[pos] & 0x01) != 0);
+            }
+        }
+    }
+}
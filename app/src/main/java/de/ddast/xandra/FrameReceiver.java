@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2017  Dennis Dast
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.ddast.xandra;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reader thread for the frames the server sends back: the hello frame answering the one sent
+ * by the client after connecting, which is reported with the features supported by both
+ * sides, and the heartbeats echoed by a server supporting FEATURE_HEARTBEAT_ECHO.  A legacy
+ * server never sends anything, so the thread just blocks until the connection ends.
+ *
+ * The end of the connection and read errors are reported with connectionLost(), unless
+ * shutdown() was called.  With a read timeout set, a connection on which nothing arrives for
+ * that long is reported as lost as well, which detects a dead link even while nothing is
+ * sent.
+ */
+class FrameReceiver extends Thread implements FrameCodec.Decoder.Listener {
+    interface Callback {
+        void featuresReceived(FrameReceiver receiver, int version, int features);
+
+        void connectionLost(FrameReceiver receiver, IOException e);
+    }
+
+    private static final int BUFFER_SIZE = 256;
+
+    private final ChannelTransport mTransport;
+    private final int mFeatures;
+    private final Callback mCallback;
+    private final FrameCodec.Decoder mDecoder = new FrameCodec.Decoder(this);
+    private volatile long mReadTimeout = 0;
+    private volatile boolean mShutdown = false;
+
+    /**
+     * @param features the features supported by the client
+     */
+    FrameReceiver(ChannelTransport transport, int features, Callback callback) {
+        super("FrameReceiver");
+        mTransport = transport;
+        mFeatures = features;
+        mCallback = callback;
+        setDaemon(true);
+    }
+
+    /**
+     * Sets the milliseconds after which a connection without any received byte is lost, zero
+     * or less to wait forever.  Takes effect with the next read.
+     */
+    void setReadTimeout(long readTimeout) {
+        mReadTimeout = readTimeout;
+    }
+
+    /**
+     * Stops reporting, the thread ends once the transport is closed.
+     */
+    void shutdown() {
+        mShutdown = true;
+    }
+
+    @Override
+    public void run() {
+        ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+        try {
+            int n;
+            while ((n = mTransport.read(buf, mReadTimeout)) > 0) {
+                mDecoder.feed(buf.array(), 0, n);
+                buf.clear();
+            }
+            lost(new EOFException("Connection closed by the server"));
+        } catch (IOException e) {
+            lost(e);
+        }
+    }
+
+    private void lost(IOException e) {
+        if (!mShutdown) {
+            mCallback.connectionLost(this, e);
+        }
+    }
+
+    @Override
+    public void onHello(int version, int features) {
+        mCallback.featuresReceived(this, Math.min(version, FrameCodec.PROTOCOL_VERSION),
+                                   features & mFeatures);
+    }
+
+    @Override
+    public void onHeartbeat() {}
+
+    @Override
+    public void onMouse(int distanceX, int distanceY) {}
+
+    @Override
+    public void onSpecialKey(int key) {}
+
+    @Override
+    public void onText(int codePoint) {}
+
+    @Override
+    public void onScroll(int deltaX, int deltaY) {}
+
+    @Override
+    public void onKey(int key, boolean pressed) {}
+}
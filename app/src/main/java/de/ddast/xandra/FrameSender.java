@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2017  Dennis Dast
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.ddast.xandra;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single writer thread that drains the SendQueue in order onto the socket.  All frames that
+ * are pending when the thread wakes up are sent with one gathering write.
+ *
+ * A heartbeat is only written if nothing else was sent for heartbeatInterval milliseconds,
+ * so there is no heartbeat traffic while the user is active.  A heartbeatInterval of zero or
+ * less disables heartbeats and the thread blocks until there is something to send.  A peer
+ * that stops accepting data is detected when a write makes no progress within writeTimeout
+ * milliseconds.  The idle time is measured with the clock of the SendQueue, which also times
+ * the wait for the next frame.
+ *
+ * If the server echoes heartbeats, setHeartbeatEcho() makes the thread send a heartbeat at
+ * least every heartbeatInterval milliseconds, appended to the other frames while the user is
+ * active.  The FrameReceiver thus receives the echo regularly and detects a dead link by its
+ * read timeout.
+ */
+class FrameSender extends Thread {
+    interface Callback {
+        void sendFailed(FrameSender sender, IOException e);
+    }
+
+    private static final int MAX_BATCH = 64;
+
+    private final SendQueue mQueue;
+    private final SendQueue.Clock mClock;
+    private final ChannelTransport mTransport;
+    private final long mHeartbeatInterval;
+    private final long mWriteTimeout;
+    private final Callback mCallback;
+    private volatile boolean mHeartbeatEcho = false;
+    private volatile boolean mShutdown = false;
+
+    FrameSender(SendQueue queue, ChannelTransport transport, long heartbeatInterval,
+                long writeTimeout, Callback callback) {
+        super("FrameSender");
+        mQueue = queue;
+        mClock = queue.getClock();
+        mTransport = transport;
+        mHeartbeatInterval = heartbeatInterval;
+        mWriteTimeout = writeTimeout;
+        mCallback = callback;
+        setPriority(Thread.MAX_PRIORITY);
+        setDaemon(true);
+    }
+
+    void setHeartbeatEcho(boolean heartbeatEcho) {
+        mHeartbeatEcho = heartbeatEcho;
+    }
+
+    void shutdown() {
+        mShutdown = true;
+        mQueue.close();
+        interrupt();
+    }
+
+    @Override
+    public void run() {
+        ByteBuffer[] batch = new ByteBuffer[MAX_BATCH];
+        for (int i = 0; i < MAX_BATCH; ++i) {
+            batch[i] = ByteBuffer.allocate(SendQueue.SLOT_SIZE);
+        }
+        long lastWrite = mClock.nanoTime();
+        long lastHeartbeat = lastWrite;
+        try {
+            while (!mShutdown) {
+                boolean echo = mHeartbeatEcho;
+                long timeout = Long.MAX_VALUE;
+                if (mHeartbeatInterval > 0) {
+                    long since = echo ? lastHeartbeat : lastWrite;
+                    long idle = TimeUnit.NANOSECONDS.toMillis(mClock.nanoTime() - since);
+                    timeout = mHeartbeatInterval - idle;
+                }
+                int count = mQueue.drainTo(batch, timeout);
+                if (count < 0) {
+                    return;
+                }
+                // the idle time counts from the start of the last write
+                long now = mClock.nanoTime();
+                boolean heartbeat = count == 0;
+                if (echo && mHeartbeatInterval > 0 && count < MAX_BATCH) {
+                    heartbeat |= TimeUnit.NANOSECONDS.toMillis(now - lastHeartbeat)
+                                 >= mHeartbeatInterval;
+                }
+                boolean metrics = Metrics.isEnabled();
+                if (heartbeat) {
+                    ByteBuffer buf = batch[count++];
+                    buf.limit(FrameCodec.encodeHeartbeat(buf.array(), 0)).position(0);
+                    lastHeartbeat = now;
+                    if (metrics) {
+                        Metrics.countFrames(Metrics.HEARTBEAT, 1,
+                                            FrameCodec.HEARTBEAT_FRAME_SIZE);
+                    }
+                }
+                lastWrite = now;
+                long writeStart = metrics ? System.nanoTime() : 0;
+                mTransport.write(batch, 0, count, mWriteTimeout);
+                if (metrics) {
+                    Metrics.WRITE.record(System.nanoTime() - writeStart);
+                }
+                mQueue.writeCompleted();
+            }
+        } catch (InterruptedException e) {
+            // shutdown() was called
+        } catch (IOException e) {
+            mQueue.close();
+            if (!mShutdown) {
+                mCallback.sendFailed(this, e);
+            }
+        }
+    }
+}
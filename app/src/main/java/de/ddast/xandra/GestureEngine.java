@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2017  Dennis Dast
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.ddast.xandra;
+
+/**
+ * Gesture state machine of the touch pad.  It works on TouchEvents and sends its output to an
+ * InputSink, so it runs on the plain JVM as well.  The click timeouts are two preallocated
+ * timers on a TimerWheel, whose clock and wake ups are provided by the caller.
+ */
+class GestureEngine {
+    private final long mTapdelay;
+    private final float mTaptol, mScrollThreshold;
+    private final MouseAcceleration mMouseAcceleration;
+    private final InputSink mSink;
+    private final TimerWheel mTimerWheel;
+    private final TimerWheel.Timer mLeftClickTimer = new TimerWheel.Timer() {
+        @Override
+        void expired() {
+            isDragAndDrop = false;
+            mSink.sendSpecialKey(InputSink.LEFTMOUSEUP);
+        }
+    };
+    private final TimerWheel.Timer mRightClickTimer = new TimerWheel.Timer() {
+        @Override
+        void expired() {
+            if (singleTouchHasNotMoved()) {
+                isDragAndDrop = false;
+                mSink.sendSpecialKey(InputSink.RIGHTCLICK);
+            }
+        }
+    };
+    private int mPointerID1 = TouchEvent.INVALID_POINTER_ID;
+    private int mPointerID2 = TouchEvent.INVALID_POINTER_ID;
+    private float initX, initY, mOldX, mOldY, mOldX2, mOldY2;
+    private double accumulatedDiffX, accumulatedDiffY, mResidualX, mResidualY;
+    private long mDownEventTime, oldTime;
+    private boolean isMultiTouchGesture, isDragAndDrop;
+
+    GestureEngine(InputSink sink, TimerWheel timerWheel, long tapdelay, float taptol,
+                  float sensitivity, float acceleration, float scrollThreshold) {
+        mSink = sink;
+        mTimerWheel = timerWheel;
+        mTapdelay = tapdelay;
+        mTaptol = taptol;
+        mMouseAcceleration = new MouseAcceleration(sensitivity, acceleration);
+        mScrollThreshold = scrollThreshold;
+    }
+
+    boolean processTouchEvent(TouchEvent event) {
+        switch(event.getActionMasked()) {
+            case (TouchEvent.ACTION_DOWN): {
+                isMultiTouchGesture = false;
+                initFirstPointer(event);
+                mTimerWheel.schedule(mRightClickTimer, 2*mTapdelay);
+                return true;
+            }
+            case (TouchEvent.ACTION_POINTER_DOWN): {
+                isMultiTouchGesture = true;
+                if (event.getPointerCount() == 2) {
+                    initSecondPointer(event);
+                }
+                return true;
+            }
+            case (TouchEvent.ACTION_MOVE): {
+                if (isDragAndDrop) {
+                    mTimerWheel.cancel(mLeftClickTimer);
+                }
+                sendMouseOrScrollEvent(event);
+                return true;
+            }
+            case (TouchEvent.ACTION_POINTER_UP): {
+                rearrangePointerIDs(event);
+                return true;
+            }
+            case (TouchEvent.ACTION_UP): {
+                mTimerWheel.cancel(mRightClickTimer);
+                if (isDragAndDrop) {
+                    mTimerWheel.cancel(mLeftClickTimer);
+                    isDragAndDrop = false;
+                    mSink.sendSpecialKey(InputSink.LEFTMOUSEUP);
+                }
+                if (isSingleTouchTap(event)) {
+                    mSink.sendSpecialKey(InputSink.LEFTMOUSEDOWN);
+                    isDragAndDrop = true;
+                    mTimerWheel.schedule(mLeftClickTimer, mTapdelay);
+                }
+                mPointerID1 = TouchEvent.INVALID_POINTER_ID;
+                return true;
+            }
+            case (TouchEvent.ACTION_CANCEL): {
+                mTimerWheel.cancel(mLeftClickTimer);
+                mTimerWheel.cancel(mRightClickTimer);
+                mPointerID1 = TouchEvent.INVALID_POINTER_ID;
+                mPointerID2 = TouchEvent.INVALID_POINTER_ID;
+                return true;
+            }
+            default:
+                return false;
+        }
+    }
+
+    private void initFirstPointer(TouchEvent event) {
+        final int pointerIndex = event.getActionIndex();
+        mPointerID1 = event.getPointerId(pointerIndex);
+        initX = mOldX = event.getX(pointerIndex);
+        initY = mOldY = event.getY(pointerIndex);
+        mDownEventTime = oldTime = event.getEventTime();
+        mResidualX = mResidualY = 0.0;
+    }
+
+    private void initSecondPointer(TouchEvent event) {
+        final int pointerIndex = event.getActionIndex();
+        mPointerID2 = event.getPointerId(pointerIndex);
+        mOldX2 = event.getX(pointerIndex);
+        mOldY2 = event.getY(pointerIndex);
+        accumulatedDiffX = accumulatedDiffY = 0.0;
+    }
+
+    /**
+     * Applies the acceleration to every sample batched into the event, including the
+     * historical ones, so that the real sample timings are used.  The result is sent as a
+     * single mouse frame per event.
+     */
+    private void sendMouseOrScrollEvent(TouchEvent event) {
+        final int pointerCount = event.getPointerCount();
+        final int pointerIndex = event.findPointerIndex(mPointerID1);
+        final int pointerIndex2 = pointerCount == 2 ? event.findPointerIndex(mPointerID2)
+                                                    : TouchEvent.INVALID_POINTER_ID;
+        final int historySize = event.getHistorySize();
+        double movementX = 0.0;
+        double movementY = 0.0;
+        for (int pos = 0; pos <= historySize; ++pos) {
+            long diffT = event.getEventTime(pos) - oldTime;
+            if (diffT <= 0) {
+                // merge samples without time progress into the next one
+                continue;
+            }
+            oldTime += diffT;
+            float x = event.getX(pointerIndex, pos);
+            float y = event.getY(pointerIndex, pos);
+            float diffX = x - mOldX;
+            float diffY = y - mOldY;
+            mOldX = x;
+            mOldY = y;
+            if (pointerCount == 1) {
+                movementX += mMouseAcceleration.movement(diffX, diffT);
+                movementY += mMouseAcceleration.movement(diffY, diffT);
+            } else if (pointerCount == 2) {
+                float x2 = event.getX(pointerIndex2, pos);
+                float y2 = event.getY(pointerIndex2, pos);
+                float diffX2 = x2 - mOldX2;
+                float diffY2 = y2 - mOldY2;
+                mOldX2 = x2;
+                mOldY2 = y2;
+                float maxDiffX = Math.abs(diffX) > Math.abs(diffX2) ? diffX : diffX2;
+                float maxDiffY = Math.abs(diffY) > Math.abs(diffY2) ? diffY : diffY2;
+                accumulatedDiffX += mMouseAcceleration.acceleratedMovement(maxDiffX, diffT);
+                accumulatedDiffY += mMouseAcceleration.acceleratedMovement(maxDiffY, diffT);
+            }
+        }
+        if (pointerCount == 1) {
+            // carry the sub-pixel part over to the next event, so slow movements add up
+            movementX += mResidualX;
+            movementY += mResidualY;
+            int pixelsX = (int) Math.round(movementX);
+            int pixelsY = (int) Math.round(movementY);
+            mResidualX = movementX - pixelsX;
+            mResidualY = movementY - pixelsY;
+            mSink.sendMouse(pixelsX, pixelsY);
+        } else if (pointerCount == 2 && mSink.canSendScroll()) {
+            sendScrollFrame();
+        } else if (pointerCount == 2) {
+            while (accumulatedDiffY < -mScrollThreshold) {
+                mSink.sendSpecialKey(InputSink.WHEELUP);
+                accumulatedDiffY += mScrollThreshold;
+            }
+            while (accumulatedDiffY > mScrollThreshold) {
+                mSink.sendSpecialKey(InputSink.WHEELDOWN);
+                accumulatedDiffY -= mScrollThreshold;
+            }
+        }
+    }
+
+    /**
+     * Sends the accumulated movement of both axes as one scroll frame, one wheel step per
+     * scroll threshold.  The rounding error is kept for the next frame.
+     */
+    private void sendScrollFrame() {
+        int deltaX = scrollUnits(accumulatedDiffX);
+        int deltaY = scrollUnits(accumulatedDiffY);
+        if (deltaX == 0 && deltaY == 0) {
+            return;
+        }
+        accumulatedDiffX -= (double)deltaX*mScrollThreshold/FrameCodec.SCROLL_UNITS_PER_STEP;
+        accumulatedDiffY -= (double)deltaY*mScrollThreshold/FrameCodec.SCROLL_UNITS_PER_STEP;
+        mSink.sendScroll(deltaX, deltaY);
+    }
+
+    private int scrollUnits(double diff) {
+        double units = diff*FrameCodec.SCROLL_UNITS_PER_STEP/mScrollThreshold;
+        return (int)Math.max(-FrameCodec.MAX_SCROLL_DELTA,
+                             Math.min(FrameCodec.MAX_SCROLL_DELTA, Math.round(units)));
+    }
+
+    private void rearrangePointerIDs(TouchEvent event) {
+        final int pointerIndex = event.getActionIndex();
+        final int pointerId = event.getPointerId(pointerIndex);
+        if (pointerId != mPointerID1 && pointerId != mPointerID2) {
+            return;
+        }
+        if (pointerId == mPointerID1) {
+            mPointerID1 = mPointerID2;
+            final int pointerIndex1 = event.findPointerIndex(mPointerID1);
+            mOldX = event.getX(pointerIndex1);
+            mOldY = event.getY(pointerIndex1);
+            mPointerID2 = TouchEvent.INVALID_POINTER_ID;
+        }
+        if (event.getPointerCount() > 2) {
+            final int pointerIndex1 = event.findPointerIndex(mPointerID1);
+            int newPointerIndex = TouchEvent.INVALID_POINTER_ID;
+            for (int i = 0; i < event.getPointerCount(); ++i) {
+                if (i != pointerIndex && i != pointerIndex1) {
+                    newPointerIndex = i;
+                    break;
+                }
+            }
+            mPointerID2 = event.getPointerId(newPointerIndex);
+            mOldX2 = event.getX(newPointerIndex);
+            mOldY2 = event.getY(newPointerIndex);
+        }
+    }
+
+    private boolean isSingleTouchTap(TouchEvent event) {
+        final int pointerIndex = event.findPointerIndex(mPointerID1);
+        mOldX = event.getX(pointerIndex);
+        mOldY = event.getY(pointerIndex);
+        return singleTouchHasNotMoved() && (event.getEventTime() - mDownEventTime < mTapdelay);
+    }
+
+    private boolean singleTouchHasNotMoved() {
+        return (!isMultiTouchGesture &&
+                (Math.abs(mOldX - initX) < mTaptol) &&
+                (Math.abs(mOldY - initY) < mTaptol));
+    }
+}
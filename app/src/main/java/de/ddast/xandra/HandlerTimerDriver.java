@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2017  Dennis Dast
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.ddast.xandra;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Runs a TimerWheel on the looper of a Handler.  The time is SystemClock.uptimeMillis(), the
+ * time base of MotionEvents and Handler.postAtTime(), and only a single callback is posted,
+ * for the earliest deadline.
+ */
+final class HandlerTimerDriver implements TimerWheel.Clock, TimerWheel.WakeUp, Runnable {
+    private static final long TICK_MILLIS = 16L;
+
+    private final Handler mHandler;
+    private TimerWheel mTimerWheel;
+
+    private HandlerTimerDriver(Handler handler) {
+        mHandler = handler;
+    }
+
+    static TimerWheel createTimerWheel(Handler handler) {
+        HandlerTimerDriver driver = new HandlerTimerDriver(handler);
+        driver.mTimerWheel = new TimerWheel(driver, TICK_MILLIS, driver);
+        return driver.mTimerWheel;
+    }
+
+    @Override
+    public long now() {
+        return SystemClock.uptimeMillis();
+    }
+
+    @Override
+    public void wakeUpAt(long time) {
+        mHandler.removeCallbacks(this);
+        mHandler.postAtTime(this, time);
+    }
+
+    @Override
+    public void run() {
+        mTimerWheel.advance();
+    }
+}
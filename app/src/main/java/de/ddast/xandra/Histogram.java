@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2017  Dennis Dast
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.ddast.xandra;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of durations in nanoseconds with power of two buckets.  Percentiles
+ * are therefore only accurate to a factor of two, which is enough to tell a 50 us write from
+ * a 5 ms one.
+ */
+class Histogram {
+    private static final int BUCKETS = 64;
+
+    private final String mName;
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    Histogram(String name) {
+        mName = name;
+    }
+
+    void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        mBuckets.incrementAndGet(Math.max(0, BUCKETS - 1 - Long.numberOfLeadingZeros(nanos)));
+        mCount.incrementAndGet();
+        mSum.addAndGet(nanos);
+        long max;
+        while (nanos > (max = mMax.get()) && !mMax.compareAndSet(max, nanos)) {
+            // retry
+        }
+    }
+
+    long getCount() {
+        return mCount.get();
+    }
+
+    /**
+     * Returns the upper bound of the bucket that contains the given percentile (0 to 1).
+     */
+    long percentile(double p) {
+        long count = mCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long)Math.ceil(p*count);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            seen += mBuckets.get(i);
+            if (seen >= rank) {
+                return Math.min(mMax.get(), (1L << (i + 1)) - 1);
+            }
+        }
+        return mMax.get();
+    }
+
+    void reset() {
+        for (int i = 0; i < BUCKETS; ++i) {
+            mBuckets.set(i, 0);
+        }
+        mCount.set(0);
+        mSum.set(0);
+        mMax.set(0);
+    }
+
+    void appendTo(StringBuilder sb) {
+        long count = mCount.get();
+        sb.append(String.format(Locale.US, "%-10s n=%d avg=%.1fus p50<%.1fus p99<%.1fus "
+                                + "max=%.1fus\n", mName, count,
+                                count == 0 ? 0.0 : mSum.get()/1000.0/count,
+                                percentile(0.5)/1000.0, percentile(0.99)/1000.0,
+                                mMax.get()/1000.0));
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2017  Dennis Dast
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.ddast.xandra;
+
+/**
+ * Passes the input on to the sink of the active session.  The gesture and text handling are
+ * created once for the router, so switching between servers keeps their state and costs no
+ * more than setting a new target.
+ */
+class InputRouter implements InputSink {
+    private InputSink mTarget = null;
+    private boolean mLeftMouseDown = false;
+
+    /**
+     * Sends all further input to target.  A left mouse button held down for a drag and drop is
+     * released on the previous target first.
+     */
+    void setTarget(InputSink target) {
+        if (target == mTarget) {
+            return;
+        }
+        if (mLeftMouseDown && mTarget != null) {
+            mTarget.sendSpecialKey(LEFTMOUSEUP);
+        }
+        mLeftMouseDown = false;
+        mTarget = target;
+    }
+
+    @Override
+    public void sendMouse(int distanceX, int distanceY) {
+        if (mTarget != null) {
+            mTarget.sendMouse(distanceX, distanceY);
+        }
+    }
+
+    @Override
+    public void sendSpecialKey(byte key) {
+        if (mTarget == null) {
+            return;
+        }
+        if (key == LEFTMOUSEDOWN) {
+            mLeftMouseDown = true;
+        } else if (key == LEFTMOUSEUP) {
+            mLeftMouseDown = false;
+        }
+        mTarget.sendSpecialKey(key);
+    }
+
+    @Override
+    public boolean canSendKeyState() {
+        return mTarget != null && mTarget.canSendKeyState();
+    }
+
+    @Override
+    public void sendKeyState(byte key, boolean pressed) {
+        if (mTarget != null) {
+            mTarget.sendKeyState(key, pressed);
+        }
+    }
+
+    @Override
+    public boolean canSendScroll() {
+        return mTarget != null && mTarget.canSendScroll();
+    }
+
+    @Override
+    public void sendScroll(int deltaX, int deltaY) {
+        if (mTarget != null) {
+            mTarget.sendScroll(deltaX, deltaY);
+        }
+    }
+
+    @Override
+    public void sendEdit(int deletions, CharSequence s, int start, int end) {
+        if (mTarget != null) {
+            mTarget.sendEdit(deletions, s, start, end);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2017  Dennis Dast
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.ddast.xandra;
+
+/**
+ * Receiver of the input produced by the gesture and text handling.  Implemented by TcpClient
+ * and by the trace replayer of the benchmark module.
+ */
+interface InputSink {
+    byte LEFTCLICK     = (byte)0x00;
+    byte MIDDLECLICK   = (byte)0x01;
+    byte RIGHTCLICK    = (byte)0x02;
+    byte WHEELUP       = (byte)0x03;
+    byte WHEELDOWN     = (byte)0x04;
+    byte CTRL          = (byte)0x05;
+    byte SUP           = (byte)0x06;
+    byte ALT           = (byte)0x07;
+    byte BACKSPACE     = (byte)0x08;
+    byte ESCAPE        = (byte)0x09;
+    byte TAB           = (byte)0x0a;
+    byte LEFT          = (byte)0x0b;
+    byte DOWN          = (byte)0x0c;
+    byte UP            = (byte)0x0d;
+    byte RIGHT         = (byte)0x0e;
+    byte VOLDN         = (byte)0x0f;
+    byte VOLUP         = (byte)0x10;
+    byte VOLTOG        = (byte)0x11;
+    byte INS           = (byte)0x12;
+    byte DEL           = (byte)0x13;
+    byte HOME          = (byte)0x14;
+    byte END           = (byte)0x15;
+    byte PGUP          = (byte)0x16;
+    byte PGDN          = (byte)0x17;
+    byte F1            = (byte)0x18;
+    byte F2            = (byte)0x19;
+    byte F3            = (byte)0x1a;
+    byte F4            = (byte)0x1b;
+    byte F5            = (byte)0x1c;
+    byte F6            = (byte)0x1d;
+    byte F7            = (byte)0x1e;
+    byte F8            = (byte)0x1f;
+    byte F9            = (byte)0x20;
+    byte F10           = (byte)0x21;
+    byte F11           = (byte)0x22;
+    byte F12           = (byte)0x23;
+    byte LEFTMOUSEDOWN = (byte)0x24;
+    byte LEFTMOUSEUP   = (byte)0x25;
+
+    void sendMouse(int distanceX, int distanceY);
+
+    void sendSpecialKey(byte key);
+
+    /**
+     * Whether sendKeyState() may be used.  Otherwise a held key has to be repeated with
+     * sendSpecialKey().
+     */
+    boolean canSendKeyState();
+
+    /**
+     * Presses or releases key.  Every press has to be followed by a release.
+     */
+    void sendKeyState(byte key, boolean pressed);
+
+    /**
+     * Whether sendScroll() may be used.  Otherwise scrolling has to be sent as WHEELUP and
+     * WHEELDOWN keys.
+     */
+    boolean canSendScroll();
+
+    /**
+     * Sends a scroll delta in 1/FrameCodec.SCROLL_UNITS_PER_STEP wheel steps.
+     */
+    void sendScroll(int deltaX, int deltaY);
+
+    /**
+     * Sends deletions backspaces followed by s[start..end).
+     */
+    void sendEdit(int deletions, CharSequence s, int start, int end);
+}
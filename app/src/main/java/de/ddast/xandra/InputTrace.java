@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2017  Dennis Dast
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.ddast.xandra;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Compact binary recording of the input the touch pad and the text field receive, so that
+ * real sessions can be replayed through GestureEngine and TextInput on the plain JVM.
+ *
+ * A trace starts with the magic "XTRC", a version byte and the gesture settings: the tap
+ * delay as varint, the tap tolerance, sensitivity, acceleration and scroll threshold as
+ * floats.  It is followed by records, each consisting of a type byte and the time since the
+ * previous record in milliseconds as zigzag varint.  Touch records hold the masked action,
+ * action index, pointer count, history size and pointer ids, then for every sample its age
+ * relative to the event time followed by the coordinates of all pointers.  Text records hold
+ * the TextWatcher arguments, a change also carries the inserted characters.  All integers
+ * except the floats are varints.
+ */
+final class InputTrace {
+    private static final int MAGIC   = 0x58545243;
+    private static final int VERSION = 1;
+
+    private static final int TOUCH        = 1;
+    private static final int TEXT_RESET   = 2;
+    private static final int TEXT_BEFORE  = 3;
+    private static final int TEXT_CHANGED = 4;
+    private static final int TEXT_AFTER   = 5;
+
+    interface Listener {
+        void onTouchEvent(TouchEvent event);
+        void onTextReset(long time, CharSequence text);
+        void onBeforeTextChanged(long time, int start, int count, int after);
+        void onTextChanged(long time, int start, int before, CharSequence inserted);
+        void onAfterTextChanged(long time);
+    }
+
+    private InputTrace() {}
+
+    static class Writer implements Closeable {
+        private final DataOutputStream mOut;
+        private long mTime = 0;
+
+        Writer(OutputStream out, long tapdelay, float taptol, float sensitivity,
+               float acceleration, float scrollThreshold) throws IOException {
+            mOut = new DataOutputStream(new BufferedOutputStream(out));
+            mOut.writeInt(MAGIC);
+            mOut.writeByte(VERSION);
+            writeVarint(tapdelay);
+            mOut.writeFloat(taptol);
+            mOut.writeFloat(sensitivity);
+            mOut.writeFloat(acceleration);
+            mOut.writeFloat(scrollThreshold);
+        }
+
+        void touchEvent(TouchEvent event) throws IOException {
+            final int pointerCount = event.getPointerCount();
+            final int historySize = event.getHistorySize();
+            final long time = event.getEventTime();
+            writeHeader(TOUCH, time);
+            writeVarint(event.getActionMasked());
+            writeVarint(event.getActionIndex());
+            writeVarint(pointerCount);
+            writeVarint(historySize);
+            for (int i = 0; i < pointerCount; ++i) {
+                writeVarint(event.getPointerId(i));
+            }
+            for (int pos = 0; pos <= historySize; ++pos) {
+                writeVarint(time - event.getEventTime(pos));
+                for (int i = 0; i < pointerCount; ++i) {
+                    mOut.writeFloat(event.getX(i, pos));
+                    mOut.writeFloat(event.getY(i, pos));
+                }
+            }
+        }
+
+        void textReset(long time, CharSequence text) throws IOException {
+            writeHeader(TEXT_RESET, time);
+            writeChars(text, 0, text.length());
+        }
+
+        void beforeTextChanged(long time, int start, int count, int after) throws IOException {
+            writeHeader(TEXT_BEFORE, time);
+            writeVarint(start);
+            writeVarint(count);
+            writeVarint(after);
+        }
+
+        void textChanged(long time, CharSequence s, int start, int before, int count)
+                throws IOException {
+            writeHeader(TEXT_CHANGED, time);
+            writeVarint(start);
+            writeVarint(before);
+            writeChars(s, start, start + count);
+        }
+
+        void afterTextChanged(long time) throws IOException {
+            writeHeader(TEXT_AFTER, time);
+        }
+
+        @Override
+        public void close() throws IOException {
+            mOut.close();
+        }
+
+        private void writeHeader(int type, long time) throws IOException {
+            mOut.writeByte(type);
+            long delta = time - mTime;
+            writeVarint(delta<<1 ^ delta>>63);
+            mTime = time;
+        }
+
+        private void writeChars(CharSequence s, int start, int end) throws IOException {
+            writeVarint(end - start);
+            for (int i = start; i < end; ++i) {
+                mOut.writeChar(s.charAt(i));
+            }
+        }
+
+        private void writeVarint(long value) throws IOException {
+            while ((value & ~0x7fL) != 0) {
+                mOut.writeByte((int)(value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            mOut.writeByte((int)value);
+        }
+    }
+
+    static class Reader implements Closeable {
+        private final DataInputStream mIn;
+        private final TouchEvent mTouchEvent = new TouchEvent();
+        private final StringBuilder mChars = new StringBuilder();
+        private final long mTapdelay;
+        private final float mTaptol, mSensitivity, mAcceleration, mScrollThreshold;
+        private long mTime = 0;
+
+        Reader(InputStream in) throws IOException {
+            mIn = new DataInputStream(new BufferedInputStream(in));
+            if (mIn.readInt() != MAGIC || mIn.readUnsignedByte() != VERSION) {
+                throw new IOException("Not an input trace of version " + VERSION);
+            }
+            mTapdelay = readVarint();
+            mTaptol = mIn.readFloat();
+            mSensitivity = mIn.readFloat();
+            mAcceleration = mIn.readFloat();
+            mScrollThreshold = mIn.readFloat();
+        }
+
+        long getTapdelay() {
+            return mTapdelay;
+        }
+
+        float getTaptol() {
+            return mTaptol;
+        }
+
+        float getSensitivity() {
+            return mSensitivity;
+        }
+
+        float getAcceleration() {
+            return mAcceleration;
+        }
+
+        float getScrollThreshold() {
+            return mScrollThreshold;
+        }
+
+        /**
+         * Reads the next record and passes it to listener.  The TouchEvent and the characters
+         * passed are only valid until the next call.
+         *
+         * @return false at the end of the trace
+         */
+        boolean next(Listener listener) throws IOException {
+            int type = mIn.read();
+            if (type < 0) {
+                return false;
+            }
+            long delta = readVarint();
+            mTime += delta>>>1 ^ -(delta & 1);
+            switch (type) {
+                case TOUCH:
+                    readTouchEvent();
+                    listener.onTouchEvent(mTouchEvent);
+                    break;
+                case TEXT_RESET:
+                    listener.onTextReset(mTime, readChars());
+                    break;
+                case TEXT_BEFORE: {
+                    int start = readInt();
+                    int count = readInt();
+                    listener.onBeforeTextChanged(mTime, start, count, readInt());
+                    break;
+                }
+                case TEXT_CHANGED: {
+                    int start = readInt();
+                    int before = readInt();
+                    listener.onTextChanged(mTime, start, before, readChars());
+                    break;
+                }
+                case TEXT_AFTER:
+                    listener.onAfterTextChanged(mTime);
+                    break;
+                default:
+                    throw new IOException("Unknown record type " + type);
+            }
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mIn.close();
+        }
+
+        private void readTouchEvent() throws IOException {
+            int action = readInt();
+            int actionIndex = readInt();
+            int pointerCount = readInt();
+            int historySize = readInt();
+            mTouchEvent.set(action, actionIndex, pointerCount, historySize);
+            for (int i = 0; i < pointerCount; ++i) {
+                mTouchEvent.setPointerId(i, readInt());
+            }
+            for (int pos = 0; pos <= historySize; ++pos) {
+                mTouchEvent.setEventTime(pos, mTime - readVarint());
+                for (int i = 0; i < pointerCount; ++i) {
+                    float x = mIn.readFloat();
+                    mTouchEvent.setPosition(i, pos, x, mIn.readFloat());
+                }
+            }
+        }
+
+        private CharSequence readChars() throws IOException {
+            int length = readInt();
+            mChars.setLength(0);
+            for (int i = 0; i < length; ++i) {
+                mChars.append(mIn.readChar());
+            }
+            return mChars;
+        }
+
+        private int readInt() throws IOException {
+            long value = readVarint();
+            if (value > Integer.MAX_VALUE) {
+                throw new IOException("Malformed input trace");
+            }
+            return (int)value;
+        }
+
+        private long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = mIn.readUnsignedByte();
+                value |= (long)(b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed input trace");
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2017  Dennis Dast
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.ddast.xandra;
+
+/**
+ * Turns the presses and releases of the special key buttons into frames.  A tap sends the
+ * key once when it is released, so that a press cancelled by scrolling the key bar sends
+ * nothing.  A key held for HOLD_DELAY is pressed on the server, which then repeats it like
+ * a key of a real keyboard, and released again with the button.  Servers without key state
+ * frames get the key once when the hold is detected and again every REPEAT_INTERVAL from
+ * REPEAT_DELAY on.
+ *
+ * Only one key is held at a time, pressing another one releases it.
+ */
+final class KeyRepeater {
+    static final long HOLD_DELAY      = 200L;
+    static final long REPEAT_DELAY    = 500L;
+    static final long REPEAT_INTERVAL = 40L;
+
+    private final InputSink mSink;
+    private final TimerWheel mTimerWheel;
+    private final TimerWheel.Timer mTimer = new TimerWheel.Timer() {
+        @Override
+        void expired() {
+            if (mHeld) {
+                repeat();
+            } else {
+                hold();
+            }
+        }
+    };
+    private byte mKey;
+    private boolean mDown = false;
+    private boolean mHeld = false;
+    private boolean mKeyState = false;
+
+    KeyRepeater(InputSink sink, TimerWheel timerWheel) {
+        mSink = sink;
+        mTimerWheel = timerWheel;
+    }
+
+    /**
+     * The key would toggle something or click, so repeating it would do harm.
+     */
+    static boolean isRepeatable(byte key) {
+        return key != InputSink.VOLTOG && key != InputSink.MIDDLECLICK;
+    }
+
+    void press(byte key) {
+        if (mDown) {
+            release(mKey);
+        }
+        mKey = key;
+        mDown = true;
+        mHeld = false;
+        mTimerWheel.schedule(mTimer, HOLD_DELAY);
+    }
+
+    /**
+     * The button of key was released, which completes a tap or ends a hold.
+     */
+    void release(byte key) {
+        if (!mDown || key != mKey) {
+            return;
+        }
+        end();
+        if (!mHeld) {
+            mSink.sendSpecialKey(key);
+        }
+    }
+
+    /**
+     * The press of key was taken over by another gesture.  A tap is dropped, a hold ends.
+     */
+    void cancel(byte key) {
+        if (mDown && key == mKey) {
+            end();
+        }
+    }
+
+    /**
+     * Ends a hold, for example before the input is sent to another server.
+     */
+    void releaseAll() {
+        if (mDown) {
+            cancel(mKey);
+        }
+    }
+
+    private void end() {
+        mTimerWheel.cancel(mTimer);
+        mDown = false;
+        if (mHeld && mKeyState) {
+            mSink.sendKeyState(mKey, false);
+        }
+    }
+
+    private void hold() {
+        mHeld = true;
+        mKeyState = mSink.canSendKeyState();
+        if (mKeyState) {
+            mSink.sendKeyState(mKey, true);
+            return;
+        }
+        mSink.sendSpecialKey(mKey);
+        if (isRepeatable(mKey)) {
+            mTimerWheel.schedule(mTimer, REPEAT_DELAY - HOLD_DELAY);
+        }
+    }
+
+    private void repeat() {
+        mSink.sendSpecialKey(mKey);
+        mTimerWheel.schedule(mTimer, REPEAT_INTERVAL);
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2017  Dennis Dast
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.ddast.xandra;
+
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A key chord or a sequence of chords and text, compiled once into the frames that send it.
+ * The frames are sent with SendQueue.offerBlock(), so they reach the server in one write
+ * that no other frame is interleaved with.
+ *
+ * A macro is defined as "label: steps", the steps are separated by spaces.  A step is either
+ * text in double quotes, in which \" and \\ are escaped, or a chord of modifiers and a key
+ * joined by '+', e.g. Ctrl+Shift+T or Alt+F4.  The modifiers Ctrl, Super and Alt are sent as
+ * special keys, which the server holds until the next key.  Shift turns the letter of the
+ * chord into upper case, so it is only allowed with a letter.  Key names are case
+ * insensitive.
+ */
+final class Macro {
+    private static final Map<String, Byte> KEYS = new HashMap<String, Byte>();
+    private static final Map<String, String> TEXT_KEYS = new HashMap<String, String>();
+
+    static {
+        String[] names = {"esc", "tab", "left", "down", "up", "right", "voldn", "volup",
+                          "voltog", "mid", "ins", "del", "home", "end", "pgup", "pgdn",
+                          "backspace", "f1", "f2", "f3", "f4", "f5", "f6", "f7", "f8", "f9",
+                          "f10", "f11", "f12"};
+        byte[] codes = {InputSink.ESCAPE, InputSink.TAB, InputSink.LEFT, InputSink.DOWN,
+                        InputSink.UP, InputSink.RIGHT, InputSink.VOLDN, InputSink.VOLUP,
+                        InputSink.VOLTOG, InputSink.MIDDLECLICK, InputSink.INS, InputSink.DEL,
+                        InputSink.HOME, InputSink.END, InputSink.PGUP, InputSink.PGDN,
+                        InputSink.BACKSPACE, InputSink.F1, InputSink.F2, InputSink.F3,
+                        InputSink.F4, InputSink.F5, InputSink.F6, InputSink.F7, InputSink.F8,
+                        InputSink.F9, InputSink.F10, InputSink.F11, InputSink.F12};
+        for (int i = 0; i < names.length; ++i) {
+            KEYS.put(names[i], codes[i]);
+        }
+        TEXT_KEYS.put("enter", "\n");
+        TEXT_KEYS.put("space", " ");
+    }
+
+    private final String mLabel;
+    private final byte[] mFrames;
+
+    private Macro(String label, byte[] frames) {
+        mLabel = label;
+        mFrames = frames;
+    }
+
+    String getLabel() {
+        return mLabel;
+    }
+
+    /**
+     * The compiled frames.  Must not be modified.
+     */
+    byte[] getFrames() {
+        return mFrames;
+    }
+
+    /**
+     * Compiles a definition of the form "label: steps".
+     *
+     * @throws ParseException if the definition is malformed or its frames are longer than
+     *                        SendQueue.MAX_BLOCK_SIZE
+     */
+    static Macro parse(String definition) throws ParseException {
+        int colon = definition.indexOf(':');
+        if (colon <= 0) {
+            throw new ParseException("Missing label in \"" + definition + "\"", 0);
+        }
+        String label = definition.substring(0, colon).trim();
+        // a chord takes at most one special key frame per char of its definition
+        byte[] frames = new byte[SendQueue.MAX_BLOCK_SIZE
+                                 + FrameCodec.SPECIAL_KEY_FRAME_SIZE*definition.length()];
+        int len = 0;
+        int pos = colon + 1;
+        while (true) {
+            while (pos < definition.length() && Character.isWhitespace(definition.charAt(pos))) {
+                ++pos;
+            }
+            if (pos == definition.length()) {
+                break;
+            }
+            int end;
+            if (definition.charAt(pos) == '"') {
+                StringBuilder text = new StringBuilder();
+                end = parseText(definition, pos, text);
+                if (FrameCodec.utf8Length(text, 0, text.length()) > frames.length - len) {
+                    throw tooLong(definition);
+                }
+                len += FrameCodec.encodeUtf8(text, 0, text.length(), frames, len);
+            } else {
+                end = pos;
+                while (end < definition.length()
+                       && !Character.isWhitespace(definition.charAt(end))) {
+                    ++end;
+                }
+                len = compileChord(definition, pos, end, frames, len);
+            }
+            if (len > SendQueue.MAX_BLOCK_SIZE) {
+                throw tooLong(definition);
+            }
+            pos = end;
+        }
+        if (len == 0) {
+            throw new ParseException("No steps in \"" + definition + "\"", colon + 1);
+        }
+        return new Macro(label, Arrays.copyOf(frames, len));
+    }
+
+    /**
+     * Appends the text between the quotes starting at pos to text.
+     *
+     * @return the index after the closing quote
+     */
+    private static int parseText(String definition, int pos, StringBuilder text)
+            throws ParseException {
+        for (int i = pos + 1; i < definition.length(); ++i) {
+            char c = definition.charAt(i);
+            if (c == '"') {
+                return i + 1;
+            }
+            if (c == '\\' && i + 1 < definition.length()) {
+                c = definition.charAt(++i);
+            }
+            text.append(c);
+        }
+        throw new ParseException("Unterminated text in \"" + definition + "\"", pos);
+    }
+
+    private static int compileChord(String definition, int start, int end, byte[] frames,
+                                    int len) throws ParseException {
+        boolean shift = false;
+        int pos = start;
+        while (true) {
+            int plus = definition.indexOf('+', pos + 1);
+            if (plus < 0 || plus >= end) {
+                break;
+            }
+            String modifier = definition.substring(pos, plus).toLowerCase(Locale.US);
+            if (modifier.equals("ctrl")) {
+                len += FrameCodec.encodeSpecialKey(frames, len, InputSink.CTRL);
+            } else if (modifier.equals("super")) {
+                len += FrameCodec.encodeSpecialKey(frames, len, InputSink.SUP);
+            } else if (modifier.equals("alt")) {
+                len += FrameCodec.encodeSpecialKey(frames, len, InputSink.ALT);
+            } else if (modifier.equals("shift")) {
+                shift = true;
+            } else {
+                throw new ParseException("Unknown modifier \"" + modifier + "\" in \""
+                                         + definition + "\"", pos);
+            }
+            pos = plus + 1;
+        }
+        String key = definition.substring(pos, end);
+        String name = key.toLowerCase(Locale.US);
+        if (shift && !(key.codePointCount(0, key.length()) == 1
+                       && Character.isLetter(key.codePointAt(0)))) {
+            throw new ParseException("Shift is only allowed with a letter in \""
+                                     + definition + "\"", pos);
+        } else if (key.codePointCount(0, key.length()) == 1) {
+            String text = shift ? key.toUpperCase(Locale.US) : name;
+            return len + FrameCodec.encodeUtf8(text, 0, text.length(), frames, len);
+        } else if (KEYS.containsKey(name)) {
+            return len + FrameCodec.encodeSpecialKey(frames, len, KEYS.get(name));
+        } else if (TEXT_KEYS.containsKey(name)) {
+            String text = TEXT_KEYS.get(name);
+            return len + FrameCodec.encodeUtf8(text, 0, text.length(), frames, len);
+        }
+        throw new ParseException("Unknown key \"" + key + "\" in \"" + definition + "\"", pos);
+    }
+
+    private static ParseException tooLong(String definition) {
+        return new ParseException("Longer than " + SendQueue.MAX_BLOCK_SIZE + " bytes: \""
+                                  + definition + "\"", 0);
+    }
+}
@@ -17,12 +17,19 @@
 
 package de.ddast.xandra;
 
+import android.content.ComponentName;
 import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.AppCompatImageView;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.SystemClock;
+import android.support.v4.view.MotionEventCompat;
 import android.util.Log;
 import android.view.MotionEvent;
 import android.view.View;
@@ -33,24 +40,48 @@ import android.widget.HorizontalScrollView;
 import android.widget.LinearLayout;
 import android.widget.TextView;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
 public class MainActivity extends AppCompatActivity implements TcpClientObserver {
     private static final String TAG    = "MainActivity";
     private static final boolean DEBUG = false;
 
+    private static final long METRICS_INTERVAL = 500L;
+
     private int mPort;
-    private long mTapdelay;
+    private long mTapdelay, mHeartbeatInterval, mWriteTimeout, mGracePeriod, mIdleTimeout;
     private float mTaptol, mSensitivity, mAcceleration, mScrollThreshold;
+    private boolean mUseDatagrams, mScrollFrames, mRecordInput;
     private int mSpecialKeysVisibility = View.GONE;
     private NoCursorEditText mBufferEdit;
     private HorizontalScrollView mLayoutKeys;
+    private HorizontalScrollView mLayoutHosts;
     private AppCompatImageView mBackgroundImage;
     private TextView mStatusTextView;
+    private TextView mMetricsTextView;
+    private final Handler mHandler = new Handler();
+    private final TimerWheel mTimerWheel = HandlerTimerDriver.createTimerWheel(mHandler);
     private LinearLayout mBackgroundBorder;
     private Button mToggleButton;
     private String mServerAddr;
+    private final Set<String> mHosts = new LinkedHashSet<String>();
+    private final List<Button> mHostButtons = new ArrayList<Button>();
+    private final List<Macro> mMacros = new ArrayList<Macro>();
+    private final InputRouter mInputRouter = new InputRouter();
+    private final KeyRepeater mKeyRepeater = new KeyRepeater(mInputRouter, mTimerWheel);
     private TcpClient mTcpClient;
     private MouseGestureWatcher mMouseGestureWatcher;
     private SendCharsTextWatcher mSendCharsTextWatcher;
+    private ConnectionService mConnectionService = null;
+    private boolean mResumed = false;
+    private InputTrace.Writer mRecorder = null;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -81,10 +112,53 @@ public class MainActivity extends AppCompatActivity implements TcpClientObserver
                                          this.getString(R.string.pref_acceleration), ""));
         mScrollThreshold = Float.valueOf(sharedPreferences.getString(
                                          this.getString(R.string.pref_scrollthreshold), ""));
+        mHeartbeatInterval = Long.valueOf(sharedPreferences.getString(
+                                          this.getString(R.string.pref_heartbeat),
+                                          this.getString(R.string.pref_heartbeat_default)));
+        mWriteTimeout    = Long.valueOf(sharedPreferences.getString(
+                                        this.getString(R.string.pref_writetimeout),
+                                        this.getString(R.string.pref_writetimeout_default)));
+        mGracePeriod     = Long.valueOf(sharedPreferences.getString(
+                                        this.getString(R.string.pref_graceperiod),
+                                        this.getString(R.string.pref_graceperiod_default)));
+        mIdleTimeout     = Long.valueOf(sharedPreferences.getString(
+                                        this.getString(R.string.pref_idletimeout),
+                                        this.getString(R.string.pref_idletimeout_default)));
+        mUseDatagrams    = sharedPreferences.getBoolean(this.getString(R.string.pref_udp), false);
+        mScrollFrames    = sharedPreferences.getBoolean(
+                                        this.getString(R.string.pref_hiresscroll), true);
+        mRecordInput     = sharedPreferences.getBoolean(this.getString(R.string.pref_record),
+                                                        false);
         mServerAddr      = getIntent().getStringExtra(ConnectActivity.SERVERADDR);
+        mHosts.add(mServerAddr);
+        for (String host : sharedPreferences.getString(
+                this.getString(R.string.pref_hosts), "").split("[,\\s]+")) {
+            if (!host.isEmpty()) {
+                mHosts.add(host);
+            }
+        }
+
+        for (String definition : sharedPreferences.getString(
+                this.getString(R.string.pref_macros), "").split("\n")) {
+            if (definition.trim().isEmpty()) {
+                continue;
+            }
+            try {
+                mMacros.add(Macro.parse(definition));
+            } catch (ParseException e) {
+                Log.e(TAG, "Invalid macro: " + e.getMessage());
+            }
+        }
+
+        mMouseGestureWatcher = new MouseGestureWatcher(mInputRouter, mTimerWheel, mTapdelay,
+                                                       mTaptol, mSensitivity, mAcceleration,
+                                                       mScrollThreshold);
+        mSendCharsTextWatcher = new SendCharsTextWatcher(mInputRouter);
 
         initViews();
         setUiToDisconnected();
+        bindService(new Intent(this, ConnectionService.class), mServiceConnection,
+                    Context.BIND_AUTO_CREATE);
     }
 
     private void initViews() {
@@ -101,9 +175,56 @@ public class MainActivity extends AppCompatActivity implements TcpClientObserver
                 mLayoutKeys.setVisibility(mSpecialKeysVisibility);
             }
         });
+        LinearLayout keyList = (LinearLayout)findViewById(R.id.key_list);
+        for (final Macro macro : mMacros) {
+            Button button = new Button(this);
+            button.setText(macro.getLabel());
+            button.setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View v) {
+                    if (mTcpClient != null) {
+                        mTcpClient.sendMacro(macro);
+                    }
+                }
+            });
+            keyList.addView(button);
+        }
+
         mBackgroundImage = (AppCompatImageView)findViewById(R.id.imageview_mouse);
         mBackgroundBorder = (LinearLayout)findViewById(R.id.layout_border);
         mStatusTextView = (TextView)findViewById(R.id.textview_status);
+        mMetricsTextView = (TextView)findViewById(R.id.textview_metrics);
+
+        mLayoutHosts = (HorizontalScrollView)findViewById(R.id.layout_hosts);
+        LinearLayout hostList = (LinearLayout)findViewById(R.id.host_list);
+        for (final String host : mHosts) {
+            Button button = new Button(this);
+            button.setText(host);
+            button.setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View v) {
+                    switchTo(host);
+                }
+            });
+            hostList.addView(button);
+            mHostButtons.add(button);
+        }
+        mLayoutHosts.setVisibility(mHosts.size() > 1 ? View.VISIBLE : View.GONE);
+
+        Button statsButton = (Button)findViewById(R.id.button_stats);
+        statsButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                toggleMetrics();
+            }
+        });
+        statsButton.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                shareMetrics();
+                return true;
+            }
+        });
 
         int[] buttonIds = {R.id.button_esc, R.id.button_tab, R.id.button_ctrl, R.id.button_sup,
                            R.id.button_alt, R.id.button_left, R.id.button_down, R.id.button_up,
@@ -125,10 +246,32 @@ public class MainActivity extends AppCompatActivity implements TcpClientObserver
         for (int i = 0; i < buttonIds.length; ++i) {
             Button button = (Button)findViewById(buttonIds[i]);
             final byte code = buttonCodes[i];
-            button.setOnClickListener(new View.OnClickListener() {
+            if (code == TcpClient.CTRL || code == TcpClient.SUP || code == TcpClient.ALT) {
+                // modifiers wait on the server for the next key instead of being held
+                button.setOnClickListener(new View.OnClickListener() {
+                    @Override
+                    public void onClick(View v) {
+                        mInputRouter.sendSpecialKey(code);
+                    }
+                });
+                continue;
+            }
+            button.setOnTouchListener(new View.OnTouchListener() {
                 @Override
-                public void onClick(View v) {
-                    mTcpClient.sendSpecialKey(code);
+                public boolean onTouch(View v, MotionEvent event) {
+                    switch (MotionEventCompat.getActionMasked(event)) {
+                        case MotionEvent.ACTION_DOWN:
+                            mKeyRepeater.press(code);
+                            break;
+                        case MotionEvent.ACTION_UP:
+                            mKeyRepeater.release(code);
+                            break;
+                        case MotionEvent.ACTION_CANCEL:
+                            mKeyRepeater.cancel(code);
+                            break;
+                    }
+                    // the button still shows the pressed state
+                    return false;
                 }
             });
         }
@@ -148,42 +291,207 @@ public class MainActivity extends AppCompatActivity implements TcpClientObserver
         setUiToDisconnected();
     }
 
+    public void congestionChanged(boolean congested) {
+        if (mTcpClient != null && mTcpClient.isConnected()) {
+            mStatusTextView.setText(congested ? R.string.congested : R.string.connected);
+        }
+    }
+
     @Override
     public boolean onTouchEvent(MotionEvent event){
-        if (mTcpClient.isConnected() && mMouseGestureWatcher != null) {
+        if (mTcpClient != null && mTcpClient.isConnected() && mMouseGestureWatcher != null) {
             return mMouseGestureWatcher.processTouchEvent(event) || super.onTouchEvent(event);
         } else {
             return super.onTouchEvent(event);
         }
     }
 
+    private void toggleMetrics() {
+        if (mMetricsTextView.getVisibility() == View.VISIBLE) {
+            Metrics.setEnabled(false);
+            mHandler.removeCallbacks(mUpdateMetrics);
+            mMetricsTextView.setVisibility(View.GONE);
+        } else {
+            Metrics.reset();
+            Metrics.setEnabled(true);
+            mMetricsTextView.setVisibility(View.VISIBLE);
+            mUpdateMetrics.run();
+        }
+    }
+
+    private String metricsDump() {
+        StringBuilder sb = new StringBuilder(Metrics.dump());
+        if (mTcpClient != null) {
+            sb.append("queue depth ").append(mTcpClient.getQueueDepth())
+              .append(", dropped ").append(mTcpClient.getDroppedFrames())
+              .append(", rejected ").append(mTcpClient.getRejectedFrames());
+        }
+        return sb.toString();
+    }
+
+    private void shareMetrics() {
+        String dump = metricsDump();
+        Log.i(TAG, dump);
+        Intent intent = new Intent(Intent.ACTION_SEND);
+        intent.setType("text/plain");
+        intent.putExtra(Intent.EXTRA_TEXT, dump);
+        startActivity(Intent.createChooser(intent, getString(R.string.share_metrics)));
+    }
+
+    private final Runnable mUpdateMetrics = new Runnable() {
+        @Override
+        public void run() {
+            mMetricsTextView.setText(metricsDump());
+            mHandler.postDelayed(this, METRICS_INTERVAL);
+        }
+    };
+
     @Override
     protected void onPause() {
-        if (DEBUG) {
-            Log.d(TAG, "Disconnecting due to onPause()");
-        }
         super.onPause();
-        mTcpClient.disconnect();
-        mBufferEdit.removeTextChangedListener(mSendCharsTextWatcher);
-        mTcpClient = null;
-        mSendCharsTextWatcher = null;
-        mMouseGestureWatcher = null;
+        mResumed = false;
+        mHandler.removeCallbacks(mUpdateMetrics);
+        mKeyRepeater.releaseAll();
+        if (mTcpClient != null) {
+            mBufferEdit.removeTextChangedListener(mSendCharsTextWatcher);
+        }
+        stopRecording();
+        if (mConnectionService != null) {
+            if (DEBUG) {
+                Log.d(TAG, "Detaching from connection due to onPause()");
+            }
+            mConnectionService.detach(isFinishing() ? 0 : mGracePeriod);
+        }
     }
 
     @Override
     protected void onResume() {
+        super.onResume();
+        mResumed = true;
+        if (mMetricsTextView.getVisibility() == View.VISIBLE) {
+            mUpdateMetrics.run();
+        }
+        if (mRecordInput) {
+            startRecording();
+        }
+        if (mConnectionService != null) {
+            attachToConnection();
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        unbindService(mServiceConnection);
+        super.onDestroy();
+    }
+
+    private void attachToConnection() {
         if (DEBUG) {
-            Log.d(TAG, "Connect due to onResume()");
+            Log.d(TAG, "Attaching to connection");
         }
-        super.onResume();
-        mTcpClient = new TcpClient(mServerAddr, mPort, this);
-        mMouseGestureWatcher = new MouseGestureWatcher(mTcpClient, mTapdelay, mTaptol, mSensitivity,
-                                                       mAcceleration, mScrollThreshold);
-        mSendCharsTextWatcher = new SendCharsTextWatcher(mTcpClient);
+        setTcpClient(mConnectionService.attach(mServerAddr, mPort, mHeartbeatInterval,
+                                               mWriteTimeout, mUseDatagrams, mHosts,
+                                               mIdleTimeout, this));
+        mMouseGestureWatcher.setRecorder(mRecorder);
+        mSendCharsTextWatcher.setRecorder(mRecorder);
         mBufferEdit.addTextChangedListener(mSendCharsTextWatcher);
-        mTcpClient.connect();
     }
 
+    /**
+     * Sends all further input to host.  The connection is usually open already, so the input
+     * goes out right away.
+     */
+    private void switchTo(String host) {
+        if (mConnectionService == null || host.equals(mServerAddr)) {
+            return;
+        }
+        if (DEBUG) {
+            Log.d(TAG, "Switching to " + host + (mConnectionService.isOpen(host)
+                                                 ? "" : ", not connected yet"));
+        }
+        mKeyRepeater.releaseAll();
+        mServerAddr = host;
+        // A recreated activity comes back to this host
+        getIntent().putExtra(ConnectActivity.SERVERADDR, host);
+        setTcpClient(mConnectionService.switchTo(host));
+    }
+
+    private void setTcpClient(TcpClient tcpClient) {
+        mTcpClient = tcpClient;
+        mInputRouter.setTarget(mTcpClient);
+        mTcpClient.setScrollFrames(mScrollFrames);
+        int i = 0;
+        for (String host : mHosts) {
+            mHostButtons.get(i++).setEnabled(!host.equals(mServerAddr));
+        }
+        if (mTcpClient.isConnected()) {
+            setUiToConnected();
+            congestionChanged(mTcpClient.isCongested());
+        } else {
+            setUiToDisconnected();
+        }
+    }
+
+    /**
+     * Directory of the recorded input traces.  It is private to the app, since the traces
+     * contain everything that was typed, and the traces only leave it when they are shared
+     * from the settings.
+     */
+    static File traceDir(Context context) {
+        return new File(context.getFilesDir(), "traces");
+    }
+
+    /**
+     * Records the input of this session into a new trace file in the trace directory.
+     */
+    private void startRecording() {
+        File dir = traceDir(this);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.e(TAG, "Could not create trace directory " + dir);
+            return;
+        }
+        File file = new File(dir, "input-" + System.currentTimeMillis() + ".trace");
+        try {
+            mRecorder = new InputTrace.Writer(new FileOutputStream(file), mTapdelay, mTaptol,
+                                              mSensitivity, mAcceleration, mScrollThreshold);
+            mRecorder.textReset(SystemClock.uptimeMillis(), mBufferEdit.getText());
+        } catch (IOException e) {
+            Log.e(TAG, "Could not create input trace " + file + ": " + e.getMessage());
+            mRecorder = null;
+        }
+    }
+
+    private void stopRecording() {
+        if (mRecorder == null) {
+            return;
+        }
+        if (mMouseGestureWatcher != null) {
+            mMouseGestureWatcher.setRecorder(null);
+            mSendCharsTextWatcher.setRecorder(null);
+        }
+        try {
+            mRecorder.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not close input trace: " + e.getMessage());
+        }
+        mRecorder = null;
+    }
+
+    private final ServiceConnection mServiceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            mConnectionService = ((ConnectionService.LocalBinder)service).getService();
+            if (mResumed) {
+                attachToConnection();
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            mConnectionService = null;
+        }
+    };
+
     private void setUiToDisconnected() {
         mBufferEdit.setEnabled(false);
         mBufferEdit.setAlpha(0.38f);
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2017  Dennis Dast
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.ddast.xandra;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process wide counters and histograms of the input pipeline.  Recording is off by default;
+ * every recording site checks isEnabled() first, so that a disabled metrics surface costs one
+ * volatile read and no clock reads.
+ *
+ * Frames are counted by type where they are encoded, since a queue slot may hold several
+ * frames of different types.  A macro is counted as one frame.
+ */
+final class Metrics {
+    static final int MOUSE     = 0;
+    static final int KEY       = 1;
+    static final int TEXT      = 2;
+    static final int SCROLL    = 3;
+    static final int MACRO     = 4;
+    static final int HELLO     = 5;
+    static final int HEARTBEAT = 6;
+    static final int DATAGRAM  = 7;
+    private static final String[] TYPE_NAMES = {"mouse", "key", "text", "scroll", "macro",
+                                                "hello", "heartbeat", "datagram"};
+
+    static final Histogram QUEUE_WAIT = new Histogram("queue wait");
+    static final Histogram ENCODE     = new Histogram("encode");
+    static final Histogram WRITE      = new Histogram("write");
+
+    private static volatile boolean sEnabled = false;
+    private static final AtomicLongArray sFrames = new AtomicLongArray(TYPE_NAMES.length);
+    private static final AtomicLongArray sBytes = new AtomicLongArray(TYPE_NAMES.length);
+    private static final AtomicLong sReconnects = new AtomicLong();
+    private static volatile long sSince = System.nanoTime();
+
+    private Metrics() {}
+
+    static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    static void countFrames(int type, int frames, int bytes) {
+        sFrames.addAndGet(type, frames);
+        sBytes.addAndGet(type, bytes);
+    }
+
+    static void countReconnect() {
+        sReconnects.incrementAndGet();
+    }
+
+    static void reset() {
+        for (int i = 0; i < TYPE_NAMES.length; ++i) {
+            sFrames.set(i, 0);
+            sBytes.set(i, 0);
+        }
+        sReconnects.set(0);
+        QUEUE_WAIT.reset();
+        ENCODE.reset();
+        WRITE.reset();
+        sSince = System.nanoTime();
+    }
+
+    /**
+     * Returns all metrics as human readable text.
+     */
+    static String dump() {
+        StringBuilder sb = new StringBuilder();
+        double seconds = (System.nanoTime() - sSince)/1e9;
+        sb.append(String.format(Locale.US, "%-10s %10s %12s %10s\n", "type", "frames", "bytes",
+                                "frames/s"));
+        for (int i = 0; i < TYPE_NAMES.length; ++i) {
+            sb.append(String.format(Locale.US, "%-10s %10d %12d %10.1f\n", TYPE_NAMES[i],
+                                    sFrames.get(i), sBytes.get(i), sFrames.get(i)/seconds));
+        }
+        QUEUE_WAIT.appendTo(sb);
+        ENCODE.appendTo(sb);
+        WRITE.appendTo(sb);
+        sb.append("reconnects ").append(sReconnects.get()).append('\n');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2017  Dennis Dast
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.ddast.xandra;
+
+/**
+ * Polynomial pointer acceleration applied to the finger movement of one axis.
+ *
+ * The accelerated output velocity 10^(a-1) * v^a is precomputed for input velocities v up to
+ * MAX_TABLE_VELOCITY and linearly interpolated, so the per event cost does not include
+ * Math.pow.  The table is indexed by sqrt(v), which makes the curve smooth at v = 0 and puts
+ * most entries at the slow, precise movements.  Faster movements fall back to the exact
+ * formula.
+ */
+class MouseAcceleration {
+    static final double MAX_TABLE_VELOCITY = 32.0;  // px/ms
+    static final int STEPS                 = 256;   // table entries per unit of sqrt(v)
+
+    private final float mSensitivity, mAcceleration;
+    private final double mScale;
+    private final double[] mTable;
+
+    MouseAcceleration(float sensitivity, float acceleration) {
+        mSensitivity = sensitivity;
+        mAcceleration = acceleration;
+        mScale = Math.pow(10.0, acceleration - 1.0);
+        mTable = new double[(int)(Math.sqrt(MAX_TABLE_VELOCITY)*STEPS) + 2];
+        for (int i = 0; i < mTable.length; ++i) {
+            mTable[i] = mScale*Math.pow((double)i/STEPS, 2.0*mAcceleration);
+        }
+    }
+
+    double acceleratedMovement(float len, long time) {
+        if (time <= 0) {
+            return 0.0;
+        }
+        double velocity = Math.abs(len)/time;
+        double pos = Math.sqrt(velocity)*STEPS;
+        double accelerated;
+        if (pos < mTable.length - 1) {
+            int i = (int)pos;
+            accelerated = mTable[i] + (pos - i)*(mTable[i+1] - mTable[i]);
+        } else {
+            accelerated = mScale*Math.pow(velocity, mAcceleration);
+        }
+        return (len < 0.0f ? -accelerated : accelerated)*time;
+    }
+
+    double movement(float len, long time) {
+        return mSensitivity*acceleratedMovement(len, time);
+    }
+
+    int mouseMovement(float len, long time) {
+        return (int) Math.round(movement(len, time));
+    }
+}
@@ -17,200 +17,61 @@
 
 package de.ddast.xandra;
 
-import android.os.CountDownTimer;
 import android.support.v4.view.MotionEventCompat;
+import android.util.Log;
 import android.view.MotionEvent;
 
+import java.io.IOException;
+
+/**
+ * Feeds the MotionEvents of the touch pad into a GestureEngine.  Every event can additionally
+ * be recorded into an InputTrace.
+ */
 class MouseGestureWatcher {
-    private final long mTapdelay;
-    private final float mTaptol, mSensitivity, mAcceleration, mScrollThreshold;
-    private final TcpClient mTcpClient;
-    private final CountDownTimer mLeftClickCountDown;
-    private final CountDownTimer mRightClickCountDown;
-    private int mPointerID1 = MotionEvent.INVALID_POINTER_ID;
-    private int mPointerID2 = MotionEvent.INVALID_POINTER_ID;
-    private float initX, initY, mOldX, mOldY, mOldY2;
-    private double accumulatedDiffY;
-    private long mDownEventTime, oldTime;
-    private boolean isMultiTouchGesture, isDragAndDrop;
+    private static final String TAG = "MouseGestureWatcher";
 
-    MouseGestureWatcher(TcpClient tcpClient, long tapdelay, float taptol, float sensitivity,
-                        float acceleration, float scrollThreshold) {
-        mTcpClient = tcpClient;
-        mTapdelay = tapdelay;
-        mTaptol = taptol;
-        mSensitivity = sensitivity;
-        mAcceleration = acceleration;
-        mScrollThreshold = scrollThreshold;
+    private final GestureEngine mGestureEngine;
+    private final TouchEvent mTouchEvent = new TouchEvent();
+    private InputTrace.Writer mRecorder = null;
 
-        mLeftClickCountDown = new CountDownTimer(mTapdelay, 2*mTapdelay) {
-            @Override
-            public void onTick(long millisUntilFinished) {}
-            @Override
-            public void onFinish() {
-                isDragAndDrop = false;
-                mTcpClient.sendSpecialKey(TcpClient.LEFTMOUSEUP);
-            }
-        };
+    MouseGestureWatcher(InputSink sink, TimerWheel timerWheel, long tapdelay, float taptol,
+                        float sensitivity, float acceleration, float scrollThreshold) {
+        mGestureEngine = new GestureEngine(sink, timerWheel, tapdelay, taptol, sensitivity,
+                                           acceleration, scrollThreshold);
+    }
 
-        mRightClickCountDown = new CountDownTimer(2*mTapdelay, 3*mTapdelay) {
-            @Override
-            public void onTick(long millisUntilFinished) {}
-            @Override
-            public void onFinish() {
-                if (singleTouchHasNotMoved()) {
-                    isDragAndDrop = false;
-                    mTcpClient.sendSpecialKey(TcpClient.RIGHTCLICK);
-                }
-            }
-        };
+    void setRecorder(InputTrace.Writer recorder) {
+        mRecorder = recorder;
     }
 
     boolean processTouchEvent(MotionEvent event) {
-        int action = MotionEventCompat.getActionMasked(event);
-
-        switch(action) {
-            case (MotionEvent.ACTION_DOWN): {
-                isMultiTouchGesture = false;
-                initFirstPointer(event);
-                mRightClickCountDown.start();
-                return true;
-            }
-            case (MotionEvent.ACTION_POINTER_DOWN): {
-                isMultiTouchGesture = true;
-                if (event.getPointerCount() == 2) {
-                    initSecondPointer(event);
-                }
-                return true;
-            }
-            case (MotionEvent.ACTION_MOVE): {
-                if (isDragAndDrop) {
-                    mLeftClickCountDown.cancel();
-                }
-                sendMouseOrScrollEvent(event);
-                return true;
-            }
-            case (MotionEvent.ACTION_POINTER_UP): {
-                rearrangePointerIDs(event);
-                return true;
-            }
-            case (MotionEvent.ACTION_UP): {
-                mRightClickCountDown.cancel();
-                if (isDragAndDrop) {
-                    mLeftClickCountDown.cancel();
-                    isDragAndDrop = false;
-                    mTcpClient.sendSpecialKey(TcpClient.LEFTMOUSEUP);
-                }
-                if (isSingleTouchTap(event)) {
-                    mTcpClient.sendSpecialKey(TcpClient.LEFTMOUSEDOWN);
-                    isDragAndDrop = true;
-                    mLeftClickCountDown.start();
-                }
-                mPointerID1 = MotionEvent.INVALID_POINTER_ID;
-                return true;
-            }
-            case (MotionEvent.ACTION_CANCEL): {
-                mLeftClickCountDown.cancel();
-                mRightClickCountDown.cancel();
-                mPointerID1 = MotionEvent.INVALID_POINTER_ID;
-                mPointerID2 = MotionEvent.INVALID_POINTER_ID;
-                return true;
-            }
-            default:
-                return false;
+        final int pointerCount = event.getPointerCount();
+        final int historySize = event.getHistorySize();
+        mTouchEvent.set(MotionEventCompat.getActionMasked(event), event.getActionIndex(),
+                        pointerCount, historySize);
+        for (int i = 0; i < pointerCount; ++i) {
+            mTouchEvent.setPointerId(i, event.getPointerId(i));
         }
-    }
-
-    private double acceleratedMouseMovement(float len, long time) {
-        double velocity = (len < 0.0f ? -1.0 : 1.0)
-                * Math.pow(Math.abs(10.0*len/time), mAcceleration);
-        return velocity*time/10.0;
-    }
-
-    private int calcMouseMovement(float len, long time) {
-        return (int) Math.round(mSensitivity*acceleratedMouseMovement(len, time));
-    }
-
-    private void initFirstPointer(MotionEvent event) {
-        final int pointerIndex = event.getActionIndex();
-        mPointerID1 = event.getPointerId(pointerIndex);
-        initX = mOldX = event.getX(pointerIndex);
-        initY = mOldY = event.getY(pointerIndex);
-        mDownEventTime = oldTime = event.getEventTime();
-    }
-
-    private void initSecondPointer(MotionEvent event) {
-        final int pointerIndex = event.getActionIndex();
-        mPointerID2 = event.getPointerId(pointerIndex);
-        mOldY2 = event.getY(pointerIndex);
-        accumulatedDiffY = 0.0;
-    }
-
-    private void sendMouseOrScrollEvent(MotionEvent event) {
-        final int pointerIndex = event.findPointerIndex(mPointerID1);
-        float diffX = event.getX(pointerIndex) - mOldX;
-        float diffY = event.getY(pointerIndex) - mOldY;
-        mOldX = event.getX(pointerIndex);
-        mOldY = event.getY(pointerIndex);
-        long diffT = event.getEventTime() - oldTime;
-        oldTime = event.getEventTime();
-        if (event.getPointerCount() == 1) {
-            mTcpClient.sendMouse(calcMouseMovement(diffX, diffT),
-                    calcMouseMovement(diffY, diffT));
-        } else if (event.getPointerCount() == 2) {
-            final int pointerIndex2 = event.findPointerIndex(mPointerID2);
-            float diffY2 = event.getY(pointerIndex2) - mOldY2;
-            mOldY2 = event.getY(pointerIndex2);
-            float maxDiffY = Math.abs(diffY) > Math.abs(diffY2) ? diffY : diffY2;
-            accumulatedDiffY += acceleratedMouseMovement(maxDiffY, diffT);
-            while (accumulatedDiffY < -mScrollThreshold) {
-                mTcpClient.sendSpecialKey(TcpClient.WHEELUP);
-                accumulatedDiffY += mScrollThreshold;
-            }
-            while (accumulatedDiffY > mScrollThreshold) {
-                mTcpClient.sendSpecialKey(TcpClient.WHEELDOWN);
-                accumulatedDiffY -= mScrollThreshold;
+        for (int pos = 0; pos < historySize; ++pos) {
+            mTouchEvent.setEventTime(pos, event.getHistoricalEventTime(pos));
+            for (int i = 0; i < pointerCount; ++i) {
+                mTouchEvent.setPosition(i, pos, event.getHistoricalX(i, pos),
+                                        event.getHistoricalY(i, pos));
             }
         }
-    }
-
-    private void rearrangePointerIDs(MotionEvent event) {
-        final int pointerIndex = event.getActionIndex();
-        final int pointerId = event.getPointerId(pointerIndex);
-        if (pointerId != mPointerID1 && pointerId != mPointerID2) {
-            return;
-        }
-        if (pointerId == mPointerID1) {
-            mPointerID1 = mPointerID2;
-            final int pointerIndex1 = event.findPointerIndex(mPointerID1);
-            mOldX = event.getX(pointerIndex1);
-            mOldY = event.getY(pointerIndex1);
-            mPointerID2 = MotionEvent.INVALID_POINTER_ID;
+        mTouchEvent.setEventTime(historySize, event.getEventTime());
+        for (int i = 0; i < pointerCount; ++i) {
+            mTouchEvent.setPosition(i, historySize, event.getX(i), event.getY(i));
         }
-        if (event.getPointerCount() > 2) {
-            final int pointerIndex1 = event.findPointerIndex(mPointerID1);
-            int newPointerIndex = MotionEvent.INVALID_POINTER_ID;
-            for (int i = 0; i < event.getPointerCount(); ++i) {
-                if (i != pointerIndex && i != pointerIndex1) {
-                    newPointerIndex = i;
-                    break;
-                }
+
+        if (mRecorder != null) {
+            try {
+                mRecorder.touchEvent(mTouchEvent);
+            } catch (IOException e) {
+                Log.e(TAG, "Recording input trace failed: " + e.getMessage());
+                mRecorder = null;
             }
-            mPointerID2 = event.getPointerId(newPointerIndex);
-            mOldY2 = event.getY(newPointerIndex);
         }
+        return mGestureEngine.processTouchEvent(mTouchEvent);
     }
-
-    private boolean isSingleTouchTap(MotionEvent event) {
-        final int pointerIndex = event.findPointerIndex(mPointerID1);
-        mOldX = event.getX(pointerIndex);
-        mOldY = event.getY(pointerIndex);
-        return singleTouchHasNotMoved() && (event.getEventTime() - mDownEventTime < mTapdelay);
-    }
-
-    private boolean singleTouchHasNotMoved() {
-        return (!isMultiTouchGesture &&
-                (Math.abs(mOldX - initX) < mTaptol) &&
-                (Math.abs(mOldY - initY) < mTaptol));
-    }
-}
\ No newline at end of file
+}
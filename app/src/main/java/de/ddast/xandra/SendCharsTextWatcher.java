@@ -17,42 +17,32 @@
 
 package de.ddast.xandra;
 
+import android.os.SystemClock;
 import android.text.Editable;
 import android.text.TextWatcher;
 import android.util.Log;
 
+import java.io.IOException;
+
+/**
+ * Passes the changes of the input field to a TextInput and applies the resets it requests.
+ * The callbacks can additionally be recorded into an InputTrace; the callbacks caused by a
+ * reset are not recorded, since a replay performs the reset itself.
+ */
 class SendCharsTextWatcher implements TextWatcher {
     private static final String TAG    = "SendCharsTextWatcher";
     private static final boolean DEBUG = false;
 
-    private boolean ignore = false;
-    private CharSequence textBefore;
-    private TcpClient mTcpClient;
+    private final TextInput mTextInput;
+    private boolean mResetting = false;
+    private InputTrace.Writer mRecorder = null;
 
-    private class TextChangedInfo {
-        TextChangedInfo(int start, int before, int count) {
-            this.start = start;
-            this.before = before;
-            this.count = count;
-        }
-        int start, before, count;
+    SendCharsTextWatcher(InputSink sink) {
+        mTextInput = new TextInput(sink);
     }
 
-    SendCharsTextWatcher(TcpClient tcpClient) {
-        mTcpClient = tcpClient;
-    }
-
-    private void getActualChanges(CharSequence s, TextChangedInfo changeInfo) {
-        int lastIndex = changeInfo.start+Math.min(changeInfo.before, changeInfo.count);
-        for (int i = changeInfo.start; i < lastIndex; ++i) {
-            if (s.charAt(i) == textBefore.charAt(i)) {
-                --changeInfo.before;
-                --changeInfo.count;
-                ++changeInfo.start;
-            } else {
-                break;
-            }
-        }
+    void setRecorder(InputTrace.Writer recorder) {
+        mRecorder = recorder;
     }
 
     @Override
@@ -60,10 +50,20 @@ class SendCharsTextWatcher implements TextWatcher {
         if (DEBUG) {
             Log.d(TAG, "afterTextChanged() " + s.toString());
         }
-        // s must not be empty.  It always contains one space to detect further backspace input.
-        if (s.toString().contains("\n") || s.length() == 0) {
-            ignore = true;
-            s.replace(0, s.length(), " ", 0, 1);
+        if (mResetting) {
+            return;
+        }
+        if (mRecorder != null) {
+            try {
+                mRecorder.afterTextChanged(SystemClock.uptimeMillis());
+            } catch (IOException e) {
+                recordingFailed(e);
+            }
+        }
+        if (mTextInput.afterTextChanged(s)) {
+            mResetting = true;
+            s.replace(0, s.length(), TextInput.RESET_TEXT, 0, TextInput.RESET_TEXT.length());
+            mResetting = false;
         }
     }
 
@@ -76,7 +76,14 @@ class SendCharsTextWatcher implements TextWatcher {
                     + String.valueOf(count) + " "
                     + String.valueOf(after));
         }
-        textBefore = s;
+        if (mRecorder != null && !mResetting) {
+            try {
+                mRecorder.beforeTextChanged(SystemClock.uptimeMillis(), start, count, after);
+            } catch (IOException e) {
+                recordingFailed(e);
+            }
+        }
+        mTextInput.beforeTextChanged(s, start, count);
     }
 
     @Override
@@ -88,24 +95,18 @@ class SendCharsTextWatcher implements TextWatcher {
                     + String.valueOf(before) + " "
                     + String.valueOf(count));
         }
-        if (ignore) {
-            ignore = false;
-            return;
-        }
-        TextChangedInfo tci = new TextChangedInfo(start, before, count);
-        getActualChanges(s, tci);
-        if (DEBUG) {
-            Log.d(TAG, "actualChanges "
-                    + s.toString() + " "
-                    + String.valueOf(tci.start) + " "
-                    + String.valueOf(tci.before) + " "
-                    + String.valueOf(tci.count));
-        }
-        for (int i = 0; i < tci.before; ++i) {
-            mTcpClient.sendSpecialKey(TcpClient.BACKSPACE);
-        }
-        if (tci.count > 0) {
-            mTcpClient.sendUTF8(s.subSequence(tci.start, tci.start + tci.count).toString());
+        if (mRecorder != null && !mResetting) {
+            try {
+                mRecorder.textChanged(SystemClock.uptimeMillis(), s, start, before, count);
+            } catch (IOException e) {
+                recordingFailed(e);
+            }
         }
+        mTextInput.onTextChanged(s, start, before, count);
+    }
+
+    private void recordingFailed(IOException e) {
+        Log.e(TAG, "Recording input trace failed: " + e.getMessage());
+        mRecorder = null;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,607 @@
+/*
+ * Copyright (C) 2017  Dennis Dast
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.ddast.xandra;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ring buffer of preallocated frame slots shared by the UI thread (producer) and the
+ * FrameSender thread (consumer).  Frames are copied into the slots, so enqueuing does not
+ * allocate.  Frames longer than one slot (UTF-8 text) occupy several consecutive slots.
+ *
+ * Mouse movements are stored as plain deltas and only encoded when taken, which allows a
+ * movement to be merged into a still pending mouse frame while the socket is busy.  They are
+ * encoded as compact motion frames once setCompactMotion() was called.
+ *
+ * The queue is bounded and only ever drops mouse movements: a mouse frame that waited longer
+ * than MOUSE_STALE_MILLIS is discarded instead of being sent, so that the cursor does not
+ * jump once a stalled link recovers, and queued mouse frames are evicted to make room for
+ * other frames.  Key and text frames are only rejected if the queue is full of them, in
+ * which case the link is dead and the write timeout will reset the connection.  The queue
+ * is congested while the oldest frame that was not written yet, including the batch the
+ * FrameSender is writing, is older than CONGESTION_MILLIS.
+ *
+ * Text of at least BULK_THRESHOLD chars (e.g. a paste) is not put into the slots but into a
+ * backlog, from which drainTo takes at most BULK_CHUNK_SLOTS slots per batch after all
+ * pending frames.  Mouse and special key frames offered later are thus sent in between the
+ * chunks.  The server does not acknowledge anything, so the backlog is additionally limited
+ * to BULK_RATE bytes per second; otherwise it would fill the socket buffers and every
+ * following mouse frame would have to wait until the server has consumed them.  Text
+ * offered while the backlog is not empty is appended to it to keep the order, backspaces
+ * remove unsent characters from its end.
+ *
+ * A block of frames offered with offerBlock() is never split across batches, so that it is
+ * sent with one write and no bulk text ends up in the middle of it.  It waits until the text
+ * that was in the backlog when it was offered has been sent, text offered after it is only
+ * sent after it, and backspaces offered after it do not remove text before it.
+ */
+class SendQueue {
+    interface Listener {
+        /**
+         * Called with the queue locked, from the thread that caused the change.
+         */
+        void congestionChanged(boolean congested);
+    }
+
+    /**
+     * Source of the monotonic time used for staleness, congestion, the bulk rate and the
+     * timeout of drainTo().  The waits in drainTo() take real time, the timeout is checked
+     * against the clock after each of them.
+     */
+    interface Clock {
+        long nanoTime();
+    }
+
+    static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    static final int SLOT_SIZE = 64;
+    static final int SLOT_COUNT = 512;
+    static final int BULK_THRESHOLD = 1024;
+    static final int BULK_CHUNK_SLOTS = 16;
+    static final int BULK_RATE = 32*1024;
+    static final int MAX_BLOCK_SLOTS = 16;
+    static final int MAX_BLOCK_SIZE = MAX_BLOCK_SLOTS*SLOT_SIZE;
+    static final long MOUSE_STALE_MILLIS = 200L;
+    static final long CONGESTION_MILLIS = 500L;
+
+    private static final byte TYPE_RAW   = 0;
+    private static final byte TYPE_MOUSE = 1;
+    private static final byte TYPE_TEXT  = 2;
+    private static final byte TYPE_BLOCK = 3;
+
+    private static final long MOUSE_STALE_NANOS = TimeUnit.MILLISECONDS.toNanos(
+            MOUSE_STALE_MILLIS);
+    private static final long CONGESTION_NANOS = TimeUnit.MILLISECONDS.toNanos(
+            CONGESTION_MILLIS);
+
+    private final Clock mClock;
+    private final byte[][] mSlots = new byte[SLOT_COUNT][SLOT_SIZE];
+    private final int[] mLengths = new int[SLOT_COUNT];
+    private final byte[] mTypes = new byte[SLOT_COUNT];
+    private final int[] mMouseX = new int[SLOT_COUNT];
+    private final int[] mMouseY = new int[SLOT_COUNT];
+    private final long[] mTimes = new long[SLOT_COUNT];
+    private final int[] mBlockSlots = new int[SLOT_COUNT];
+    private final long[] mBlockMarks = new long[SLOT_COUNT];
+    private int mHead = 0;
+    private int mSize = 0;
+    private final StringBuilder mBulk = new StringBuilder();
+    private int mBulkPos = 0;
+    private long mBulkSent = 0;     // chars taken from the backlog since the start
+    private long mBulkBarrier = 0;  // mBulkSent once the text before the last block is sent
+    private long mBulkCredit;       // bytes * 1000
+    private long mBulkRefillTime;
+    private boolean mClosed = false;
+    private boolean mWriting = false;
+    private long mWritingSince;
+    private boolean mCongested = false;
+    private Listener mListener = null;
+    private boolean mCompactMotion = false;
+    private int mMaxMouseDelta = FrameCodec.MAX_MOUSE_DELTA;
+    private long mDroppedMouse = 0;
+    private long mRejected = 0;
+
+    SendQueue() {
+        this(SYSTEM_CLOCK);
+    }
+
+    SendQueue(Clock clock) {
+        mClock = clock;
+    }
+
+    Clock getClock() {
+        return mClock;
+    }
+
+    synchronized void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Encodes mouse movements as compact motion frames instead of legacy mouse frames.  Queued
+     * movements that exceed the legacy range when switching back are saturated.
+     */
+    synchronized void setCompactMotion(boolean compactMotion) {
+        mCompactMotion = compactMotion;
+        mMaxMouseDelta = compactMotion ? FrameCodec.MAX_MOTION_DELTA
+                                       : FrameCodec.MAX_MOUSE_DELTA;
+    }
+
+    /**
+     * Number of occupied slots.
+     */
+    synchronized int getDepth() {
+        return mSize;
+    }
+
+    /**
+     * Number of mouse frames that were discarded because they were stale or to make room.
+     */
+    synchronized long getDroppedMouse() {
+        return mDroppedMouse;
+    }
+
+    /**
+     * Number of offers that were rejected because the queue was full.
+     */
+    synchronized long getRejected() {
+        return mRejected;
+    }
+
+    synchronized boolean isCongested() {
+        return mCongested;
+    }
+
+    /**
+     * Copies len bytes starting at src[off] into the queue.  The frame is either enqueued
+     * completely or not at all.
+     *
+     * @return false if the queue is closed or has not enough free slots
+     */
+    synchronized boolean offer(byte[] src, int off, int len) {
+        if (mClosed || !makeRoom((len + SLOT_SIZE - 1) / SLOT_SIZE)) {
+            return false;
+        }
+        long now = mClock.nanoTime();
+        int tail = (mHead + mSize) % SLOT_COUNT;
+        while (len > 0) {
+            int n = Math.min(len, SLOT_SIZE);
+            System.arraycopy(src, off, mSlots[tail], 0, n);
+            mLengths[tail] = n;
+            mTypes[tail] = TYPE_RAW;
+            mTimes[tail] = now;
+            off += n;
+            len -= n;
+            tail = (tail + 1) % SLOT_COUNT;
+            ++mSize;
+        }
+        updateCongestion(now);
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Copies the frames in src[off..off+len) into the queue as a block that drainTo() only
+     * returns as a whole.  The block is either enqueued completely or not at all.
+     *
+     * @return false if the queue is closed or has not enough free slots
+     */
+    synchronized boolean offerBlock(byte[] src, int off, int len) {
+        if (len > MAX_BLOCK_SIZE) {
+            throw new IllegalArgumentException("Block of " + len + " bytes");
+        }
+        int slots = (len + SLOT_SIZE - 1) / SLOT_SIZE;
+        if (!offer(src, off, len)) {
+            return false;
+        }
+        int first = (mHead + mSize - slots) % SLOT_COUNT;
+        mTypes[first] = TYPE_BLOCK;
+        mBlockSlots[first] = slots;
+        mBulkBarrier = mBulkSent + mBulk.length() - mBulkPos;
+        mBlockMarks[first] = mBulkBarrier;
+        return true;
+    }
+
+    /**
+     * Encodes s[start..end) as UTF-8 directly into the queue.  Code points are never split
+     * across slots.  The text is either enqueued completely or not at all.
+     *
+     * @return false if the queue is closed or has not enough free slots
+     */
+    synchronized boolean offerText(CharSequence s, int start, int end) {
+        return offerEdit((byte)0, 0, s, start, end);
+    }
+
+    /**
+     * Enqueues deletions special key frames followed by s[start..end) as UTF-8.  The edit is
+     * either enqueued completely or not at all, so the FrameSender takes it in one batch
+     * unless the text goes to the bulk backlog.
+     *
+     * @return false if the queue is closed or has not enough free slots
+     */
+    synchronized boolean offerEdit(byte deleteKey, int deletions, CharSequence s, int start,
+                                   int end) {
+        if (mClosed) {
+            return false;
+        }
+        // deletions left over while the backlog is not empty stopped at a pending block, they
+        // are queued behind it and the text stays in the backlog after them
+        deletions = deleteFromBulk(deletions);
+        boolean bulk = hasBulk() || end - start >= BULK_THRESHOLD;
+        int keysPerSlot = SLOT_SIZE / FrameCodec.SPECIAL_KEY_FRAME_SIZE;
+        int needed = (deletions + keysPerSlot - 1) / keysPerSlot
+                     + (bulk ? 0 : textSlots(s, start, end));
+        if (!makeRoom(needed)) {
+            return false;
+        }
+        long now = mClock.nanoTime();
+        if (deletions > 0 && Metrics.isEnabled()) {
+            Metrics.countFrames(Metrics.KEY, deletions,
+                                deletions*FrameCodec.SPECIAL_KEY_FRAME_SIZE);
+        }
+        while (deletions > 0) {
+            int tail = (mHead + mSize) % SLOT_COUNT;
+            int n = Math.min(deletions, keysPerSlot);
+            int pos = 0;
+            for (int i = 0; i < n; ++i) {
+                pos += FrameCodec.encodeSpecialKey(mSlots[tail], pos, deleteKey);
+            }
+            mLengths[tail] = pos;
+            mTypes[tail] = TYPE_RAW;
+            mTimes[tail] = now;
+            deletions -= n;
+            ++mSize;
+        }
+        if (bulk) {
+            if (!hasBulk()) {
+                mBulkCredit = BULK_CHUNK_SLOTS*SLOT_SIZE*1000L;
+                mBulkRefillTime = currentMillis();
+            }
+            mBulk.append(s, start, end);
+        } else {
+            putText(s, start, end, now);
+        }
+        updateCongestion(now);
+        notifyAll();
+        return true;
+    }
+
+    private boolean hasBulk() {
+        return mBulkPos < mBulk.length();
+    }
+
+    /**
+     * Returns the milliseconds until the next bulk slot may be sent, or 0 if it may be sent
+     * now.
+     */
+    private long bulkDelay() {
+        long now = currentMillis();
+        mBulkCredit = Math.min(BULK_CHUNK_SLOTS*SLOT_SIZE*1000L,
+                               mBulkCredit + (now - mBulkRefillTime)*BULK_RATE);
+        mBulkRefillTime = now;
+        long missing = SLOT_SIZE*1000L - mBulkCredit;
+        return missing <= 0 ? 0 : missing/BULK_RATE + 1;
+    }
+
+    private long currentMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mClock.nanoTime());
+    }
+
+    /**
+     * Removes up to deletions unsent code points from the end of the backlog, but none that
+     * were offered before a block that is still pending.
+     *
+     * @return number of deletions left
+     */
+    private int deleteFromBulk(int deletions) {
+        int first = mBulkPos + (int)Math.max(0, mBulkBarrier - mBulkSent);
+        while (deletions > 0 && mBulk.length() > first) {
+            int len = mBulk.length();
+            int n = Character.isLowSurrogate(mBulk.charAt(len - 1)) && len - 2 >= first
+                    && Character.isHighSurrogate(mBulk.charAt(len - 2)) ? 2 : 1;
+            mBulk.setLength(len - n);
+            --deletions;
+        }
+        if (!hasBulk()) {
+            mBulk.setLength(0);
+            mBulkPos = 0;
+        }
+        return deletions;
+    }
+
+    private static int textSlots(CharSequence s, int start, int end) {
+        int len = FrameCodec.utf8Length(s, start, end);
+        int usable = SLOT_SIZE - FrameCodec.MAX_CODE_POINT_SIZE + 1;
+        return (len + usable - 1) / usable;
+    }
+
+    private void putText(CharSequence s, int start, int end, long now) {
+        int tail = (mHead + mSize) % SLOT_COUNT;
+        int pos = 0;
+        for (int i = start; i < end; i += FrameCodec.charCount(s, i, end)) {
+            if (pos > SLOT_SIZE - FrameCodec.MAX_CODE_POINT_SIZE) {
+                mLengths[tail] = pos;
+                mTypes[tail] = TYPE_TEXT;
+                mTimes[tail] = now;
+                tail = (tail + 1) % SLOT_COUNT;
+                ++mSize;
+                pos = 0;
+            }
+            pos += FrameCodec.encodeUtf8Char(s, i, end, mSlots[tail], pos);
+        }
+        if (pos > 0) {
+            mLengths[tail] = pos;
+            mTypes[tail] = TYPE_TEXT;
+            mTimes[tail] = now;
+            ++mSize;
+        }
+    }
+
+    /**
+     * Evicts queued mouse frames if less than needed slots are free.
+     *
+     * @return false if there is still not enough room
+     */
+    private boolean makeRoom(int needed) {
+        if (needed > SLOT_COUNT - mSize) {
+            int kept = 0;
+            for (int i = 0; i < mSize; ++i) {
+                int from = (mHead + i) % SLOT_COUNT;
+                if (mTypes[from] == TYPE_MOUSE) {
+                    ++mDroppedMouse;
+                    continue;
+                }
+                int to = (mHead + kept) % SLOT_COUNT;
+                if (to != from) {
+                    byte[] slot = mSlots[to];
+                    mSlots[to] = mSlots[from];
+                    mSlots[from] = slot;
+                    mLengths[to] = mLengths[from];
+                    mTypes[to] = mTypes[from];
+                    mTimes[to] = mTimes[from];
+                    mBlockSlots[to] = mBlockSlots[from];
+                    mBlockMarks[to] = mBlockMarks[from];
+                }
+                ++kept;
+            }
+            mSize = kept;
+        }
+        if (needed > SLOT_COUNT - mSize) {
+            ++mRejected;
+            updateCongestion(mClock.nanoTime());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Enqueues a mouse movement.  If the most recently enqueued frame is a mouse frame that
+     * has not been sent yet, the movement is added to it, unless that frame is already stale
+     * and replaced.  Deltas that exceed the range of a frame are saturated and the remainder
+     * is carried over into further frames instead of being truncated.
+     *
+     * @return false if the queue is closed or has not enough free slots
+     */
+    synchronized boolean offerMouse(int distanceX, int distanceY) {
+        if (mClosed) {
+            return false;
+        }
+        long now = mClock.nanoTime();
+        if (mSize > 0) {
+            int last = (mHead + mSize - 1) % SLOT_COUNT;
+            if (mTypes[last] == TYPE_MOUSE) {
+                if (now - mTimes[last] > MOUSE_STALE_NANOS) {
+                    ++mDroppedMouse;
+                    mMouseX[last] = 0;
+                    mMouseY[last] = 0;
+                    mTimes[last] = now;
+                }
+                int mergedX = saturate(mMouseX[last] + distanceX);
+                int mergedY = saturate(mMouseY[last] + distanceY);
+                distanceX -= mergedX - mMouseX[last];
+                distanceY -= mergedY - mMouseY[last];
+                mMouseX[last] = mergedX;
+                mMouseY[last] = mergedY;
+            }
+        }
+        int maxDistance = Math.max(Math.abs(distanceX), Math.abs(distanceY));
+        int needed = (maxDistance + mMaxMouseDelta - 1) / mMaxMouseDelta;
+        if (needed > SLOT_COUNT - mSize) {
+            ++mRejected;
+            updateCongestion(now);
+            return false;
+        }
+        while (distanceX != 0 || distanceY != 0) {
+            int tail = (mHead + mSize) % SLOT_COUNT;
+            mTypes[tail] = TYPE_MOUSE;
+            mMouseX[tail] = saturate(distanceX);
+            mMouseY[tail] = saturate(distanceY);
+            mTimes[tail] = now;
+            distanceX -= mMouseX[tail];
+            distanceY -= mMouseY[tail];
+            ++mSize;
+        }
+        updateCongestion(now);
+        notifyAll();
+        return true;
+    }
+
+    private int saturate(int distance) {
+        return Math.max(-mMaxMouseDelta, Math.min(mMaxMouseDelta, distance));
+    }
+
+    private void updateCongestion(long now) {
+        long oldest;
+        if (mWriting) {
+            oldest = mWritingSince;
+        } else if (mSize > 0) {
+            oldest = mTimes[mHead];
+        } else {
+            oldest = now;
+        }
+        boolean congested = now - oldest > CONGESTION_NANOS;
+        if (congested != mCongested) {
+            mCongested = congested;
+            if (mListener != null) {
+                mListener.congestionChanged(congested);
+            }
+        }
+    }
+
+    /**
+     * Waits up to timeoutMillis for at least one slot and copies as many slots as possible
+     * into dst.  Each buffer must be array backed with a capacity of at least SLOT_SIZE and is
+     * ready to be written afterwards.  Stale mouse frames are skipped.  A block waiting for
+     * the backlog counts as no slot, only the text before it is taken.  dst must have room for
+     * at least MAX_BLOCK_SLOTS buffers.  The caller has to
+     * call writeCompleted() after writing the buffers, or a heartbeat on timeout.
+     *
+     * @return number of buffers filled, 0 on timeout, or -1 if the queue was closed
+     */
+    synchronized int drainTo(ByteBuffer[] dst, long timeoutMillis)
+            throws InterruptedException {
+        long start = mClock.nanoTime();
+        long remaining = timeoutMillis;
+        while (!mClosed && remaining > 0) {
+            long bulkDelay = hasBulk() ? bulkDelay() : Long.MAX_VALUE;
+            if (bulkDelay == 0 || mSize > 0 && !waitsForBulk(mHead)) {
+                break;
+            }
+            wait(Math.min(remaining, bulkDelay));
+            long elapsed = mClock.nanoTime() - start;
+            remaining = timeoutMillis - TimeUnit.NANOSECONDS.toMillis(elapsed);
+        }
+        if (mClosed) {
+            return -1;
+        }
+        long now = mClock.nanoTime();
+        boolean metrics = Metrics.isEnabled();
+        long encodeStart = metrics ? System.nanoTime() : 0;
+        mWriting = true;
+        mWritingSince = mSize > 0 ? mTimes[mHead] : now;
+        int count = 0;
+        boolean blockPending = false;
+        long bulkEnd = Long.MAX_VALUE;
+        while (mSize > 0 && count < dst.length) {
+            if (waitsForBulk(mHead)) {
+                bulkEnd = mBlockMarks[mHead];
+                break;
+            }
+            if (mTypes[mHead] == TYPE_BLOCK && count + mBlockSlots[mHead] > dst.length) {
+                blockPending = true;
+                break;
+            }
+            byte[] frame = dst[count].array();
+            int len;
+            if (mTypes[mHead] == TYPE_MOUSE) {
+                if (now - mTimes[mHead] > MOUSE_STALE_NANOS) {
+                    ++mDroppedMouse;
+                    len = 0;
+                } else {
+                    len = encodeMouse(frame, mMouseX[mHead], mMouseY[mHead]);
+                }
+            } else {
+                len = mLengths[mHead];
+                System.arraycopy(mSlots[mHead], 0, frame, 0, len);
+            }
+            if (len > 0) {
+                dst[count++].limit(len).position(0);
+                if (metrics) {
+                    recordSlot(mTypes[mHead], len, now);
+                }
+            }
+            mHead = (mHead + 1) % SLOT_COUNT;
+            --mSize;
+        }
+        // text offered after a pending block may already be in the backlog
+        int limit = blockPending ? count : Math.min(dst.length, count + BULK_CHUNK_SLOTS);
+        while (count < limit && hasBulk() && mBulkSent < bulkEnd && bulkDelay() == 0) {
+            byte[] frame = dst[count].array();
+            int end = mBulkPos + (int)Math.min(mBulk.length() - mBulkPos, bulkEnd - mBulkSent);
+            int begin = mBulkPos;
+            int pos = 0;
+            while (mBulkPos < end && pos <= SLOT_SIZE - FrameCodec.MAX_CODE_POINT_SIZE) {
+                pos += FrameCodec.encodeUtf8Char(mBulk, mBulkPos, end, frame, pos);
+                mBulkPos += FrameCodec.charCount(mBulk, mBulkPos, end);
+            }
+            mBulkSent += mBulkPos - begin;
+            dst[count++].limit(pos).position(0);
+            mBulkCredit -= pos*1000L;
+            if (metrics) {
+                Metrics.countFrames(Metrics.TEXT, 1, pos);
+            }
+        }
+        if (mBulkPos > 0 && !hasBulk()) {
+            mBulk.setLength(0);
+            mBulk.trimToSize();
+            mBulkPos = 0;
+        }
+        updateCongestion(now);
+        if (metrics) {
+            Metrics.ENCODE.record(System.nanoTime() - encodeStart);
+        }
+        return count;
+    }
+
+    /**
+     * Whether the slot starts a block that waits for text offered before it.
+     */
+    private boolean waitsForBulk(int slot) {
+        return mTypes[slot] == TYPE_BLOCK && mBlockMarks[slot] > mBulkSent;
+    }
+
+    private int encodeMouse(byte[] dst, int distanceX, int distanceY) {
+        if (mCompactMotion) {
+            return FrameCodec.encodeMotion(dst, 0, distanceX, distanceY);
+        }
+        return FrameCodec.encodeMouse(dst, 0, saturate(distanceX), saturate(distanceY));
+    }
+
+    private void recordSlot(byte type, int len, long now) {
+        Metrics.QUEUE_WAIT.record(now - mTimes[mHead]);
+        // raw and block slots were counted by whoever encoded them
+        if (type == TYPE_MOUSE) {
+            Metrics.countFrames(Metrics.MOUSE, 1, len);
+        } else if (type == TYPE_TEXT) {
+            Metrics.countFrames(Metrics.TEXT, 1, len);
+        }
+    }
+
+    /**
+     * Called by the consumer after the buffers returned by drainTo have been written.
+     */
+    synchronized void writeCompleted() {
+        mWriting = false;
+        updateCongestion(mClock.nanoTime());
+    }
+
+    synchronized void close() {
+        mClosed = true;
+        mSize = 0;
+        mBulk.setLength(0);
+        mBulk.trimToSize();
+        mBulkPos = 0;
+        notifyAll();
+    }
+}
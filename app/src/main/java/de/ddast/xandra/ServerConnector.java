@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2017  Dennis Dast
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.ddast.xandra;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Opens a ChannelTransport to a server given by host name.  The resolved address of every
+ * host is cached for the lifetime of the process.  On reconnect the cached address is tried
+ * right away while a fresh lookup runs in parallel; the fresh address is only waited for if
+ * the cached one fails.
+ */
+final class ServerConnector {
+    private static final Map<String, InetAddress> sAddressCache =
+            new ConcurrentHashMap<String, InetAddress>();
+    private static final ExecutorService sLookupExecutor = Executors.newCachedThreadPool(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "ServerConnector");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private ServerConnector() {}
+
+    static ChannelTransport connect(final String host, int port, long timeoutMillis)
+            throws IOException {
+        InetAddress cached = cachedAddress(host);
+        Future<InetAddress> lookup = sLookupExecutor.submit(new Callable<InetAddress>() {
+            @Override
+            public InetAddress call() throws UnknownHostException {
+                InetAddress address = InetAddress.getByName(host);
+                cacheAddress(host, address);
+                return address;
+            }
+        });
+
+        IOException cachedFailure = null;
+        if (cached != null) {
+            try {
+                return ChannelTransport.connect(new InetSocketAddress(cached, port),
+                                                timeoutMillis);
+            } catch (IOException e) {
+                cachedFailure = e;
+            }
+        }
+
+        InetAddress fresh = awaitLookup(host, lookup, timeoutMillis);
+        if (cachedFailure != null && fresh.equals(cached)) {
+            throw cachedFailure;
+        }
+        return ChannelTransport.connect(new InetSocketAddress(fresh, port), timeoutMillis);
+    }
+
+    /**
+     * The address host resolved to during the last lookup, or null if it was never looked up.
+     */
+    static InetAddress cachedAddress(String host) {
+        return sAddressCache.get(host);
+    }
+
+    static void cacheAddress(String host, InetAddress address) {
+        sAddressCache.put(host, address);
+    }
+
+    private static InetAddress awaitLookup(String host, Future<InetAddress> lookup,
+                                           long timeoutMillis) throws IOException {
+        try {
+            return lookup.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (TimeoutException e) {
+            lookup.cancel(true);
+            throw new UnknownHostException("Lookup of " + host + " timed out");
+        } catch (InterruptedException e) {
+            lookup.cancel(true);
+            throw new InterruptedIOException("Lookup of " + host + " interrupted");
+        }
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2017  Dennis Dast
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.ddast.xandra;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds xandra servers in the local subnets with two probes running in parallel.  A UDP probe
+ * is sent to the broadcast address and to every host of the subnet on the discovery port
+ * (the server port + 1, so that it does not interfere with pointer datagrams); servers
+ * knowing the discovery protocol answer with their name.  Additionally every host is probed
+ * with a TCP connect to the server port on a bounded thread pool, which also finds legacy
+ * servers.  Subnets larger than MAX_PREFIX_LENGTH are only scanned in the /24 around the
+ * local address.
+ *
+ * Results are cached for the lifetime of the process.  Every run reports the cached servers
+ * right away, probes them first and then reports every server it finds.  Cached servers that
+ * were not found again are removed and reported as lost when the run finishes.
+ */
+final class ServerDiscovery {
+    interface Listener {
+        /**
+         * Called from a discovery thread, again if the name of a server becomes known.
+         */
+        void serverFound(Server server);
+        void serverLost(Server server);
+    }
+
+    static final class Server {
+        private final InetAddress mAddress;
+        private final String mName;
+
+        Server(InetAddress address, String name) {
+            mAddress = address;
+            mName = name;
+        }
+
+        InetAddress getAddress() {
+            return mAddress;
+        }
+
+        /**
+         * The name announced by the server, null if it was only found by a TCP probe.
+         */
+        String getName() {
+            return mName;
+        }
+    }
+
+    static final class Subnet {
+        private final InetAddress mAddress;
+        private final int mPrefixLength;
+        private final InetAddress mBroadcast;
+
+        /**
+         * @param broadcast the broadcast address or null if there is none
+         */
+        Subnet(InetAddress address, int prefixLength, InetAddress broadcast) {
+            mAddress = address;
+            mPrefixLength = prefixLength;
+            mBroadcast = broadcast;
+        }
+    }
+
+    static final int PROBE_THREADS = 128;
+    static final long TCP_TIMEOUT = 150L;
+    static final int MAX_PREFIX_LENGTH = 22;
+    static final byte[] MAGIC = {'X', 'D', 'S', 'C'};
+    static final byte PROBE = 0x01;
+    static final byte ANSWER = 0x02;
+
+    private static final int RECEIVE_INTERVAL = 10;
+    private static final int MAX_ANSWER_SIZE = 256;
+
+    private static final Map<InetAddress, Server> sCache =
+            new ConcurrentHashMap<InetAddress, Server>();
+    private static final ThreadPoolExecutor sProbeExecutor = new ThreadPoolExecutor(
+            PROBE_THREADS, PROBE_THREADS, 5L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "ServerDiscovery");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    static {
+        sProbeExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private final int mPort;
+    private final Listener mListener;
+    private final Map<InetAddress, Server> mFound = new ConcurrentHashMap<InetAddress, Server>();
+    private volatile boolean mCancelled = false;
+
+    ServerDiscovery(int port, Listener listener) {
+        mPort = port;
+        mListener = listener;
+    }
+
+    /**
+     * The IPv4 subnets of all interfaces that are up, except loopback.
+     */
+    static List<Subnet> localSubnets() throws SocketException {
+        List<Subnet> subnets = new ArrayList<Subnet>();
+        List<NetworkInterface> interfaces = Collections.list(
+                NetworkInterface.getNetworkInterfaces());
+        for (NetworkInterface networkInterface : interfaces) {
+            if (!networkInterface.isUp() || networkInterface.isLoopback()) {
+                continue;
+            }
+            for (InterfaceAddress address : networkInterface.getInterfaceAddresses()) {
+                if (address.getAddress() instanceof Inet4Address) {
+                    subnets.add(new Subnet(address.getAddress(),
+                                           address.getNetworkPrefixLength(),
+                                           address.getBroadcast()));
+                }
+            }
+        }
+        return subnets;
+    }
+
+    /**
+     * Runs one discovery and blocks until every host was probed or timeoutMillis passed.
+     */
+    void run(List<Subnet> subnets, long timeoutMillis) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        List<InetAddress> hosts = new ArrayList<InetAddress>(sCache.keySet());
+        for (Server server : sCache.values()) {
+            mListener.serverFound(server);
+        }
+        for (Subnet subnet : subnets) {
+            for (InetAddress host : hosts(subnet)) {
+                if (!sCache.containsKey(host)) {
+                    hosts.add(host);
+                }
+            }
+        }
+
+        CountDownLatch probed = new CountDownLatch(hosts.size());
+        List<Future<?>> probes = new ArrayList<Future<?>>(hosts.size());
+        for (InetAddress host : hosts) {
+            probes.add(sProbeExecutor.submit(new TcpProbe(host, deadline, probed)));
+        }
+        DatagramSocket socket = new DatagramSocket();
+        try {
+            sendProbes(socket, subnets, hosts);
+            receiveAnswers(socket, probed, deadline);
+        } finally {
+            socket.close();
+            for (Future<?> probe : probes) {
+                probe.cancel(true);
+            }
+        }
+
+        if (!mCancelled) {
+            for (Server server : sCache.values()) {
+                if (!mFound.containsKey(server.mAddress)) {
+                    sCache.remove(server.mAddress);
+                    mListener.serverLost(server);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops a running discovery.  Servers found so far stay cached.
+     */
+    void cancel() {
+        mCancelled = true;
+    }
+
+    private static List<InetAddress> hosts(Subnet subnet) throws UnknownHostException {
+        List<InetAddress> hosts = new ArrayList<InetAddress>();
+        byte[] address = subnet.mAddress.getAddress();
+        if (address.length != 4 || subnet.mPrefixLength > 30) {
+            return hosts;
+        }
+        int prefixLength = subnet.mPrefixLength < MAX_PREFIX_LENGTH ? 24 : subnet.mPrefixLength;
+        int ip = (address[0] & 0xff)<<24 | (address[1] & 0xff)<<16 | (address[2] & 0xff)<<8
+                 | address[3] & 0xff;
+        int mask = -1<<(32 - prefixLength);
+        int network = ip & mask;
+        int count = ~mask;
+        for (int i = 1; i < count; ++i) {
+            int host = network + i;
+            hosts.add(InetAddress.getByAddress(new byte[] {(byte)(host>>>24), (byte)(host>>>16),
+                                                           (byte)(host>>>8), (byte)host}));
+        }
+        return hosts;
+    }
+
+    private void sendProbes(DatagramSocket socket, List<Subnet> subnets, List<InetAddress> hosts)
+            throws IOException {
+        byte[] probe = Arrays.copyOf(MAGIC, MAGIC.length + 1);
+        probe[MAGIC.length] = PROBE;
+        int discoveryPort = mPort + 1;
+        socket.setBroadcast(true);
+        for (Subnet subnet : subnets) {
+            if (subnet.mBroadcast != null) {
+                sendProbe(socket, probe, new InetSocketAddress(subnet.mBroadcast, discoveryPort));
+            }
+        }
+        for (InetAddress host : hosts) {
+            sendProbe(socket, probe, new InetSocketAddress(host, discoveryPort));
+        }
+    }
+
+    private static void sendProbe(DatagramSocket socket, byte[] probe, InetSocketAddress address) {
+        try {
+            socket.send(new DatagramPacket(probe, probe.length, address));
+        } catch (IOException e) {
+            // unreachable hosts are no servers
+        }
+    }
+
+    private void receiveAnswers(DatagramSocket socket, CountDownLatch probed, long deadline)
+            throws IOException {
+        byte[] buf = new byte[MAX_ANSWER_SIZE];
+        DatagramPacket packet = new DatagramPacket(buf, buf.length);
+        socket.setSoTimeout(RECEIVE_INTERVAL);
+        while (!mCancelled && probed.getCount() > 0 && System.nanoTime() < deadline) {
+            try {
+                socket.receive(packet);
+            } catch (SocketTimeoutException e) {
+                continue;
+            }
+            int len = packet.getLength();
+            if (len > MAGIC.length && buf[MAGIC.length] == ANSWER
+                    && Arrays.equals(Arrays.copyOf(buf, MAGIC.length), MAGIC)) {
+                String name = new String(buf, MAGIC.length + 1, len - MAGIC.length - 1,
+                                         "UTF-8");
+                found(packet.getAddress(), name);
+            }
+        }
+    }
+
+    private void found(InetAddress address, String name) {
+        if (mCancelled) {
+            return;
+        }
+        Server server;
+        synchronized (mFound) {
+            Server previous = mFound.get(address);
+            if (previous != null && (previous.mName != null || name == null)) {
+                return;
+            }
+            if (name == null) {
+                Server cached = sCache.get(address);
+                name = cached == null ? null : cached.mName;
+            }
+            server = new Server(address, name);
+            mFound.put(address, server);
+        }
+        sCache.put(address, server);
+        mListener.serverFound(server);
+    }
+
+    private class TcpProbe implements Runnable {
+        private final InetAddress mHost;
+        private final long mDeadline;
+        private final CountDownLatch mProbed;
+
+        TcpProbe(InetAddress host, long deadline, CountDownLatch probed) {
+            mHost = host;
+            mDeadline = deadline;
+            mProbed = probed;
+        }
+
+        @Override
+        public void run() {
+            try {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(mDeadline - System.nanoTime());
+                if (mCancelled || remaining <= 0) {
+                    return;
+                }
+                Socket socket = new Socket();
+                try {
+                    socket.connect(new InetSocketAddress(mHost, mPort),
+                                   (int)Math.min(TCP_TIMEOUT, remaining));
+                    found(mHost, null);
+                } catch (IOException e) {
+                    // no server on this host
+                } finally {
+                    socket.close();
+                }
+            } catch (IOException e) {
+                // closing failed, the probe is done anyway
+            } finally {
+                mProbed.countDown();
+            }
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2017  Dennis Dast
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.ddast.xandra;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps sessions to several servers open, so that the input can be switched between them
+ * without waiting for a connection.  One session is active and receives the input, the other
+ * ones are idle and are closed once they were not active for the idle timeout.  The sessions
+ * are opened and closed by the Factory, the pool only decides when.
+ *
+ * Not thread safe, the pool has to be used on the thread that advances its TimerWheel.
+ */
+final class SessionPool<S> {
+    interface Factory<S> {
+        S open(String host);
+        void close(String host, S session);
+    }
+
+    private final class Entry extends TimerWheel.Timer {
+        private final String mHost;
+        private final S mSession;
+
+        private Entry(String host, S session) {
+            mHost = host;
+            mSession = session;
+        }
+
+        @Override
+        void expired() {
+            mEntries.remove(mHost);
+            mFactory.close(mHost, mSession);
+        }
+    }
+
+    private final Factory<S> mFactory;
+    private final TimerWheel mTimerWheel;
+    private final Map<String, Entry> mEntries = new LinkedHashMap<String, Entry>();
+    private long mIdleTimeout;
+    private Entry mActive = null;
+
+    /**
+     * @param idleTimeout time in milliseconds after which an idle session is closed, 0 keeps
+     *                    idle sessions open until close() is called
+     */
+    SessionPool(Factory<S> factory, TimerWheel timerWheel, long idleTimeout) {
+        mFactory = factory;
+        mTimerWheel = timerWheel;
+        mIdleTimeout = idleTimeout;
+    }
+
+    /**
+     * Makes the session to host the active one, opening it if there is none.  The previously
+     * active session becomes idle.
+     */
+    S activate(String host) {
+        Entry entry = mEntries.get(host);
+        if (entry == null) {
+            entry = open(host);
+        }
+        mTimerWheel.cancel(entry);
+        if (mActive != null && mActive != entry) {
+            scheduleEviction(mActive);
+        }
+        mActive = entry;
+        return entry.mSession;
+    }
+
+    /**
+     * Opens an idle session to host unless there already is one.
+     */
+    void warm(String host) {
+        if (!mEntries.containsKey(host)) {
+            scheduleEviction(open(host));
+        }
+    }
+
+    S getActive() {
+        return mActive == null ? null : mActive.mSession;
+    }
+
+    String getActiveHost() {
+        return mActive == null ? null : mActive.mHost;
+    }
+
+    boolean isOpen(String host) {
+        return mEntries.containsKey(host);
+    }
+
+    /**
+     * The hosts of all open sessions in the order they were opened.
+     */
+    List<String> getHosts() {
+        return new ArrayList<String>(mEntries.keySet());
+    }
+
+    /**
+     * Changes the idle timeout.  The sessions that are idle now are kept for the new timeout.
+     */
+    void setIdleTimeout(long idleTimeout) {
+        if (idleTimeout == mIdleTimeout) {
+            return;
+        }
+        mIdleTimeout = idleTimeout;
+        for (Entry entry : mEntries.values()) {
+            if (entry != mActive) {
+                scheduleEviction(entry);
+            }
+        }
+    }
+
+    /**
+     * Closes all sessions, including the active one.
+     */
+    void close() {
+        List<Entry> entries = new ArrayList<Entry>(mEntries.values());
+        mEntries.clear();
+        mActive = null;
+        for (Entry entry : entries) {
+            mTimerWheel.cancel(entry);
+            mFactory.close(entry.mHost, entry.mSession);
+        }
+    }
+
+    private Entry open(String host) {
+        Entry entry = new Entry(host, mFactory.open(host));
+        mEntries.put(host, entry);
+        return entry;
+    }
+
+    private void scheduleEviction(Entry entry) {
+        if (mIdleTimeout > 0) {
+            mTimerWheel.schedule(entry, mIdleTimeout);
+        } else {
+            mTimerWheel.cancel(entry);
+        }
+    }
+}
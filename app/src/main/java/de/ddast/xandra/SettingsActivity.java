@@ -17,16 +17,24 @@
 
 package de.ddast.xandra;
 
+import android.content.Intent;
 import android.content.SharedPreferences;
+import android.net.Uri;
 import android.preference.EditTextPreference;
 import android.preference.ListPreference;
 import android.preference.Preference;
 import android.preference.PreferenceFragment;
 import android.preference.PreferenceManager;
+import android.support.v4.content.FileProvider;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
 
+import java.io.File;
+import java.util.ArrayList;
+
 public class SettingsActivity extends AppCompatActivity {
+    private static final String TRACE_AUTHORITY = "de.ddast.xandra.traces";
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(this);
@@ -49,6 +57,14 @@ public class SettingsActivity extends AppCompatActivity {
             super.onCreate(savedInstanceState);
             addPreferencesFromResource(R.xml.preferences);
             initSummary();
+            findPreference(getString(R.string.pref_share_traces)).setOnPreferenceClickListener(
+                    new Preference.OnPreferenceClickListener() {
+                        @Override
+                        public boolean onPreferenceClick(Preference preference) {
+                            shareTraces();
+                            return true;
+                        }
+                    });
         }
 
         @Override
@@ -74,6 +90,23 @@ public class SettingsActivity extends AppCompatActivity {
             }
         }
 
+        private void shareTraces() {
+            File[] files = MainActivity.traceDir(getActivity()).listFiles();
+            if (files == null || files.length == 0) {
+                return;
+            }
+            ArrayList<Uri> uris = new ArrayList<Uri>();
+            for (File file : files) {
+                uris.add(FileProvider.getUriForFile(getActivity(), TRACE_AUTHORITY, file));
+            }
+            Intent intent = new Intent(Intent.ACTION_SEND_MULTIPLE);
+            intent.setType("application/octet-stream");
+            intent.putParcelableArrayListExtra(Intent.EXTRA_STREAM, uris);
+            intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+            startActivity(Intent.createChooser(intent,
+                                               getString(R.string.pref_share_traces_title)));
+        }
+
         private void initSummary() {
             for (int i = 0; i < getPreferenceScreen().getPreferenceCount(); ++i) {
                 updateSummary(getPreferenceScreen().getPreference(i));
@@ -19,79 +19,67 @@ package de.ddast.xandra;
 
 import android.os.AsyncTask;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.IOException;
-import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
-import java.net.Socket;
 import java.net.UnknownHostException;
-import java.nio.ByteBuffer;
 
-class TcpClient {
+class TcpClient implements InputSink, FrameSender.Callback, FrameReceiver.Callback,
+                           DatagramSender.Callback {
     private static final String TAG    = "TcpClient";
     private static final boolean DEBUG = false;
 
-    static final byte LEFTCLICK     = (byte)0x00;
-    static final byte MIDDLECLICK   = (byte)0x01;
-    static final byte RIGHTCLICK    = (byte)0x02;
-    static final byte WHEELUP       = (byte)0x03;
-    static final byte WHEELDOWN     = (byte)0x04;
-    static final byte CTRL          = (byte)0x05;
-    static final byte SUP           = (byte)0x06;
-    static final byte ALT           = (byte)0x07;
-    static final byte BACKSPACE     = (byte)0x08;
-    static final byte ESCAPE        = (byte)0x09;
-    static final byte TAB           = (byte)0x0a;
-    static final byte LEFT          = (byte)0x0b;
-    static final byte DOWN          = (byte)0x0c;
-    static final byte UP            = (byte)0x0d;
-    static final byte RIGHT         = (byte)0x0e;
-    static final byte VOLDN         = (byte)0x0f;
-    static final byte VOLUP         = (byte)0x10;
-    static final byte VOLTOG        = (byte)0x11;
-    static final byte INS           = (byte)0x12;
-    static final byte DEL           = (byte)0x13;
-    static final byte HOME          = (byte)0x14;
-    static final byte END           = (byte)0x15;
-    static final byte PGUP          = (byte)0x16;
-    static final byte PGDN          = (byte)0x17;
-    static final byte F1            = (byte)0x18;
-    static final byte F2            = (byte)0x19;
-    static final byte F3            = (byte)0x1a;
-    static final byte F4            = (byte)0x1b;
-    static final byte F5            = (byte)0x1c;
-    static final byte F6            = (byte)0x1d;
-    static final byte F7            = (byte)0x1e;
-    static final byte F8            = (byte)0x1f;
-    static final byte F9            = (byte)0x20;
-    static final byte F10           = (byte)0x21;
-    static final byte F11           = (byte)0x22;
-    static final byte F12           = (byte)0x23;
-    static final byte LEFTMOUSEDOWN = (byte)0x24;
-    static final byte LEFTMOUSEUP   = (byte)0x25;
-
-    private static final long HEARTBEAT_INTERVAL = 1000L;
-    private static final byte HEARTBEAT          = (byte)0x00;
+    private static final long CONNECT_TIMEOUT   = 5000L;
+    private static final long BACKOFF_BASE      = 250L;
+    private static final long BACKOFF_MAX       = 8000L;
+    private static final long STABLE_CONNECTION = 5000L;
+    private static final long HELLO_TIMEOUT     = 2000L;
+    private static final int LIVENESS_INTERVALS = 3;
+    private static final int FEATURES = FrameCodec.FEATURE_SCROLL | FrameCodec.FEATURE_DATAGRAM
+                                        | FrameCodec.FEATURE_COMPACT_MOTION
+                                        | FrameCodec.FEATURE_KEY_STATE
+                                        | FrameCodec.FEATURE_HEARTBEAT_ECHO;
 
     private final String mServerAddr;
     private final int mPort;
+    private final long mHeartbeatInterval;
+    private final long mWriteTimeout;
+    private final boolean mUseDatagrams;
     private final TcpClientObserver mTcpClientObserver;
-    private Socket mSocket;
-    private OutputStream mOutput;
+    private final byte[] mFrame = new byte[FrameCodec.MAX_FRAME_SIZE];
+    private final Backoff mBackoff = new Backoff(BACKOFF_BASE, BACKOFF_MAX);
+    private long mConnectedSince;
+    private ChannelTransport mTransport;
+    private SendQueue mSendQueue = null;
+    private FrameSender mFrameSender = null;
+    private FrameReceiver mFrameReceiver = null;
+    private DatagramSender mDatagramSender = null;
     private boolean mConnected = false;
+    private boolean mScrollFrames = false;
+    private int mFeatures = 0;
+    private long mDroppedFrames = 0;
+    private long mRejectedFrames = 0;
     private Handler mHandler;
     private ConnectAsync mConnectAsync = null;
 
-    TcpClient(String serverAddr, int port, TcpClientObserver tcpClientObserver) {
+    /**
+     * @param useDatagrams send mouse movements, scrolling and wheel keys over UDP to the same port
+     *                     if the server supports it
+     */
+    TcpClient(String serverAddr, int port, long heartbeatInterval, long writeTimeout,
+              boolean useDatagrams, TcpClientObserver tcpClientObserver) {
         mServerAddr = serverAddr;
         mPort = port;
+        mHeartbeatInterval = heartbeatInterval;
+        mWriteTimeout = writeTimeout;
+        mUseDatagrams = useDatagrams;
         mTcpClientObserver = tcpClientObserver;
         mHandler = new Handler();
     }
 
     void connect() {
-        mHandler.removeCallbacks(mSendHeartbeat);
+        mHandler.removeCallbacks(mReconnect);
         if ((mConnectAsync != null) && (mConnectAsync.getStatus() == AsyncTask.Status.RUNNING)) {
             return;
         }
@@ -103,78 +91,291 @@ class TcpClient {
         return mConnected;
     }
 
-    void sendMouse(int distanceX, int distanceY) {
+    boolean isCongested() {
+        return mSendQueue != null && mSendQueue.isCongested();
+    }
+
+    /**
+     * Sends scrolling as scroll frames instead of wheel keys if the server supports them.
+     */
+    void setScrollFrames(boolean scrollFrames) {
+        mScrollFrames = scrollFrames;
+    }
+
+    int getQueueDepth() {
+        return mSendQueue == null ? 0 : mSendQueue.getDepth();
+    }
+
+    /**
+     * Number of stale mouse frames and of wheel keys beyond the capacity of a datagram dropped
+     * since this client was created.
+     */
+    long getDroppedFrames() {
+        return mDroppedFrames + (mSendQueue == null ? 0 : mSendQueue.getDroppedMouse())
+               + (mDatagramSender == null ? 0 : mDatagramSender.getDroppedKeys());
+    }
+
+    /**
+     * Number of frames rejected by a full send queue since this client was created.
+     */
+    long getRejectedFrames() {
+        return mRejectedFrames + (mSendQueue == null ? 0 : mSendQueue.getRejected());
+    }
+
+    @Override
+    public void sendMouse(int distanceX, int distanceY) {
         if (DEBUG) {
             Log.d(TAG, "Sending mouse event: distanceX " + String.valueOf(distanceX)
                     + ", distanceY " + String.valueOf(distanceY));
         }
-        boolean isNegX = distanceX < 0;
-        boolean isNegY = distanceY < 0;
-        distanceX = Math.abs(distanceX) & 0xfff;
-        distanceY = Math.abs(distanceY) & 0xfff;
-        byte[] bA = ByteBuffer.allocate(5)
-                .put((byte)(0xf8 | (isNegX ? 0x02 : 0x00) | distanceX>>>11))
-                .put((byte)(0x80 | distanceX>>>5 & 0x3f))
-                .put((byte)(0x80 | (distanceX & 0x1f)<<1 | (isNegY ? 0x01 : 0x00)))
-                .put((byte)(0x80 | distanceY>>>6))
-                .put((byte)(0x80 | distanceY & 0x3f))
-                .array();
-        new SendBytes().execute(bA);
+        if (!canSend()) {
+            return;
+        }
+        if (mDatagramSender != null) {
+            mDatagramSender.offerMouse(distanceX, distanceY);
+            return;
+        }
+        if (!mSendQueue.offerMouse(distanceX, distanceY)) {
+            Log.e(TAG, "Send queue full, dropping mouse event");
+        }
     }
 
     void sendUTF8(String s) {
+        sendUTF8(s, 0, s.length());
+    }
+
+    void sendUTF8(CharSequence s, int start, int end) {
         if (DEBUG) {
-            Log.d(TAG, "Sending UTF8 character " + s);
+            Log.d(TAG, "Sending UTF8 character " + s.subSequence(start, end));
         }
-        try {
-            byte[] utf8Repr = s.getBytes("UTF8");
-            new SendBytes().execute(utf8Repr);
-        } catch (UnsupportedEncodingException e) {
-            Log.e(TAG, "Encoding failure");
+        if (!canSend()) {
+            return;
+        }
+        if (!mSendQueue.offerText(s, start, end)) {
+            Log.e(TAG, "Send queue full, dropping text");
         }
     }
 
-    void sendSpecialKey(byte b) {
+    /**
+     * Sends deletions backspaces followed by s[start..end) with a single write.
+     */
+    @Override
+    public void sendEdit(int deletions, CharSequence s, int start, int end) {
+        if (DEBUG) {
+            Log.d(TAG, "Sending " + String.valueOf(deletions) + " backspaces and "
+                    + s.subSequence(start, end));
+        }
+        if (!canSend()) {
+            return;
+        }
+        if (!mSendQueue.offerEdit(BACKSPACE, deletions, s, start, end)) {
+            Log.e(TAG, "Send queue full, dropping edit");
+        }
+    }
+
+    @Override
+    public void sendSpecialKey(byte b) {
         if (DEBUG) {
             Log.d(TAG, "Sending special key " + String.valueOf(b));
         }
-        new SendBytes().execute(new byte[] {(byte)0xfc, (byte)0x80, (byte)0x80, (byte)0x80,
-                (byte)0x80, (byte)(0x80 | b)});
+        if (mDatagramSender != null && (b == WHEELUP || b == WHEELDOWN) && canSend()) {
+            mDatagramSender.offerKey(b);
+            return;
+        }
+        sendBytes(Metrics.KEY, mFrame, 0, FrameCodec.encodeSpecialKey(mFrame, 0, b));
+    }
+
+    /**
+     * Sends the frames of macro with a single write.
+     */
+    void sendMacro(Macro macro) {
+        if (DEBUG) {
+            Log.d(TAG, "Sending macro " + macro.getLabel());
+        }
+        if (!canSend()) {
+            return;
+        }
+        byte[] frames = macro.getFrames();
+        if (!mSendQueue.offerBlock(frames, 0, frames.length)) {
+            Log.e(TAG, "Send queue full, dropping macro");
+        } else if (Metrics.isEnabled()) {
+            Metrics.countFrames(Metrics.MACRO, 1, frames.length);
+        }
+    }
+
+    @Override
+    public boolean canSendKeyState() {
+        return (mFeatures & FrameCodec.FEATURE_KEY_STATE) != 0;
+    }
+
+    @Override
+    public void sendKeyState(byte key, boolean pressed) {
+        if (DEBUG) {
+            Log.d(TAG, (pressed ? "Pressing" : "Releasing") + " special key "
+                       + String.valueOf(key));
+        }
+        sendBytes(Metrics.KEY, mFrame, 0, FrameCodec.encodeKey(mFrame, 0, key, pressed));
+    }
+
+    @Override
+    public boolean canSendScroll() {
+        return mScrollFrames && (mFeatures & FrameCodec.FEATURE_SCROLL) != 0;
+    }
+
+    @Override
+    public void sendScroll(int deltaX, int deltaY) {
+        if (DEBUG) {
+            Log.d(TAG, "Sending scroll event: deltaX " + String.valueOf(deltaX)
+                    + ", deltaY " + String.valueOf(deltaY));
+        }
+        if (mDatagramSender != null && canSend()) {
+            mDatagramSender.offerScroll(deltaX, deltaY);
+            return;
+        }
+        sendBytes(Metrics.SCROLL, mFrame, 0,
+                  FrameCodec.encodeScroll(mFrame, 0, deltaX, deltaY));
+    }
+
+    private boolean canSend() {
+        if (!isConnected() || mFrameSender == null) {
+            Log.e(TAG, "Tried to send, but not yet connected");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Sends the single frame bA[off..off+len) and counts it as the given Metrics type.
+     */
+    private void sendBytes(int type, byte[] bA, int off, int len) {
+        if (!canSend()) {
+            return;
+        }
+        if (!mSendQueue.offer(bA, off, len)) {
+            Log.e(TAG, "Send queue full, dropping frame");
+        } else if (Metrics.isEnabled()) {
+            Metrics.countFrames(type, 1, len);
+        }
     }
 
-    private class ConnectAsync extends AsyncTask<Void, Void, Boolean> {
+    private class ConnectAsync extends AsyncTask<Void, Void, ChannelTransport> {
         @Override
         protected void onPreExecute() {
             Log.i(TAG, "Connecting to " + mServerAddr);
         }
 
         @Override
-        protected Boolean doInBackground(Void...  params) {
+        protected ChannelTransport doInBackground(Void...  params) {
             try {
-                mSocket = new Socket(mServerAddr, mPort);
-                mSocket.setTcpNoDelay(true);
-                mOutput = mSocket.getOutputStream();
+                ChannelTransport transport = ServerConnector.connect(mServerAddr, mPort,
+                                                                     CONNECT_TIMEOUT);
                 Log.i(TAG, "Connected to " + mServerAddr);
-                return true;
+                return transport;
             } catch(UnknownHostException e) {
                 Log.e(TAG, "Unknown host: " + mServerAddr);
-                return false;
+                return null;
             } catch(IOException e) {
                 Log.e(TAG, "IO error while connecting");
-                return false;
+                return null;
             }
         }
 
         @Override
-        protected void onPostExecute(Boolean result) {
+        protected void onCancelled(ChannelTransport transport) {
+            if (transport != null) {
+                try {
+                    transport.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "IO error while closing");
+                }
+            }
+        }
+
+        @Override
+        protected void onPostExecute(ChannelTransport transport) {
+            mTransport = transport;
+            boolean result = transport != null;
             if (result) {
+                final SendQueue sendQueue = new SendQueue();
+                sendQueue.setListener(new SendQueue.Listener() {
+                    @Override
+                    public void congestionChanged(final boolean congested) {
+                        mHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (sendQueue == mSendQueue) {
+                                    Log.i(TAG, congested ? "Link congested"
+                                                         : "Link no longer congested");
+                                    mTcpClientObserver.congestionChanged(congested);
+                                }
+                            }
+                        });
+                    }
+                });
+                mSendQueue = sendQueue;
+                mFrameSender = new FrameSender(mSendQueue, mTransport, mHeartbeatInterval,
+                                               mWriteTimeout, TcpClient.this);
+                mFrameSender.start();
+                // Input is sent with the legacy protocol right away, the features are only
+                // switched on in featuresReceived() once the server answered the hello frame
+                mSendQueue.offer(mFrame, 0, FrameCodec.encodeHello(mFrame, 0,
+                                                                   FrameCodec.PROTOCOL_VERSION,
+                                                                   FEATURES));
+                if (Metrics.isEnabled()) {
+                    Metrics.countFrames(Metrics.HELLO, 1, FrameCodec.HELLO_FRAME_SIZE);
+                }
+                mFrameReceiver = new FrameReceiver(transport, FEATURES, TcpClient.this);
+                mFrameReceiver.start();
+                setFeatures(0);
+                mHandler.postDelayed(mHelloTimeout, HELLO_TIMEOUT);
+                mConnectedSince = SystemClock.elapsedRealtime();
                 mTcpClientObserver.connectionEstablished();
+            } else {
+                scheduleReconnect();
             }
             mConnected = result;
-            mHandler.postDelayed(mSendHeartbeat, HEARTBEAT_INTERVAL);
         }
     }
 
+    /**
+     * Switches to the features supported by both the server and this client.  A server that
+     * echoes heartbeats is considered lost after LIVENESS_INTERVALS heartbeat intervals
+     * without any received byte.
+     */
+    private void setFeatures(int features) {
+        mFeatures = features;
+        boolean echo = mHeartbeatInterval > 0
+                       && (features & FrameCodec.FEATURE_HEARTBEAT_ECHO) != 0;
+        mFrameSender.setHeartbeatEcho(echo);
+        mFrameReceiver.setReadTimeout(echo ? LIVENESS_INTERVALS*mHeartbeatInterval : 0);
+        boolean compactMotion = (features & FrameCodec.FEATURE_COMPACT_MOTION) != 0;
+        mSendQueue.setCompactMotion(compactMotion);
+        boolean useDatagrams = mUseDatagrams && (features & FrameCodec.FEATURE_DATAGRAM) != 0;
+        if (useDatagrams && mDatagramSender == null) {
+            openDatagramSender();
+        } else if (!useDatagrams && mDatagramSender != null) {
+            closeDatagramSender();
+        }
+        if (mDatagramSender != null) {
+            mDatagramSender.setCompactMotion(compactMotion);
+        }
+    }
+
+    private void openDatagramSender() {
+        try {
+            mDatagramSender = new DatagramSender(mTransport.getRemoteAddress(), this);
+            mDatagramSender.start();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not open UDP socket, sending mouse over TCP");
+        }
+    }
+
+    private void closeDatagramSender() {
+        mDatagramSender.shutdown();
+        mDroppedFrames += mDatagramSender.getDroppedKeys();
+        mDatagramSender = null;
+    }
+
     void disconnect() {
         if (DEBUG) {
             Log.d(TAG, "Disconnecting");
@@ -183,13 +384,31 @@ class TcpClient {
         if (mConnectAsync != null) {
             mConnectAsync.cancel(true);
         }
-        mHandler.removeCallbacks(mSendHeartbeat);
+        mHandler.removeCallbacks(mReconnect);
+        mHandler.removeCallbacks(mHelloTimeout);
+        if (mFrameSender != null) {
+            mFrameSender.shutdown();
+            mFrameSender = null;
+        }
+        if (mFrameReceiver != null) {
+            mFrameReceiver.shutdown();
+            mFrameReceiver = null;
+        }
+        mFeatures = 0;
+        if (mDatagramSender != null) {
+            closeDatagramSender();
+        }
+        if (mSendQueue != null) {
+            mDroppedFrames += mSendQueue.getDroppedMouse();
+            mRejectedFrames += mSendQueue.getRejected();
+            mSendQueue = null;
+        }
 
         mTcpClientObserver.connectionLost();
 
-        if (mSocket != null) {
+        if (mTransport != null) {
             try {
-                mSocket.close();
+                mTransport.close();
             } catch (IOException e) {
                 Log.e(TAG, "IO error while closing");
             }
@@ -197,62 +416,110 @@ class TcpClient {
             Log.d(TAG, "Socket was null on disconnect");
         }
 
-        mOutput = null;
-        mSocket = null;
+        mTransport = null;
+    }
+
+    private void scheduleReconnect() {
+        long delay = mBackoff.nextDelay();
+        Log.e(TAG, "Reconnecting in " + delay + " ms");
+        mHandler.postDelayed(mReconnect, delay);
     }
 
-    private Runnable mSendHeartbeat = new Runnable() {
+    private Runnable mReconnect = new Runnable() {
         @Override
         public void run() {
-            if (DEBUG) {
-                Log.d(TAG, "Sending heartbeat");
+            if (Metrics.isEnabled()) {
+                Metrics.countReconnect();
             }
-            new SendBytes().execute(new byte[]{HEARTBEAT});
+            disconnect();
+            connect();
         }
     };
 
-    private class SendResult {
-        boolean success = false;
-        boolean isHeartbeat = false;
+    /**
+     * A server that did not answer the hello frame is a legacy server, the connection just
+     * stays with the legacy protocol.
+     */
+    private Runnable mHelloTimeout = new Runnable() {
+        @Override
+        public void run() {
+            Log.i(TAG, "No answer to hello, using the legacy protocol");
+        }
+    };
+
+    @Override
+    public void sendFailed(final FrameSender sender, IOException e) {
+        Log.e(TAG, "IO error while sending: " + e.getMessage());
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (sender == mFrameSender) {
+                    reconnectAfterFailure();
+                }
+            }
+        });
     }
 
-    private class SendBytes extends AsyncTask<byte[], Void, SendResult> {
-        @Override
-        protected SendResult doInBackground(byte[]... bA) {
-            SendResult result = new SendResult();
-            result.isHeartbeat = (bA[0].length == 1) && (bA[0][0] == HEARTBEAT);
-            if (!isConnected() || mOutput == null) {
-                Log.e(TAG, "Tried to send, but not yet connected");
-                result.success = false;
-                return result;
+    @Override
+    public void connectionLost(final FrameReceiver receiver, IOException e) {
+        Log.e(TAG, "Connection lost: " + e.getMessage());
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (receiver == mFrameReceiver) {
+                    reconnectAfterFailure();
+                }
             }
+        });
+    }
 
-            try {
-                mOutput.write(bA[0]);
-            } catch (IOException e) {
-                Log.e(TAG, "IO error while sending");
-                result.success = false;
-                return result;
+    private void reconnectAfterFailure() {
+        if (DEBUG) {
+            Log.d(TAG, "Disconnecting due to connection failure");
+        }
+        disconnect();
+        // The backoff is only reset here, after a connection that lasted at least
+        // STABLE_CONNECTION.  A successful connect alone does not reset it, so a server
+        // that accepts and drops connections right away is still retried with growing
+        // delays.
+        if (SystemClock.elapsedRealtime() - mConnectedSince >= STABLE_CONNECTION) {
+            Log.e(TAG, "Reconnecting due to connection failure");
+            if (Metrics.isEnabled()) {
+                Metrics.countReconnect();
             }
-            result.success = true;
-            return result;
+            mBackoff.reset();
+            connect();
+        } else {
+            scheduleReconnect();
         }
+    }
 
-        @Override
-        protected void onPostExecute(SendResult result) {
-            if (!result.isHeartbeat) {
-                return;
+    @Override
+    public void featuresReceived(final FrameReceiver receiver, final int version,
+                                 final int features) {
+        Log.i(TAG, "Server speaks protocol version " + version + ", features 0x"
+                   + Integer.toHexString(features));
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (receiver == mFrameReceiver) {
+                    mHandler.removeCallbacks(mHelloTimeout);
+                    setFeatures(features);
+                }
             }
-            if (result.success) {
-                mHandler.postDelayed(mSendHeartbeat, HEARTBEAT_INTERVAL);
-            } else {
-                if (DEBUG) {
-                    Log.d(TAG, "Disconnecting due to error on heartbeat");
+        });
+    }
+
+    @Override
+    public void datagramFailed(final DatagramSender sender, IOException e) {
+        Log.e(TAG, "IO error while sending datagram, sending mouse over TCP");
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (sender == mDatagramSender) {
+                    closeDatagramSender();
                 }
-                disconnect();
-                Log.e(TAG, "Reconnecting due to error on heartbeat");
-                connect();
             }
-        }
+        });
     }
-}
\ No newline at end of file
+}
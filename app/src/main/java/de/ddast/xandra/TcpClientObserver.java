@@ -20,4 +20,5 @@ package de.ddast.xandra;
 interface TcpClientObserver {
     void connectionEstablished();
     void connectionLost();
+    void congestionChanged(boolean congested);
 }
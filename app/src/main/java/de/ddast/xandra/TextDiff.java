@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2017  Dennis Dast
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.ddast.xandra;
+
+/**
+ * Reduces a text change reported by a TextWatcher to the edit the server has to apply: a
+ * number of backspaces followed by the text to insert.  The common prefix of the replaced
+ * and the replacing text is trimmed, so that an IME that replaces a whole composing word
+ * only causes the differing characters to be retyped.
+ *
+ * The server only ever edits at its cursor, which is at the end of the text, so any text
+ * after the changed region has to be deleted and retyped as well.  A common suffix is
+ * therefore not trimmed: skipping it would require cursor key frames, which cost at least as
+ * much as retyping it.
+ *
+ * beforeTextChanged() has to be called with the old text before every change, because the
+ * Editable passed to the TextWatcher is modified in place.  Surrogate pairs are never split
+ * and deletions are counted in code points, as every code point is one backspace on the
+ * server.
+ */
+class TextDiff {
+    private final StringBuilder mBefore = new StringBuilder();
+    private int mDeletions, mInsertStart, mInsertEnd;
+
+    void beforeTextChanged(CharSequence s, int start, int count) {
+        mBefore.setLength(0);
+        mBefore.append(s, start, start + count);
+    }
+
+    /**
+     * Computes the edit for a change of s[start..start+count) that replaced before chars.
+     *
+     * @return false if the text did not actually change
+     */
+    boolean onTextChanged(CharSequence s, int start, int before, int count) {
+        int prefix = 0;
+        int maxPrefix = Math.min(before, count);
+        while (prefix < maxPrefix && mBefore.charAt(prefix) == s.charAt(start + prefix)) {
+            ++prefix;
+        }
+        if (prefix > 0 && Character.isHighSurrogate(mBefore.charAt(prefix - 1))) {
+            --prefix;
+        }
+        int tailStart = start + count;
+        if (prefix == before && prefix == count) {
+            mDeletions = 0;
+            mInsertStart = mInsertEnd = tailStart;
+            return false;
+        }
+        mDeletions = Character.codePointCount(mBefore, prefix, before)
+                     + Character.codePointCount(s, tailStart, s.length());
+        mInsertStart = start + prefix;
+        mInsertEnd = s.length();
+        return true;
+    }
+
+    /**
+     * Number of code points to delete at the end of the text.
+     */
+    int getDeletions() {
+        return mDeletions;
+    }
+
+    /**
+     * Start of the text to insert after the deletions, as index into s.
+     */
+    int getInsertStart() {
+        return mInsertStart;
+    }
+
+    /**
+     * End of the text to insert after the deletions, as index into s.
+     */
+    int getInsertEnd() {
+        return mInsertEnd;
+    }
+}
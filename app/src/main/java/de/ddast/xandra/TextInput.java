@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2017  Dennis Dast
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.ddast.xandra;
+
+/**
+ * Turns the TextWatcher callbacks of the input field into edits for an InputSink.
+ *
+ * The field must never be empty, it always contains one space to detect further backspace
+ * input.  It is reset to that space after a newline and after a bulk insert, so that the
+ * EditText does not have to lay out a huge paste.  The change caused by the reset itself is
+ * ignored.
+ */
+class TextInput {
+    static final String RESET_TEXT = " ";
+
+    private final InputSink mSink;
+    private final TextDiff mTextDiff = new TextDiff();
+    private boolean mIgnore = false;
+    private boolean mClear = false;
+
+    TextInput(InputSink sink) {
+        mSink = sink;
+    }
+
+    void beforeTextChanged(CharSequence s, int start, int count) {
+        mTextDiff.beforeTextChanged(s, start, count);
+    }
+
+    void onTextChanged(CharSequence s, int start, int before, int count) {
+        if (mIgnore) {
+            mIgnore = false;
+            return;
+        }
+        if (!mTextDiff.onTextChanged(s, start, before, count)) {
+            return;
+        }
+        mSink.sendEdit(mTextDiff.getDeletions(), s, mTextDiff.getInsertStart(),
+                       mTextDiff.getInsertEnd());
+        mClear = mTextDiff.getInsertEnd() - mTextDiff.getInsertStart() >= SendQueue.BULK_THRESHOLD;
+    }
+
+    /**
+     * @return true if the caller has to replace the whole text with RESET_TEXT
+     */
+    boolean afterTextChanged(CharSequence s) {
+        if (mClear || s.length() == 0 || containsNewline(s)) {
+            mClear = false;
+            mIgnore = true;
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean containsNewline(CharSequence s) {
+        for (int i = 0; i < s.length(); ++i) {
+            if (s.charAt(i) == '\n') {
+                return true;
+            }
+        }
+        return false;
+    }
+}
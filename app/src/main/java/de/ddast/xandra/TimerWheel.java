@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2017  Dennis Dast
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.ddast.xandra;
+
+/**
+ * Hashed timer wheel for the timeouts of the input handling.  Timers are preallocated
+ * objects that are linked into one of SLOTS lists by their deadline tick, so scheduling and
+ * cancelling take constant time and allocate nothing.
+ *
+ * The wheel does not run on its own.  Its owner reads the time from the Clock, is told about
+ * a new earliest deadline through the WakeUp interface and calls advance() at that time.
+ * On Android this is a single Handler callback, in tests and replays a virtual clock.
+ */
+final class TimerWheel {
+    static final long NEVER = Long.MAX_VALUE;
+
+    private static final int SLOTS = 64;
+    private static final int MASK  = SLOTS - 1;
+
+    interface Clock {
+        long now();
+    }
+
+    interface WakeUp {
+        /**
+         * Called when a timer is scheduled earlier than the last requested wake up.  The
+         * owner may also be woken up earlier or for cancelled timers, advance() then simply
+         * fires nothing.
+         */
+        void wakeUpAt(long time);
+    }
+
+    abstract static class Timer {
+        private long mDeadline = NEVER;
+        private int mSlot;
+        private Timer mPrev, mNext;
+
+        abstract void expired();
+
+        boolean isScheduled() {
+            return mDeadline != NEVER;
+        }
+    }
+
+    private final Clock mClock;
+    private final WakeUp mWakeUp;
+    private final long mTickMillis;
+    private final Timer[] mSlots = new Timer[SLOTS];
+    private long mTick;
+    private long mWakeUpTime = NEVER;
+    private int mCount = 0;
+
+    TimerWheel(Clock clock, long tickMillis, WakeUp wakeUp) {
+        mClock = clock;
+        mTickMillis = tickMillis;
+        mWakeUp = wakeUp;
+        mTick = clock.now() / tickMillis;
+    }
+
+    /**
+     * Schedules timer to expire delayMillis from now.  A scheduled timer is rescheduled.
+     */
+    void schedule(Timer timer, long delayMillis) {
+        cancel(timer);
+        long deadline = mClock.now() + delayMillis;
+        int slot = (int)(Math.max(deadline / mTickMillis, mTick) & MASK);
+        timer.mDeadline = deadline;
+        timer.mSlot = slot;
+        timer.mNext = mSlots[slot];
+        if (timer.mNext != null) {
+            timer.mNext.mPrev = timer;
+        }
+        mSlots[slot] = timer;
+        ++mCount;
+        if (deadline < mWakeUpTime) {
+            mWakeUpTime = deadline;
+            mWakeUp.wakeUpAt(deadline);
+        }
+    }
+
+    void cancel(Timer timer) {
+        if (!timer.isScheduled()) {
+            return;
+        }
+        if (timer.mPrev != null) {
+            timer.mPrev.mNext = timer.mNext;
+        } else {
+            mSlots[timer.mSlot] = timer.mNext;
+        }
+        if (timer.mNext != null) {
+            timer.mNext.mPrev = timer.mPrev;
+        }
+        timer.mPrev = timer.mNext = null;
+        timer.mDeadline = NEVER;
+        --mCount;
+    }
+
+    /**
+     * Fires all timers whose deadline has passed and requests the wake up for the next one.
+     */
+    void advance() {
+        long now = mClock.now();
+        long nowTick = now / mTickMillis;
+        long lastTick = Math.min(nowTick, mTick + MASK);
+        for (long tick = mTick; tick <= lastTick && mCount > 0; ++tick) {
+            int slot = (int)(tick & MASK);
+            Timer timer = mSlots[slot];
+            while (timer != null) {
+                Timer next = timer.mNext;
+                if (timer.mDeadline <= now) {
+                    cancel(timer);
+                    timer.expired();
+                    if (next != null && !next.isScheduled()) {
+                        // the callback cancelled the next timer, start over
+                        next = mSlots[slot];
+                    }
+                }
+                timer = next;
+            }
+        }
+        mTick = nowTick;
+        mWakeUpTime = nextDeadline();
+        if (mWakeUpTime != NEVER) {
+            mWakeUp.wakeUpAt(mWakeUpTime);
+        }
+    }
+
+    /**
+     * @return the earliest deadline of all scheduled timers or NEVER
+     */
+    long nextDeadline() {
+        long earliest = NEVER;
+        for (int i = 0; i < SLOTS && mCount > 0; ++i) {
+            for (Timer timer = mSlots[i]; timer != null; timer = timer.mNext) {
+                earliest = Math.min(earliest, timer.mDeadline);
+            }
+        }
+        return earliest;
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2017  Dennis Dast
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.ddast.xandra;
+
+import java.util.Arrays;
+
+/**
+ * Platform independent copy of the parts of a MotionEvent the gesture handling reads.  The
+ * action constants have the values of the corresponding MotionEvent constants.  Position
+ * pos of a pointer is one of the historical samples for pos < getHistorySize() and the
+ * current sample for pos == getHistorySize().
+ *
+ * Instances are meant to be reused, the arrays only grow.
+ */
+final class TouchEvent {
+    static final int ACTION_DOWN         = 0;
+    static final int ACTION_UP           = 1;
+    static final int ACTION_MOVE         = 2;
+    static final int ACTION_CANCEL       = 3;
+    static final int ACTION_POINTER_DOWN = 5;
+    static final int ACTION_POINTER_UP   = 6;
+    static final int INVALID_POINTER_ID  = -1;
+
+    private int mAction, mActionIndex, mPointerCount, mHistorySize;
+    private int[] mPointerIds = new int[2];
+    private long[] mTimes = new long[1];
+    private float[] mX = new float[2];
+    private float[] mY = new float[2];
+
+    void set(int action, int actionIndex, int pointerCount, int historySize) {
+        mAction = action;
+        mActionIndex = actionIndex;
+        mPointerCount = pointerCount;
+        mHistorySize = historySize;
+        if (mPointerIds.length < pointerCount) {
+            mPointerIds = new int[pointerCount];
+        }
+        if (mTimes.length < historySize + 1) {
+            mTimes = new long[historySize + 1];
+        }
+        int samples = (historySize + 1)*pointerCount;
+        if (mX.length < samples) {
+            mX = Arrays.copyOf(mX, samples);
+            mY = Arrays.copyOf(mY, samples);
+        }
+    }
+
+    void setPointerId(int pointerIndex, int pointerId) {
+        mPointerIds[pointerIndex] = pointerId;
+    }
+
+    void setEventTime(int pos, long time) {
+        mTimes[pos] = time;
+    }
+
+    void setPosition(int pointerIndex, int pos, float x, float y) {
+        mX[pos*mPointerCount + pointerIndex] = x;
+        mY[pos*mPointerCount + pointerIndex] = y;
+    }
+
+    int getActionMasked() {
+        return mAction;
+    }
+
+    int getActionIndex() {
+        return mActionIndex;
+    }
+
+    int getPointerCount() {
+        return mPointerCount;
+    }
+
+    int getHistorySize() {
+        return mHistorySize;
+    }
+
+    int getPointerId(int pointerIndex) {
+        return mPointerIds[pointerIndex];
+    }
+
+    int findPointerIndex(int pointerId) {
+        for (int i = 0; i < mPointerCount; ++i) {
+            if (mPointerIds[i] == pointerId) {
+                return i;
+            }
+        }
+        return INVALID_POINTER_ID;
+    }
+
+    long getEventTime() {
+        return mTimes[mHistorySize];
+    }
+
+    long getEventTime(int pos) {
+        return mTimes[pos];
+    }
+
+    float getX(int pointerIndex) {
+        return getX(pointerIndex, mHistorySize);
+    }
+
+    float getY(int pointerIndex) {
+        return getY(pointerIndex, mHistorySize);
+    }
+
+    float getX(int pointerIndex, int pos) {
+        checkPointerIndex(pointerIndex);
+        return mX[pos*mPointerCount + pointerIndex];
+    }
+
+    float getY(int pointerIndex, int pos) {
+        checkPointerIndex(pointerIndex);
+        return mY[pos*mPointerCount + pointerIndex];
+    }
+
+    private void checkPointerIndex(int pointerIndex) {
+        if (pointerIndex < 0 || pointerIndex >= mPointerCount) {
+            throw new IllegalArgumentException("pointerIndex out of range");
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2017  Dennis Dast
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.ddast.xandra;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class BackoffTest {
+    private static final long BASE = 250L;
+    private static final long MAX = 8000L;
+    private static final int SAMPLES = 1000;
+    private static final int ATTEMPTS = 100;
+
+    private final Backoff mBackoff = new Backoff(BASE, MAX);
+
+    /**
+     * The n-th delay lies in [d/2, d] with d = BASE * 2^n until d reaches MAX.
+     */
+    @Test
+    public void delaysGrowExponentially() {
+        for (int i = 0; i < SAMPLES; ++i) {
+            mBackoff.reset();
+            for (long d = BASE; d < MAX; d *= 2) {
+                assertInRange(d, mBackoff.nextDelay());
+            }
+        }
+    }
+
+    /**
+     * Once the cap is reached the delays stay in [MAX/2, MAX], also after many attempts when
+     * BASE * 2^n would overflow.
+     */
+    @Test
+    public void delaysAreCapped() {
+        for (int i = 0; i < ATTEMPTS; ++i) {
+            long delay = mBackoff.nextDelay();
+            assertTrue("Delay " + delay + " exceeds " + MAX, delay <= MAX);
+        }
+        for (int i = 0; i < SAMPLES; ++i) {
+            assertInRange(MAX, mBackoff.nextDelay());
+        }
+    }
+
+    @Test
+    public void resetStartsOver() {
+        for (int i = 0; i < ATTEMPTS; ++i) {
+            mBackoff.nextDelay();
+        }
+        mBackoff.reset();
+        assertInRange(BASE, mBackoff.nextDelay());
+        assertInRange(2*BASE, mBackoff.nextDelay());
+    }
+
+    private static void assertInRange(long d, long delay) {
+        assertTrue("Delay " + delay + " not in [" + d/2 + ", " + d + "]",
+                   delay >= d/2 && delay <= d);
+    }
+}
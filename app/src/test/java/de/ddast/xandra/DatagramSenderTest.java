@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2017  Dennis Dast
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.ddast.xandra;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.junit.Test;
+
+/**
+ * Checks the datagram channel for pointer frames against a StandInDatagramReceiver.
+ */
+public class DatagramSenderTest {
+    private static final int EVENTS = 1000;
+    private static final int KEYS = 20;
+    private static final int RATE = 1000;
+    private static final double LOSS = 0.05;
+    private static final long DRAIN_TIMEOUT = 5000L;
+
+    /**
+     * Stale and duplicate datagrams must be dropped, also across the wrap around of the
+     * sequence number.
+     */
+    @Test
+    public void staleDatagramsAreDropped() throws IOException, InterruptedException {
+        Recorder recorder = new Recorder();
+        StandInDatagramReceiver receiver = new StandInDatagramReceiver(recorder).start();
+        int[] sequences = {5, 3, 5, 6, Integer.MAX_VALUE, Integer.MIN_VALUE + 2, 7};
+        int[] distances = {1, 2, 4, 8, 16, 32, 64};
+        DatagramSocket socket = new DatagramSocket();
+        byte[] buf = new byte[FrameCodec.DATAGRAM_HEADER_SIZE + FrameCodec.MOUSE_FRAME_SIZE];
+        for (int i = 0; i < sequences.length; ++i) {
+            int len = FrameCodec.encodeDatagramHeader(buf, 0, sequences[i]);
+            len += FrameCodec.encodeMouse(buf, len, distances[i], 0);
+            socket.send(new DatagramPacket(buf, len, receiver.getAddress()));
+        }
+        socket.close();
+        long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT;
+        while (receiver.getAccepted() + receiver.getOutOfOrder() < sequences.length
+               && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        receiver.close();
+        assertEquals(4, receiver.getAccepted());
+        assertEquals(3, receiver.getOutOfOrder());
+        assertEquals(1 + 8 + 16 + 32, recorder.getMouse());
+    }
+
+    /**
+     * A swipe sent through DatagramSender must arrive completely on a loss free link.
+     */
+    @Test
+    public void swipe() throws Exception {
+        Recorder recorder = new Recorder();
+        StandInDatagramReceiver receiver = new StandInDatagramReceiver(recorder).start();
+        DatagramSender sender = swipe(receiver);
+        boolean received = recorder.await(EVENTS, EVENTS/100);
+        sender.shutdown();
+        receiver.close();
+        assertTrue(recorder.getMouse() + " of " + EVENTS + " px received", received);
+        assertEquals(EVENTS/100, recorder.getKeys());
+        assertEquals(0, receiver.getOutOfOrder());
+    }
+
+    /**
+     * A lossy link must only lose the movement of the lost datagrams.
+     */
+    @Test
+    public void lossySwipe() throws Exception {
+        Recorder recorder = new Recorder();
+        StandInDatagramReceiver receiver = new StandInDatagramReceiver(recorder).start();
+        receiver.setLoss(LOSS);
+        DatagramSender sender = swipe(receiver);
+        Thread.sleep(500);
+        sender.shutdown();
+        receiver.close();
+        assertTrue(receiver.getLost() > 0);
+        assertTrue(receiver.getAccepted() > 0);
+        assertTrue(recorder.getMouse() < EVENTS);
+        assertTrue(recorder.getMouse() + " of " + EVENTS + " px received",
+                   recorder.getMouse() >= (1.0 - 3*LOSS)*EVENTS);
+    }
+
+    /**
+     * Scroll deltas beyond the range of one scroll frame must be split without loss.
+     */
+    @Test
+    public void largeScrollIsSplit() throws IOException, InterruptedException {
+        final long[] sum = {0, 0};
+        StandInDatagramReceiver receiver = new StandInDatagramReceiver(
+                new StandInServer.EmptyListener() {
+                    @Override
+                    public void onScroll(int deltaX, int deltaY, long receivedNanos) {
+                        synchronized (sum) {
+                            sum[0] += deltaX;
+                            sum[1] += deltaY;
+                        }
+                    }
+                }).start();
+        DatagramSender sender = start(receiver);
+        int[] deltasX = {-30, 0, 3*FrameCodec.MAX_SCROLL_DELTA, 7, -1};
+        int[] deltasY = {120, -360, 5, -2*FrameCodec.MAX_SCROLL_DELTA - 11, 0};
+        long expectedX = 0, expectedY = 0;
+        for (int i = 0; i < deltasX.length; ++i) {
+            expectedX += deltasX[i];
+            expectedY += deltasY[i];
+            sender.offerScroll(deltasX[i], deltasY[i]);
+        }
+        long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT;
+        boolean received = false;
+        while (!received && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+            synchronized (sum) {
+                received = sum[0] == expectedX && sum[1] == expectedY;
+            }
+        }
+        sender.shutdown();
+        receiver.close();
+        synchronized (sum) {
+            assertEquals(expectedX, sum[0]);
+            assertEquals(expectedY, sum[1]);
+        }
+    }
+
+    /**
+     * Wheel keys beyond the capacity of one datagram are dropped and counted.
+     */
+    @Test
+    public void excessKeysAreCounted() throws IOException, InterruptedException {
+        Recorder recorder = new Recorder();
+        StandInDatagramReceiver receiver = new StandInDatagramReceiver(recorder).start();
+        DatagramSender sender = create(receiver);
+        for (int i = 0; i < KEYS; ++i) {
+            sender.offerKey(InputSink.WHEELDOWN);
+        }
+        assertEquals(KEYS - DatagramSender.MAX_KEYS, sender.getDroppedKeys());
+        sender.start();
+        long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT;
+        while (recorder.getKeys() < DatagramSender.MAX_KEYS
+               && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        sender.shutdown();
+        receiver.close();
+        assertEquals(DatagramSender.MAX_KEYS, recorder.getKeys());
+        assertEquals(1, receiver.getAccepted());
+    }
+
+    private static DatagramSender start(StandInDatagramReceiver receiver) throws IOException {
+        DatagramSender sender = create(receiver);
+        sender.start();
+        return sender;
+    }
+
+    private static DatagramSender create(StandInDatagramReceiver receiver) throws IOException {
+        return new DatagramSender(receiver.getAddress(), new DatagramSender.Callback() {
+            @Override
+            public void datagramFailed(DatagramSender sender, IOException e) {
+                System.err.println("Send failed: " + e);
+            }
+        });
+    }
+
+    /**
+     * Sends EVENTS moves of one pixel at RATE, with a wheel key every 100 moves.
+     */
+    private static DatagramSender swipe(StandInDatagramReceiver receiver) throws IOException {
+        DatagramSender sender = start(receiver);
+        long interval = TimeUnit.SECONDS.toNanos(1) / RATE;
+        long next = System.nanoTime();
+        for (int i = 0; i < EVENTS; ++i) {
+            next += interval;
+            while (System.nanoTime() < next) {
+                LockSupport.parkNanos(next - System.nanoTime());
+            }
+            if (i % 100 == 99) {
+                sender.offerKey(InputSink.WHEELUP);
+            }
+            sender.offerMouse(1, 0);
+        }
+        return sender;
+    }
+
+    private static class Recorder extends StandInServer.EmptyListener {
+        private long mMouse = 0;
+        private int mKeys = 0;
+
+        synchronized long getMouse() {
+            return mMouse;
+        }
+
+        synchronized int getKeys() {
+            return mKeys;
+        }
+
+        /**
+         * Waits until the movement and the keys have arrived, a key may follow the last
+         * movement within the same datagram.
+         */
+        synchronized boolean await(long distanceX, int keys) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT;
+            long remaining;
+            while ((mMouse < distanceX || mKeys < keys)
+                   && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                wait(remaining);
+            }
+            return mMouse == distanceX;
+        }
+
+        @Override
+        public synchronized void onMouse(int distanceX, int distanceY, long receivedNanos) {
+            mMouse += distanceX;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onSpecialKey(int key, long receivedNanos) {
+            ++mKeys;
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2017  Dennis Dast
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.ddast.xandra;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class FrameCodecTest {
+    private static final int ROUND_TRIP_FRAMES = 10000;
+    private static final int RANDOM_SPLITS     = 20;
+    private static final int MAX_CHUNK_SIZE    = 2*FrameCodec.MAX_FRAME_SIZE;
+    private static final String TEXT_SAMPLE    = "aZ 9\n\u00e4\u00df\u20ac\ud83d\ude00";
+
+    private final byte[] mFrame = new byte[FrameCodec.MAX_FRAME_SIZE];
+
+    /**
+     * Heartbeat, mouse, special key and text frames are understood by legacy servers and must
+     * be encoded exactly as the app did before the frames were moved into FrameCodec.
+     */
+    @Test
+    public void legacyFramesMatchBaseline() throws UnsupportedEncodingException {
+        assertArrayEquals(new byte[] {0x00}, encoded(FrameCodec.encodeHeartbeat(mFrame, 0)));
+        for (int key = 0; key <= InputSink.LEFTMOUSEUP; ++key) {
+            assertArrayEquals(new byte[] {(byte)0xfc, (byte)0x80, (byte)0x80, (byte)0x80,
+                                          (byte)0x80, (byte)(0x80 | key)},
+                              encoded(FrameCodec.encodeSpecialKey(mFrame, 0, (byte)key)));
+        }
+        for (int x = -FrameCodec.MAX_MOUSE_DELTA; x <= FrameCodec.MAX_MOUSE_DELTA; x += 7) {
+            for (int y = -FrameCodec.MAX_MOUSE_DELTA; y <= FrameCodec.MAX_MOUSE_DELTA; y += 13) {
+                assertArrayEquals(legacyMouse(x, y),
+                                  encoded(FrameCodec.encodeMouse(mFrame, 0, x, y)));
+            }
+        }
+        int start = 0;
+        while (start < TEXT_SAMPLE.length()) {
+            int end = start + FrameCodec.charCount(TEXT_SAMPLE, start, TEXT_SAMPLE.length());
+            assertArrayEquals(TEXT_SAMPLE.substring(start, end).getBytes("UTF-8"),
+                              encoded(FrameCodec.encodeUtf8(TEXT_SAMPLE, start, end, mFrame,
+                                                            0)));
+            start = end;
+        }
+    }
+
+    @Test
+    public void unpairedSurrogatesAreReplaced() throws UnsupportedEncodingException {
+        String text = "\ude00a\ud83d\u20ac\ud83d";
+        byte[] expected = "?a?\u20ac?".getBytes("UTF-8");
+        assertEquals(expected.length, FrameCodec.utf8Length(text, 0, text.length()));
+        assertArrayEquals(expected, encoded(FrameCodec.encodeUtf8(text, 0, text.length(),
+                                                                  mFrame, 0)));
+    }
+
+    /**
+     * The frames added later, byte for byte as documented in FrameCodec.
+     */
+    @Test
+    public void extensionFrameLayout() {
+        assertArrayEquals(bytes(0xfe, 0x86, 0x81, 0x80, 0x80, 0x81, 0xbf, 0xbf, 0xbf),
+                          encoded(FrameCodec.encodeScroll(mFrame, 0, 1, -1)));
+        assertArrayEquals(bytes(0xfe, 0x83, 0x82, 0x81, 0x80, 0x8f),
+                          encoded(FrameCodec.encodeHello(mFrame, 0, 1, 0xf)));
+        assertArrayEquals(bytes(0xfe, 0x83, 0x83, 0x81, 0x80, 0xa4),
+                          encoded(FrameCodec.encodeKey(mFrame, 0, InputSink.LEFTMOUSEDOWN,
+                                                       true)));
+        assertArrayEquals(bytes(0xfe, 0x83, 0x83, 0x80, 0x80, 0xa5),
+                          encoded(FrameCodec.encodeKey(mFrame, 0, InputSink.LEFTMOUSEUP,
+                                                       false)));
+        assertArrayEquals(bytes(0xff, 0x15),
+                          encoded(FrameCodec.encodeMotion(mFrame, 0, 1, -1)));
+        assertArrayEquals(bytes(0xff, 0x7c, 0x00),
+                          encoded(FrameCodec.encodeMotion(mFrame, 0, 31, 0)));
+        assertArrayEquals(bytes(0xff, 0x80, 0x01, 0x00),
+                          encoded(FrameCodec.encodeMotion(mFrame, 0, 32, 0)));
+        assertArrayEquals(bytes(0x01, 0x02, 0x03, 0x04),
+                          encoded(FrameCodec.encodeDatagramHeader(mFrame, 0, 0x01020304)));
+    }
+
+    /**
+     * Compact motion frames take two bytes for x and y in [-4, 3] and three bytes for x in
+     * [-32, 31] and y in [-64, 63].
+     */
+    @Test
+    public void motionFrameSizes() {
+        assertEquals(2, FrameCodec.encodeMotion(mFrame, 0, -4, 3));
+        assertEquals(3, FrameCodec.encodeMotion(mFrame, 0, 4, 0));
+        assertEquals(3, FrameCodec.encodeMotion(mFrame, 0, -32, -64));
+        assertEquals(3, FrameCodec.encodeMotion(mFrame, 0, 31, 63));
+        assertEquals(4, FrameCodec.encodeMotion(mFrame, 0, -33, 0));
+        assertEquals(4, FrameCodec.encodeMotion(mFrame, 0, 32, 0));
+        assertEquals(4, FrameCodec.encodeMotion(mFrame, 0, 0, -65));
+        assertEquals(4, FrameCodec.encodeMotion(mFrame, 0, 0, 64));
+    }
+
+    /**
+     * A random stream of every frame type decodes to the encoded frames no matter how it is
+     * split across calls to feed: in one piece, byte by byte and in random chunks.
+     */
+    @Test
+    public void roundTrip() {
+        Random random = new Random(11);
+        byte[] stream = new byte[ROUND_TRIP_FRAMES*FrameCodec.MAX_FRAME_SIZE];
+        List<String> expected = new ArrayList<String>();
+        int pos = 0;
+        for (int i = 0; i < ROUND_TRIP_FRAMES; ++i) {
+            int x, y, key;
+            switch (random.nextInt(8)) {
+                case 0:
+                    pos += FrameCodec.encodeHeartbeat(stream, pos);
+                    expected.add("heartbeat");
+                    break;
+                case 1:
+                    x = signed(random, FrameCodec.MAX_MOUSE_DELTA);
+                    y = signed(random, FrameCodec.MAX_MOUSE_DELTA);
+                    pos += FrameCodec.encodeMouse(stream, pos, x, y);
+                    expected.add(Frames.mouse(x, y));
+                    break;
+                case 2:
+                    key = random.nextInt(InputSink.LEFTMOUSEUP + 1);
+                    pos += FrameCodec.encodeSpecialKey(stream, pos, (byte)key);
+                    expected.add(Frames.key(key));
+                    break;
+                case 3:
+                    int start = random.nextInt(TEXT_SAMPLE.length());
+                    if (Character.isLowSurrogate(TEXT_SAMPLE.charAt(start))) {
+                        --start;
+                    }
+                    pos += FrameCodec.encodeUtf8Char(TEXT_SAMPLE, start, TEXT_SAMPLE.length(),
+                                                     stream, pos);
+                    expected.add(Frames.text(TEXT_SAMPLE.codePointAt(start)));
+                    break;
+                case 4:
+                    x = signed(random, random.nextBoolean() ? 4 : FrameCodec.MAX_MOTION_DELTA);
+                    y = signed(random, random.nextBoolean() ? 4 : FrameCodec.MAX_MOTION_DELTA);
+                    pos += FrameCodec.encodeMotion(stream, pos, x, y);
+                    expected.add(Frames.mouse(x, y));
+                    break;
+                case 5:
+                    x = signed(random, FrameCodec.MAX_SCROLL_DELTA);
+                    y = signed(random, FrameCodec.MAX_SCROLL_DELTA);
+                    pos += FrameCodec.encodeScroll(stream, pos, x, y);
+                    expected.add("scroll " + x + " " + y);
+                    break;
+                case 6:
+                    int version = random.nextInt(0x40);
+                    int features = random.nextInt(0x1000);
+                    pos += FrameCodec.encodeHello(stream, pos, version, features);
+                    expected.add("hello " + version + " 0x" + Integer.toHexString(features));
+                    break;
+                default:
+                    key = random.nextInt(InputSink.LEFTMOUSEUP + 1);
+                    boolean pressed = random.nextBoolean();
+                    pos += FrameCodec.encodeKey(stream, pos, (byte)key, pressed);
+                    expected.add((pressed ? "press 0x" : "release 0x")
+                                 + Integer.toHexString(key));
+                    break;
+            }
+        }
+        stream = Arrays.copyOf(stream, pos);
+
+        assertEquals(expected, Frames.decode(stream));
+        assertEquals(expected, Frames.decodeInChunks(stream, new int[] {1}));
+        for (int i = 0; i < RANDOM_SPLITS; ++i) {
+            int[] chunkSizes = new int[1 + random.nextInt(16)];
+            for (int j = 0; j < chunkSizes.length; ++j) {
+                chunkSizes[j] = 1 + random.nextInt(MAX_CHUNK_SIZE);
+            }
+            assertEquals(Arrays.toString(chunkSizes), expected,
+                         Frames.decodeInChunks(stream, chunkSizes));
+        }
+    }
+    /**
+     * Extension frames of unknown type are skipped by their length.
+     */
+    @Test
+    public void unknownExtensionIsSkipped() {
+        byte[] stream = {'a', (byte)0xfe, (byte)0x85, (byte)0xbf, (byte)0x80, (byte)0x81,
+                         (byte)0x82, (byte)0x83, (byte)0x84, 'b', (byte)0xfe, (byte)0x80,
+                         (byte)0x82, 'c'};
+        assertEquals(Arrays.asList(Frames.text('a'), Frames.text('b'), Frames.text('c')),
+                     Frames.decode(stream));
+    }
+
+    @Test
+    public void keyFrames() {
+        byte[] frame = new byte[FrameCodec.MAX_FRAME_SIZE];
+        for (int key = InputSink.LEFTCLICK; key <= InputSink.LEFTMOUSEUP; ++key) {
+            String hex = Integer.toHexString(key);
+            assertEquals(Arrays.asList("press 0x" + hex),
+                         Frames.decode(frame, 0, FrameCodec.encodeKey(frame, 0, (byte)key,
+                                                                      true)));
+            assertEquals(Arrays.asList("release 0x" + hex),
+                         Frames.decode(frame, 0, FrameCodec.encodeKey(frame, 0, (byte)key,
+                                                                      false)));
+        }
+    }
+
+    /**
+     * Compact motion frames at the boundaries of their sizes, each followed by a text frame
+     * to detect a wrong frame length.
+     */
+    @Test
+    public void motionFrames() {
+        int[] distances = {0, 1, -1, 3, -4, 4, -5, 31, -32, 32, -33, 63, -64, 64, 8191, -8192,
+                           8192, 0xfff, 0x1000, FrameCodec.MAX_MOTION_DELTA,
+                           -FrameCodec.MAX_MOTION_DELTA};
+        byte[] stream = new byte[distances.length*distances.length
+                                 *(FrameCodec.MAX_MOTION_FRAME_SIZE + 1)];
+        List<String> expected = new ArrayList<String>();
+        int pos = 0;
+        for (int x : distances) {
+            for (int y : distances) {
+                pos += FrameCodec.encodeMotion(stream, pos, x, y);
+                stream[pos++] = 'a';
+                expected.add(Frames.mouse(x, y));
+                expected.add(Frames.text('a'));
+            }
+        }
+        assertEquals(expected, Frames.decode(stream, 0, pos));
+    }
+
+    private byte[] encoded(int len) {
+        return Arrays.copyOf(mFrame, len);
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] result = new byte[values.length];
+        for (int i = 0; i < values.length; ++i) {
+            result[i] = (byte)values[i];
+        }
+        return result;
+    }
+
+    private static int signed(Random random, int max) {
+        return random.nextInt(2*max + 1) - max;
+    }
+
+    /**
+     * The mouse frame as TcpClient.sendMouse() built it before FrameCodec existed.
+     */
+    private static byte[] legacyMouse(int distanceX, int distanceY) {
+        boolean isNegX = distanceX < 0;
+        boolean isNegY = distanceY < 0;
+        distanceX = Math.abs(distanceX) & 0xfff;
+        distanceY = Math.abs(distanceY) & 0xfff;
+        return new byte[] {(byte)(0xf8 | (isNegX ? 0x02 : 0x00) | distanceX>>>11),
+                           (byte)(0x80 | distanceX>>>5 & 0x3f),
+                           (byte)(0x80 | (distanceX & 0x1f)<<1 | (isNegY ? 0x01 : 0x00)),
+                           (byte)(0x80 | distanceY>>>6),
+                           (byte)(0x80 | distanceY & 0x3f)};
+    }
+}
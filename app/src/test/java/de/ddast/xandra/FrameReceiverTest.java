@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2017  Dennis Dast
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.ddast.xandra;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * Checks the hello handshake the way TcpClient uses it against StandInServers: a legacy server
+ * never answers and still receives all frames, a new server answers with the features both
+ * sides support, and every connection negotiates its features anew.
+ * Also checks that a closed or silent connection is reported as lost.
+ */
+public class FrameReceiverTest {
+    private static final int CLIENT_FEATURES = FrameCodec.FEATURE_SCROLL
+                                               | FrameCodec.FEATURE_DATAGRAM;
+    private static final int UNKNOWN_FEATURE = 0x800;
+    private static final long CONNECT_TIMEOUT = 1000L;
+    private static final long HEARTBEAT_INTERVAL = 1000L;
+    private static final long WRITE_TIMEOUT = 5000L;
+    private static final long ANSWER_TIMEOUT = 500L;
+    private static final long ECHO_INTERVAL = 20L;
+    private static final long READ_TIMEOUT = 200L;
+    private static final int ECHOES = 30;
+    private static final long LOST_TIMEOUT = 5000L;
+    private static final String TEXT = "hello";
+
+    private final String mHost = InetAddress.getLoopbackAddress().getHostAddress();
+
+    @Test
+    public void legacyServer() throws Exception {
+        Handshake handshake = new Handshake(-1);
+        assertFalse(handshake.mAnswered);
+        assertEquals(TEXT, handshake.mText);
+    }
+
+    @Test
+    public void featuresAreNegotiatedPerConnection() throws Exception {
+        int features = FrameCodec.FEATURE_SCROLL | UNKNOWN_FEATURE;
+        Handshake first = new Handshake(features);
+        assertTrue(first.mAnswered);
+        assertEquals(FrameCodec.FEATURE_SCROLL, first.mFeatures);
+        assertEquals(TEXT, first.mText);
+
+        Handshake reconnect = new Handshake(-1);
+        assertFalse(reconnect.mAnswered);
+        assertEquals(0, reconnect.mFeatures);
+        assertEquals(TEXT, reconnect.mText);
+    }
+
+    @Test
+    public void closedConnectionIsLost() throws Exception {
+        StandInServer server = new StandInServer(new StandInServer.EmptyListener()).start();
+        ChannelTransport transport = ServerConnector.connect(mHost, server.getPort(),
+                                                             CONNECT_TIMEOUT);
+        Loss loss = new Loss();
+        FrameReceiver receiver = new FrameReceiver(transport, CLIENT_FEATURES, loss);
+        receiver.start();
+        awaitAccepted(server);
+        server.dropClient();
+        try {
+            assertTrue(loss.mLost.await(LOST_TIMEOUT, TimeUnit.MILLISECONDS));
+            assertTrue(loss.mError.get() instanceof EOFException);
+        } finally {
+            transport.close();
+            server.close();
+        }
+    }
+
+    /**
+     * With heartbeat echo the connection survives many read timeouts while the server echoes,
+     * and is lost once the server stops answering although the socket stays open.
+     */
+    @Test
+    public void silentConnectionIsLost() throws Exception {
+        final AtomicInteger heartbeats = new AtomicInteger();
+        StandInServer server = new StandInServer(new StandInServer.EmptyListener() {
+            @Override
+            public void onHeartbeat(long receivedNanos) {
+                heartbeats.incrementAndGet();
+            }
+        }).setFeatures(FrameCodec.FEATURE_HEARTBEAT_ECHO).start();
+        ChannelTransport transport = ServerConnector.connect(mHost, server.getPort(),
+                                                             CONNECT_TIMEOUT);
+        SendQueue queue = new SendQueue();
+        FrameSender sender = new FrameSender(queue, transport, ECHO_INTERVAL, WRITE_TIMEOUT,
+                new FrameSender.Callback() {
+                    @Override
+                    public void sendFailed(FrameSender sender, IOException e) {
+                        System.err.println("Send failed: " + e);
+                    }
+                });
+        sender.setHeartbeatEcho(true);
+        Loss loss = new Loss();
+        FrameReceiver receiver = new FrameReceiver(transport, CLIENT_FEATURES, loss);
+        receiver.setReadTimeout(READ_TIMEOUT);
+        sender.start();
+        receiver.start();
+        try {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(LOST_TIMEOUT);
+            while (heartbeats.get() < ECHOES && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+            assertTrue(heartbeats.get() >= ECHOES);
+            assertEquals(1, loss.mLost.getCount());
+
+            server.setEchoing(false);
+            assertTrue(loss.mLost.await(LOST_TIMEOUT, TimeUnit.MILLISECONDS));
+            assertTrue(loss.mError.get() instanceof SocketTimeoutException);
+        } finally {
+            sender.shutdown();
+            transport.close();
+            server.close();
+        }
+    }
+
+    private static void awaitAccepted(StandInServer server) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(LOST_TIMEOUT);
+        while (server.getAccepts() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(1, server.getAccepts());
+    }
+
+    private static class Loss implements FrameReceiver.Callback {
+        private final CountDownLatch mLost = new CountDownLatch(1);
+        private final AtomicReference<IOException> mError = new AtomicReference<>();
+
+        @Override
+        public void featuresReceived(FrameReceiver receiver, int version, int features) {}
+
+        @Override
+        public void connectionLost(FrameReceiver receiver, IOException e) {
+            mError.set(e);
+            mLost.countDown();
+        }
+    }
+
+    /**
+     * Connects like TcpClient: the hello frame is queued first, followed by legacy input
+     * without waiting for the answer.
+     */
+    private class Handshake {
+        private final boolean mAnswered;
+        private final String mText;
+        private int mFeatures;
+
+        Handshake(int serverFeatures) throws Exception {
+            final StringBuilder text = new StringBuilder();
+            final CountDownLatch received = new CountDownLatch(TEXT.length());
+            StandInServer server = new StandInServer(new StandInServer.EmptyListener() {
+                @Override
+                public void onText(int codePoint, long receivedNanos) {
+                    synchronized (text) {
+                        text.appendCodePoint(codePoint);
+                    }
+                    received.countDown();
+                }
+            }).setFeatures(serverFeatures).start();
+
+            ChannelTransport transport = ServerConnector.connect(mHost, server.getPort(),
+                                                                 CONNECT_TIMEOUT);
+            SendQueue queue = new SendQueue();
+            FrameSender sender = new FrameSender(queue, transport, HEARTBEAT_INTERVAL,
+                    WRITE_TIMEOUT, new FrameSender.Callback() {
+                        @Override
+                        public void sendFailed(FrameSender sender, IOException e) {
+                            System.err.println("Send failed: " + e);
+                        }
+                    });
+            sender.start();
+            byte[] frame = new byte[FrameCodec.MAX_FRAME_SIZE];
+            queue.offer(frame, 0, FrameCodec.encodeHello(frame, 0, FrameCodec.PROTOCOL_VERSION,
+                                                         CLIENT_FEATURES));
+            final CountDownLatch answered = new CountDownLatch(1);
+            FrameReceiver receiver = new FrameReceiver(transport, CLIENT_FEATURES,
+                    new FrameReceiver.Callback() {
+                        @Override
+                        public void featuresReceived(FrameReceiver receiver, int version,
+                                                     int features) {
+                            mFeatures = features;
+                            answered.countDown();
+                        }
+
+                        @Override
+                        public void connectionLost(FrameReceiver receiver, IOException e) {}
+                    });
+            receiver.start();
+            queue.offerText(TEXT, 0, TEXT.length());
+
+            received.await(ANSWER_TIMEOUT, TimeUnit.MILLISECONDS);
+            mAnswered = answered.await(ANSWER_TIMEOUT, TimeUnit.MILLISECONDS);
+            sender.shutdown();
+            receiver.shutdown();
+            transport.close();
+            server.close();
+            assertEquals(1, server.getHellos());
+            synchronized (text) {
+                mText = text.toString();
+            }
+        }
+    }
+}
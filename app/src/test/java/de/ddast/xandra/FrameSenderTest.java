@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2017  Dennis Dast
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.ddast.xandra;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class FrameSenderTest {
+    private static final long CONNECT_TIMEOUT    = 1000L;
+    private static final long HEARTBEAT_INTERVAL = 100L;
+    private static final long WRITE_TIMEOUT      = 200L;
+    private static final long TYPING_INTERVAL    = 10L;
+    private static final long TYPING_DURATION    = 1000L;
+    private static final long FAILURE_TIMEOUT    = 10000L;
+
+    private final AtomicInteger mHeartbeats = new AtomicInteger();
+    private final AtomicInteger mKeys = new AtomicInteger();
+    private final AtomicReference<IOException> mFailure = new AtomicReference<>();
+    private final CountDownLatch mFailed = new CountDownLatch(1);
+    private final VirtualClock mClock = new VirtualClock();
+    private final SendQueue mQueue = new SendQueue(mClock);
+    private StandInServer mServer;
+    private ChannelTransport mTransport;
+    private FrameSender mSender;
+
+    @After
+    public void tearDown() throws IOException {
+        if (mSender != null) {
+            mSender.shutdown();
+        }
+        if (mTransport != null) {
+            mTransport.close();
+        }
+        if (mServer != null) {
+            mServer.close();
+        }
+    }
+
+    /**
+     * While frames are sent more often than the heartbeat interval no heartbeat may be
+     * written; once the input stops they have to follow at the interval.  A heartbeat sent
+     * before a key arrives before it, so counting them after the key has arrived is exact.
+     */
+    @Test
+    public void heartbeatsOnlyWhenIdle() throws Exception {
+        startSender(HEARTBEAT_INTERVAL, false);
+        long time = 0;
+        int sent = 0;
+        for (; time < TYPING_DURATION; time += TYPING_INTERVAL) {
+            mClock.advanceTo(time);
+            sendKey();
+            awaitKeys(++sent);
+        }
+        assertEquals("Heartbeats while typing", 0, mHeartbeats.get());
+
+        time -= TYPING_INTERVAL;
+        mClock.advanceTo(time + HEARTBEAT_INTERVAL - 1);
+        sendKey();
+        awaitKeys(++sent);
+        assertEquals(0, mHeartbeats.get());
+        time += HEARTBEAT_INTERVAL - 1;
+        for (int i = 1; i <= 3; ++i) {
+            mClock.advanceTo(time + i*HEARTBEAT_INTERVAL);
+            awaitHeartbeats(i);
+        }
+    }
+
+    /**
+     * With heartbeat echo a heartbeat is also sent once per interval while typing, so the
+     * server's echo keeps arriving.
+     */
+    @Test
+    public void echoHeartbeatsWhileTyping() throws Exception {
+        startSender(HEARTBEAT_INTERVAL, true);
+        int sent = 0;
+        for (long time = 0; time < TYPING_DURATION; time += TYPING_INTERVAL) {
+            mClock.advanceTo(time);
+            sendKey();
+            awaitKeys(++sent);
+        }
+        mClock.advanceTo(TYPING_DURATION - 1);
+        sendKey();
+        awaitKeys(++sent);
+        assertEquals(TYPING_DURATION/HEARTBEAT_INTERVAL - 1, mHeartbeats.get());
+    }
+
+    /**
+     * A heartbeat interval of zero disables heartbeats, but frames are still sent.
+     */
+    @Test
+    public void zeroIntervalDisablesHeartbeats() throws Exception {
+        startSender(0, false);
+        mClock.advanceTo(10*HEARTBEAT_INTERVAL);
+        sendKey();
+        awaitKeys(1);
+        mClock.advanceTo(20*HEARTBEAT_INTERVAL);
+        sendKey();
+        awaitKeys(2);
+        assertEquals(0, mHeartbeats.get());
+    }
+
+    /**
+     * A peer that stops reading must make the write time out and report sendFailed().
+     */
+    @Test
+    public void stalledWriteFailsSend() throws Exception {
+        ServerSocket serverSocket = new ServerSocket();
+        serverSocket.setReceiveBufferSize(4096);
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1);
+        mTransport = ChannelTransport.connect(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                                      serverSocket.getLocalPort()),
+                CONNECT_TIMEOUT);
+        Socket peer = serverSocket.accept();
+        try {
+            mSender = new FrameSender(mQueue, mTransport, HEARTBEAT_INTERVAL, WRITE_TIMEOUT,
+                                      new Callback());
+            mSender.start();
+            byte[] text = new byte[SendQueue.SLOT_SIZE];
+            Arrays.fill(text, (byte)'a');
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FAILURE_TIMEOUT);
+            while (mFailed.getCount() > 0 && System.nanoTime() < deadline) {
+                if (!mQueue.offer(text, 0, text.length)) {
+                    Thread.sleep(1);
+                }
+            }
+            assertTrue("sendFailed() not called",
+                       mFailed.await(WRITE_TIMEOUT, TimeUnit.MILLISECONDS));
+            assertTrue(mFailure.get() instanceof SocketTimeoutException);
+        } finally {
+            peer.close();
+            serverSocket.close();
+        }
+    }
+
+    private void startSender(long heartbeatInterval, boolean heartbeatEcho)
+            throws IOException {
+        mServer = new StandInServer(new StandInServer.EmptyListener() {
+            @Override
+            public void onHeartbeat(long receivedNanos) {
+                mHeartbeats.incrementAndGet();
+            }
+
+            @Override
+            public void onSpecialKey(int key, long receivedNanos) {
+                mKeys.incrementAndGet();
+            }
+        }).start();
+        mTransport = ChannelTransport.connect(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), mServer.getPort()),
+                CONNECT_TIMEOUT);
+        mSender = new FrameSender(mQueue, mTransport, heartbeatInterval, WRITE_TIMEOUT,
+                                  new Callback());
+        mSender.setHeartbeatEcho(heartbeatEcho);
+        mSender.start();
+    }
+
+    private void sendKey() {
+        byte[] frame = new byte[FrameCodec.MAX_FRAME_SIZE];
+        assertTrue(mQueue.offer(frame, 0, FrameCodec.encodeSpecialKey(frame, 0, InputSink.TAB)));
+    }
+
+    private void awaitKeys(int count) throws InterruptedException {
+        await(mKeys, count);
+    }
+
+    private void awaitHeartbeats(int count) throws InterruptedException {
+        await(mHeartbeats, count);
+    }
+
+    private static void await(AtomicInteger counter, int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FAILURE_TIMEOUT);
+        while (counter.get() < count && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(count, counter.get());
+    }
+
+    private class Callback implements FrameSender.Callback {
+        @Override
+        public void sendFailed(FrameSender sender, IOException e) {
+            mFailure.set(e);
+            mFailed.countDown();
+        }
+    }
+}
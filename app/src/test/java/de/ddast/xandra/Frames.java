@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2017  Dennis Dast
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.ddast.xandra;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Decodes frame streams into one line per frame, for comparing them in tests and printing
+ * the difference.  The listener methods of StandInServer can use the same format by calling
+ * the static methods for the single frame types.
+ */
+class Frames {
+    private Frames() {}
+
+    static String mouse(int distanceX, int distanceY) {
+        return "mouse " + distanceX + " " + distanceY;
+    }
+
+    static String key(int key) {
+        return "key 0x" + Integer.toHexString(key);
+    }
+
+    static String text(int codePoint) {
+        return String.format(Locale.US, "text U+%04X", codePoint);
+    }
+
+    static List<String> decode(byte[] stream) {
+        return decode(stream, 0, stream.length);
+    }
+
+    static List<String> decode(byte[] stream, int off, int len) {
+        List<String> frames = new ArrayList<String>();
+        FrameCodec.Decoder decoder = newDecoder(frames);
+        decoder.feed(stream, off, len);
+        addInvalidBytes(frames, decoder);
+        return frames;
+    }
+
+    /**
+     * Decodes the stream fed in chunks of the given sizes, which are repeated cyclically until
+     * the whole stream was fed.
+     */
+    static List<String> decodeInChunks(byte[] stream, int[] chunkSizes) {
+        List<String> frames = new ArrayList<String>();
+        FrameCodec.Decoder decoder = newDecoder(frames);
+        int off = 0;
+        for (int i = 0; off < stream.length; ++i) {
+            int len = Math.min(chunkSizes[i % chunkSizes.length], stream.length - off);
+            decoder.feed(stream, off, len);
+            off += len;
+        }
+        addInvalidBytes(frames, decoder);
+        return frames;
+    }
+
+    private static FrameCodec.Decoder newDecoder(final List<String> frames) {
+        return new FrameCodec.Decoder(new FrameCodec.Decoder.Listener() {
+            @Override
+            public void onHeartbeat() {
+                frames.add("heartbeat");
+            }
+
+            @Override
+            public void onMouse(int distanceX, int distanceY) {
+                frames.add(mouse(distanceX, distanceY));
+            }
+
+            @Override
+            public void onSpecialKey(int key) {
+                frames.add(key(key));
+            }
+
+            @Override
+            public void onScroll(int deltaX, int deltaY) {
+                frames.add("scroll " + deltaX + " " + deltaY);
+            }
+
+            @Override
+            public void onHello(int version, int features) {
+                frames.add("hello " + version + " 0x" + Integer.toHexString(features));
+            }
+
+            @Override
+            public void onKey(int key, boolean pressed) {
+                frames.add((pressed ? "press 0x" : "release 0x") + Integer.toHexString(key));
+            }
+
+            @Override
+            public void onText(int codePoint) {
+                frames.add(text(codePoint));
+            }
+        });
+    }
+
+    private static void addInvalidBytes(List<String> frames, FrameCodec.Decoder decoder) {
+        if (decoder.getInvalidBytes() > 0) {
+            frames.add("invalid bytes " + decoder.getInvalidBytes());
+        }
+    }
+
+    static byte[] readFile(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] data = new byte[(int)file.length()];
+            int read = 0;
+            while (read < data.length) {
+                int n = in.read(data, read, data.length - read);
+                if (n < 0) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+                read += n;
+            }
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2017  Dennis Dast
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.ddast.xandra;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Feeds touch events at fixed times of a virtual clock into GestureEngine and compares the
+ * frames sent, together with the time they were sent, with the expected sequence.
+ */
+public class GestureEngineTest {
+    private static final long TAPDELAY         = 250L;
+    private static final float TAPTOL          = 10.0f;
+    private static final float SCROLLTHRESHOLD = 10.0f;
+
+    private final TouchEvent mEvent = new TouchEvent();
+    private final VirtualClock mClock = new VirtualClock();
+    private RecordingSink mSink;
+    private GestureEngine mGestureEngine;
+
+    private void init(boolean scrollFrames) {
+        mSink = new RecordingSink(mClock, scrollFrames, false);
+        // without acceleration the movement is linear: one pixel per pixel
+        mGestureEngine = new GestureEngine(mSink, mClock.getTimerWheel(), TAPDELAY, TAPTOL,
+                                           1.0f, 1.0f, SCROLLTHRESHOLD);
+    }
+
+    @Test
+    public void tap() {
+        init(false);
+        touch(1000, TouchEvent.ACTION_DOWN, 100f, 100f);
+        touch(1080, TouchEvent.ACTION_UP, 102f, 101f);
+        expect(2000, "1080 key 36", "1330 key 37");
+    }
+
+    @Test
+    public void longPress() {
+        init(false);
+        touch(1000, TouchEvent.ACTION_DOWN, 100f, 100f);
+        touch(1600, TouchEvent.ACTION_UP, 103f, 98f);
+        expect(2000, "1500 key 2");
+    }
+
+    @Test
+    public void movedLongPress() {
+        init(false);
+        touch(1000, TouchEvent.ACTION_DOWN, 100f, 100f);
+        touch(1100, TouchEvent.ACTION_MOVE, 150f, 100f);
+        touch(1600, TouchEvent.ACTION_UP, 150f, 100f);
+        expect(2000, "1100 mouse 50 0");
+    }
+
+    @Test
+    public void dragAndDrop() {
+        init(false);
+        touch(1000, TouchEvent.ACTION_DOWN, 100f, 100f);
+        touch(1060, TouchEvent.ACTION_UP, 100f, 100f);
+        touch(1160, TouchEvent.ACTION_DOWN, 100f, 100f);
+        touch(1180, TouchEvent.ACTION_MOVE, 120f, 110f);
+        touch(1300, TouchEvent.ACTION_UP, 120f, 110f);
+        expect(2000, "1060 key 36", "1180 mouse 20 10", "1300 key 37");
+    }
+
+    @Test
+    public void scroll() {
+        init(false);
+        touch(1000, TouchEvent.ACTION_DOWN, 100f, 100f);
+        touch2(1020, TouchEvent.ACTION_POINTER_DOWN, 100f, 200f);
+        touch2(1040, TouchEvent.ACTION_MOVE, 85f, 200f);
+        touch2(1060, TouchEvent.ACTION_MOVE, 75f, 190f);
+        touch2(1080, TouchEvent.ACTION_CANCEL, 75f, 190f);
+        expect(2000, "1040 key 3", "1060 key 3");
+    }
+
+    @Test
+    public void highResolutionScroll() {
+        init(true);
+        touch(1000, TouchEvent.ACTION_DOWN, 100f, 100f);
+        touch2(1020, TouchEvent.ACTION_POINTER_DOWN, 100f, 200f);
+        touch2(1040, TouchEvent.ACTION_MOVE, 85f, 200f);
+        touch2(1060, TouchEvent.ACTION_MOVE, 75f, 190f);
+        touch2(1080, TouchEvent.ACTION_MOVE, 76f, 190.5f);
+        touch2(1100, TouchEvent.ACTION_MOVE, 76f, 190.5f);
+        touch2(1120, TouchEvent.ACTION_CANCEL, 76f, 190.5f);
+        expect(2000, "1040 scroll 0 -180", "1060 scroll -120 -120", "1080 scroll 6 12");
+    }
+
+    private void touch(long time, int action, float x, float y) {
+        mClock.advanceTo(time);
+        mEvent.set(action, 0, 1, 0);
+        mEvent.setPointerId(0, 0);
+        mEvent.setEventTime(0, time);
+        mEvent.setPosition(0, 0, x, y);
+        mGestureEngine.processTouchEvent(mEvent);
+    }
+
+    /**
+     * Event with two pointers, the first one at x = 100, both at the same y.
+     */
+    private void touch2(long time, int action, float y, float x2) {
+        mClock.advanceTo(time);
+        mEvent.set(action, 1, 2, 0);
+        mEvent.setPointerId(0, 0);
+        mEvent.setPointerId(1, 1);
+        mEvent.setEventTime(0, time);
+        mEvent.setPosition(0, 0, 100f, y);
+        mEvent.setPosition(1, 0, x2, y);
+        mGestureEngine.processTouchEvent(mEvent);
+    }
+
+    private void expect(long until, String... expected) {
+        mClock.advanceTo(until);
+        assertEquals(Arrays.asList(expected), mSink.getSent());
+    }
+}
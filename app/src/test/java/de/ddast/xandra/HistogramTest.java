@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2017  Dennis Dast
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.ddast.xandra;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class HistogramTest {
+    private static final int SAMPLES = 10000;
+    private static final double[] PERCENTILES = {0.01, 0.1, 0.5, 0.9, 0.99, 0.999, 1.0};
+
+    private final Histogram mHistogram = new Histogram("test");
+
+    @Test
+    public void empty() {
+        assertEquals(0, mHistogram.getCount());
+        assertEquals(0, mHistogram.percentile(0.5));
+    }
+
+    /**
+     * A value v lands in the bucket [2^i, 2^(i+1)) with 2^i <= v, whose upper bound is
+     * reported unless the maximum is smaller.  0 and negative values share the first bucket.
+     */
+    @Test
+    public void buckets() {
+        for (long v = 1; v <= 1000; ++v) {
+            mHistogram.record(v);
+        }
+        assertEquals(1000, mHistogram.getCount());
+        assertEquals(1, mHistogram.percentile(0.001));
+        assertEquals(3, mHistogram.percentile(0.002));
+        assertEquals(511, mHistogram.percentile(0.5));
+        assertEquals(1000, mHistogram.percentile(0.99));
+        assertEquals(1000, mHistogram.percentile(1.0));
+
+        mHistogram.reset();
+        mHistogram.record(-5);
+        mHistogram.record(0);
+        assertEquals(2, mHistogram.getCount());
+        assertEquals(0, mHistogram.percentile(1.0));
+        mHistogram.record(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, mHistogram.percentile(1.0));
+    }
+
+    /**
+     * Every reported percentile is at least the exact one and less than twice of it.
+     */
+    @Test
+    public void percentilesWithinFactorTwo() {
+        Random random = new Random(13);
+        long[] values = new long[SAMPLES];
+        for (int i = 0; i < SAMPLES; ++i) {
+            values[i] = 1 + (long)Math.exp(random.nextDouble()*Math.log(1e9));
+            mHistogram.record(values[i]);
+        }
+        Arrays.sort(values);
+        for (double p : PERCENTILES) {
+            long exact = values[(int)Math.ceil(p*SAMPLES) - 1];
+            long reported = mHistogram.percentile(p);
+            assertTrue("p" + p + ": " + reported + " for " + exact,
+                       reported >= exact && reported < 2*exact);
+        }
+    }
+
+    @Test
+    public void reset() {
+        mHistogram.record(100);
+        mHistogram.reset();
+        assertEquals(0, mHistogram.getCount());
+        assertEquals(0, mHistogram.percentile(0.5));
+        StringBuilder sb = new StringBuilder();
+        mHistogram.appendTo(sb);
+        assertTrue(sb.toString(), sb.toString().startsWith("test       n=0 "));
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2017  Dennis Dast
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.ddast.xandra;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Taps and holds of the special key buttons on a virtual clock, with and without key state
+ * frames.
+ */
+public class KeyRepeaterTest {
+    private final VirtualClock mClock = new VirtualClock();
+    private RecordingSink mSink;
+    private KeyRepeater mKeyRepeater;
+
+    private void init(boolean keyState) {
+        mSink = new RecordingSink(mClock, false, keyState);
+        mKeyRepeater = new KeyRepeater(mSink, mClock.getTimerWheel());
+    }
+
+    @Test
+    public void tap() {
+        init(false);
+        mClock.advanceTo(1000);
+        mKeyRepeater.press(InputSink.DEL);
+        mClock.advanceTo(1100);
+        mKeyRepeater.release(InputSink.DEL);
+        expect(2000, "1100 key 19");
+    }
+
+    @Test
+    public void cancel() {
+        init(false);
+        mClock.advanceTo(1000);
+        mKeyRepeater.press(InputSink.DEL);
+        mClock.advanceTo(1100);
+        mKeyRepeater.cancel(InputSink.DEL);
+        expect(2000);
+    }
+
+    @Test
+    public void repeat() {
+        init(false);
+        mClock.advanceTo(1000);
+        mKeyRepeater.press(InputSink.LEFT);
+        mClock.advanceTo(1600);
+        mKeyRepeater.release(InputSink.LEFT);
+        expect(2000, "1200 key 11", "1500 key 11", "1540 key 11", "1580 key 11");
+    }
+
+    @Test
+    public void heldToggleIsNotRepeated() {
+        init(false);
+        mClock.advanceTo(1000);
+        mKeyRepeater.press(InputSink.VOLTOG);
+        mClock.advanceTo(1600);
+        mKeyRepeater.release(InputSink.VOLTOG);
+        expect(2000, "1200 key 17");
+    }
+
+    @Test
+    public void keyStateHold() {
+        init(true);
+        mClock.advanceTo(1000);
+        mKeyRepeater.press(InputSink.LEFT);
+        mClock.advanceTo(1600);
+        mKeyRepeater.release(InputSink.LEFT);
+        mClock.advanceTo(2000);
+        mKeyRepeater.press(InputSink.DEL);
+        mClock.advanceTo(2300);
+        mKeyRepeater.releaseAll();
+        mKeyRepeater.release(InputSink.DEL);
+        expect(3000, "1200 press 11", "1600 release 11", "2200 press 19", "2300 release 19");
+    }
+
+    @Test
+    public void rollover() {
+        init(false);
+        mClock.advanceTo(1000);
+        mKeyRepeater.press(InputSink.DEL);
+        mClock.advanceTo(1100);
+        mKeyRepeater.press(InputSink.LEFT);
+        mClock.advanceTo(1150);
+        mKeyRepeater.release(InputSink.DEL);
+        mClock.advanceTo(1250);
+        mKeyRepeater.release(InputSink.LEFT);
+        expect(2000, "1100 key 19", "1250 key 11");
+    }
+
+    private void expect(long until, String... expected) {
+        mClock.advanceTo(until);
+        assertEquals(Arrays.asList(expected), mSink.getSent());
+    }
+}
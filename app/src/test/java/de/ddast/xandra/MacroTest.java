@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2017  Dennis Dast
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.ddast.xandra;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class MacroTest {
+    private static final long CONNECT_TIMEOUT    = 1000L;
+    private static final long HEARTBEAT_INTERVAL = 1000L;
+    private static final long WRITE_TIMEOUT      = 5000L;
+    private static final long RECEIVE_TIMEOUT    = 10000L;
+    private static final int MACROS             = 500;
+    private static final int PASTE_LENGTH       = 64*1024;
+
+    @Test
+    public void chord() throws ParseException {
+        Macro macro = Macro.parse("Reopen tab: Ctrl+Shift+T");
+        assertEquals("Reopen tab", macro.getLabel());
+        expectFrames(macro, Frames.key(InputSink.CTRL), Frames.text('T'));
+    }
+
+    @Test
+    public void sequence() throws ParseException {
+        Macro macro = Macro.parse("Open : Ctrl+L \"a \\\"b\\\"\" Enter");
+        assertEquals("Open", macro.getLabel());
+        expectFrames(macro, Frames.key(InputSink.CTRL), Frames.text('l'), Frames.text('a'),
+                     Frames.text(' '), Frames.text('"'), Frames.text('b'), Frames.text('"'),
+                     Frames.text('\n'));
+    }
+
+    @Test
+    public void specialKeys() throws ParseException {
+        expectFrames(Macro.parse("Keys: Alt+F4 Super+Left pgdn Ctrl++"),
+                     Frames.key(InputSink.ALT), Frames.key(InputSink.F4),
+                     Frames.key(InputSink.SUP), Frames.key(InputSink.LEFT),
+                     Frames.key(InputSink.PGDN), Frames.key(InputSink.CTRL), Frames.text('+'));
+    }
+
+    @Test
+    public void invalid() {
+        char[] longText = new char[SendQueue.MAX_BLOCK_SIZE + 1];
+        Arrays.fill(longText, 'x');
+        String[] definitions = {"Ctrl+T", "Empty:  ", "Bad: Ctrl+Foo", "Bad: Hyper+T",
+                                "Bad: Shift+Tab", "Bad: \"abc",
+                                "Long: \"" + new String(longText) + "\""};
+        for (String definition : definitions) {
+            try {
+                Macro.parse(definition);
+                fail("Accepted " + definition);
+            } catch (ParseException e) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * Sends macros to a StandInServer while mouse movements are sent from another thread and a
+     * paste is streamed: the frames of every macro must arrive without any other frame in
+     * between.
+     */
+    @Test
+    public void macrosArriveInOnePiece() throws Exception {
+        Macro macro = Macro.parse("Test: Ctrl+Alt+Del \"XYZ\" Enter Super+E");
+        List<String> macroFrames = Frames.decode(macro.getFrames());
+        Recorder recorder = new Recorder();
+        StandInServer server = new StandInServer(recorder).start();
+        ChannelTransport transport = ChannelTransport.connect(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort()),
+                CONNECT_TIMEOUT);
+        final SendQueue queue = new SendQueue();
+        FrameSender sender = new FrameSender(queue, transport, HEARTBEAT_INTERVAL,
+                WRITE_TIMEOUT, new FrameSender.Callback() {
+                    @Override
+                    public void sendFailed(FrameSender sender, IOException e) {
+                        System.err.println("Send failed: " + e);
+                    }
+                });
+        sender.start();
+
+        Thread mouse = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!Thread.currentThread().isInterrupted()) {
+                    queue.offerMouse(1, -1);
+                    Thread.yield();
+                }
+            }
+        }, "Mouse");
+        mouse.start();
+        char[] paste = new char[PASTE_LENGTH];
+        Arrays.fill(paste, 'a');
+        queue.offerText(new String(paste), 0, paste.length);
+        for (int i = 0; i < MACROS; ++i) {
+            while (!queue.offerBlock(macro.getFrames(), 0, macro.getFrames().length)) {
+                Thread.yield();
+            }
+            while (!queue.offerText("b", 0, 1)) {
+                Thread.yield();
+            }
+        }
+        boolean received = recorder.await(PASTE_LENGTH + MACROS, macroFrames.size()*MACROS);
+        mouse.interrupt();
+        mouse.join();
+        sender.shutdown();
+        transport.close();
+        server.close();
+
+        assertTrue("Not all frames received", received);
+        List<String> frames = recorder.getFrames();
+        int found = 0;
+        for (int i = 0; i < frames.size(); ++i) {
+            if (frames.get(i).equals(macroFrames.get(0))) {
+                int end = Math.min(frames.size(), i + macroFrames.size());
+                assertEquals("Macro " + found, macroFrames, frames.subList(i, end));
+                ++found;
+            }
+        }
+        assertEquals(MACROS, found);
+    }
+
+    private static void expectFrames(Macro macro, String... expected) {
+        assertEquals(Arrays.asList(expected), Frames.decode(macro.getFrames()));
+    }
+
+    /**
+     * Records the frames received by the StandInServer in the format of Frames.decode().
+     */
+    private static class Recorder implements StandInServer.Listener {
+        private final List<String> mFrames = new ArrayList<String>();
+        private int mPasted = 0;
+        private int mMacroFrames = 0;
+
+        synchronized List<String> getFrames() {
+            return new ArrayList<String>(mFrames);
+        }
+
+        synchronized boolean await(int text, int macroFrames) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + RECEIVE_TIMEOUT;
+            long remaining;
+            while ((mPasted < text || mMacroFrames < macroFrames)
+                   && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                wait(remaining);
+            }
+            return mPasted == text && mMacroFrames == macroFrames;
+        }
+
+        @Override
+        public void onHeartbeat(long receivedNanos) {}
+
+        @Override
+        public synchronized void onMouse(int distanceX, int distanceY, long receivedNanos) {
+            mFrames.add(Frames.mouse(distanceX, distanceY));
+        }
+
+        @Override
+        public synchronized void onSpecialKey(int key, long receivedNanos) {
+            mFrames.add(Frames.key(key));
+            ++mMacroFrames;
+            notifyAll();
+        }
+
+        @Override
+        public void onScroll(int deltaX, int deltaY, long receivedNanos) {}
+
+        @Override
+        public void onKey(int key, boolean pressed, long receivedNanos) {}
+
+        @Override
+        public synchronized void onText(int codePoint, long receivedNanos) {
+            mFrames.add(Frames.text(codePoint));
+            if (codePoint == 'a' || codePoint == 'b') {
+                ++mPasted;
+            } else {
+                ++mMacroFrames;
+            }
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2017  Dennis Dast
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.ddast.xandra;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MetricsTest {
+    private static final int BATCH = 64;
+
+    private final SendQueue mQueue = new SendQueue();
+    private final ByteBuffer[] mBatch = new ByteBuffer[BATCH];
+    private final byte[] mFrame = new byte[FrameCodec.MAX_FRAME_SIZE];
+
+    public MetricsTest() {
+        for (int i = 0; i < BATCH; ++i) {
+            mBatch[i] = ByteBuffer.allocate(SendQueue.SLOT_SIZE);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        Metrics.reset();
+        Metrics.setEnabled(true);
+    }
+
+    @After
+    public void tearDown() {
+        Metrics.setEnabled(false);
+        Metrics.reset();
+    }
+
+    /**
+     * The queue counts the frames it encodes itself by type, raw frames are left to the
+     * caller that encoded them instead of being guessed from the slot length.
+     */
+    @Test
+    public void framesAreCountedByType() throws InterruptedException {
+        mQueue.offerEdit(InputSink.BACKSPACE, 3, "ab", 0, 2);
+        mQueue.offerMouse(1, 1);
+        mQueue.offer(mFrame, 0, FrameCodec.encodeScroll(mFrame, 0, 1, 1));
+        mQueue.offer(mFrame, 0, FrameCodec.encodeHello(mFrame, 0, FrameCodec.PROTOCOL_VERSION,
+                                                       0));
+        assertEquals(5, mQueue.drainTo(mBatch, 0));
+        mQueue.writeCompleted();
+
+        String dump = Metrics.dump();
+        assertRow(dump, "key", 3, 3*FrameCodec.SPECIAL_KEY_FRAME_SIZE);
+        assertRow(dump, "text", 1, 2);
+        assertRow(dump, "mouse", 1, FrameCodec.MOUSE_FRAME_SIZE);
+        assertRow(dump, "scroll", 0, 0);
+        assertRow(dump, "hello", 0, 0);
+        assertTrue(dump, dump.contains("queue wait n=5 "));
+    }
+
+    @Test
+    public void reset() {
+        Metrics.countFrames(Metrics.SCROLL, 2, 2*FrameCodec.SCROLL_FRAME_SIZE);
+        Metrics.countReconnect();
+        Metrics.QUEUE_WAIT.record(1000);
+        assertRow(Metrics.dump(), "scroll", 2, 2*FrameCodec.SCROLL_FRAME_SIZE);
+        Metrics.reset();
+        String dump = Metrics.dump();
+        assertRow(dump, "scroll", 0, 0);
+        assertEquals(0, Metrics.QUEUE_WAIT.getCount());
+        assertTrue(dump, dump.contains("reconnects 0\n"));
+    }
+
+    private static void assertRow(String dump, String type, long frames, long bytes) {
+        for (String line : dump.split("\n")) {
+            String[] fields = line.trim().split(" +");
+            if (fields[0].equals(type)) {
+                assertEquals(line, frames, Long.parseLong(fields[1]));
+                assertEquals(line, bytes, Long.parseLong(fields[2]));
+                return;
+            }
+        }
+        throw new AssertionError("No row for " + type + " in\n" + dump);
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2017  Dennis Dast
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.ddast.xandra;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Compares the interpolated MouseAcceleration with the exact formula it replaced and checks
+ * that slow movements are no longer lost to rounding.
+ */
+public class MouseAccelerationTest {
+    private static final float[] ACCELERATIONS = {1.0f, 1.2f, 1.5f, 2.0f};
+    private static final float[] SENSITIVITIES = {0.5f, 1.0f, 3.0f};
+    private static final int SAMPLES = 100000;
+    private static final double MAX_ABS_ERROR = 0.01;    // px, for samples below 1 px
+    private static final double MAX_REL_ERROR = 1e-3;    // for samples above 1 px
+    private static final double MAX_DRIFT     = 1e-3;    // relative, over a slow trace
+
+    /**
+     * The formula MouseAcceleration replaced.
+     */
+    private static double exactMovement(float len, long time, float acceleration) {
+        double velocity = (len < 0.0f ? -1.0 : 1.0)
+                * Math.pow(Math.abs(10.0*len/time), acceleration);
+        return velocity*time/10.0;
+    }
+
+    @Test
+    public void interpolationError() {
+        for (float acceleration : ACCELERATIONS) {
+            for (float sensitivity : SENSITIVITIES) {
+                MouseAcceleration mouseAcceleration =
+                        new MouseAcceleration(sensitivity, acceleration);
+                Random random = new Random(7);
+                for (int i = 0; i < SAMPLES; ++i) {
+                    float len = (float)(random.nextGaussian()*30.0);
+                    long time = 1 + random.nextInt(30);
+                    double exact = sensitivity*exactMovement(len, time, acceleration);
+                    double tolerance = Math.abs(exact) > 1.0 ? MAX_REL_ERROR*Math.abs(exact)
+                                                             : MAX_ABS_ERROR;
+                    assertEquals("len " + len + ", time " + time, exact,
+                                 mouseAcceleration.movement(len, time), tolerance);
+                }
+            }
+        }
+    }
+
+    /**
+     * Slow, precise movement of 0.3 px every 8 ms: with the residual carried over, the sum of
+     * the whole pixels sent must follow the exact movement.
+     */
+    @Test
+    public void slowMovementIsNotLost() {
+        for (float acceleration : ACCELERATIONS) {
+            for (float sensitivity : SENSITIVITIES) {
+                MouseAcceleration mouseAcceleration =
+                        new MouseAcceleration(sensitivity, acceleration);
+                double exactSum = 0.0;
+                long sum = 0;
+                double residual = 0.0;
+                for (int i = 0; i < 10000; ++i) {
+                    exactSum += sensitivity*exactMovement(0.3f, 8, acceleration);
+                    double movement = mouseAcceleration.movement(0.3f, 8) + residual;
+                    long pixels = Math.round(movement);
+                    residual = movement - pixels;
+                    sum += pixels;
+                }
+                assertTrue(sum + " px instead of " + exactSum,
+                           Math.abs(sum - exactSum) <= MAX_DRIFT*exactSum + 0.5);
+            }
+        }
+    }
+}
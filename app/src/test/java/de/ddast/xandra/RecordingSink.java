@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2017  Dennis Dast
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.ddast.xandra;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * InputSink that records every call together with the time of a VirtualClock, e.g.
+ * "1080 key 36" for a special key sent at 1080 ms.
+ */
+class RecordingSink implements InputSink {
+    private final List<String> mSent = new ArrayList<String>();
+    private final VirtualClock mClock;
+    private final boolean mScrollFrames;
+    private final boolean mKeyState;
+
+    RecordingSink(VirtualClock clock, boolean scrollFrames, boolean keyState) {
+        mClock = clock;
+        mScrollFrames = scrollFrames;
+        mKeyState = keyState;
+    }
+
+    List<String> getSent() {
+        return mSent;
+    }
+
+    @Override
+    public void sendMouse(int distanceX, int distanceY) {
+        mSent.add(mClock.now() + " mouse " + distanceX + " " + distanceY);
+    }
+
+    @Override
+    public void sendSpecialKey(byte key) {
+        mSent.add(mClock.now() + " key " + key);
+    }
+
+    @Override
+    public boolean canSendKeyState() {
+        return mKeyState;
+    }
+
+    @Override
+    public void sendKeyState(byte key, boolean pressed) {
+        mSent.add(mClock.now() + (pressed ? " press " : " release ") + key);
+    }
+
+    @Override
+    public boolean canSendScroll() {
+        return mScrollFrames;
+    }
+
+    @Override
+    public void sendScroll(int deltaX, int deltaY) {
+        mSent.add(mClock.now() + " scroll " + deltaX + " " + deltaY);
+    }
+
+    @Override
+    public void sendEdit(int deletions, CharSequence s, int start, int end) {
+        mSent.add(mClock.now() + " edit " + deletions + " " + s.subSequence(start, end));
+    }
+}
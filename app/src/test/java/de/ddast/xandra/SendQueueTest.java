@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2017  Dennis Dast
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.ddast.xandra;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class SendQueueTest {
+    private static final int BATCH = 64;
+    private static final int MOVES = 1000;
+    private static final int MACRO_KEYS = 20;
+    private static final long PASTE_MILLIS = 10000L;
+
+    private final VirtualClock mClock = new VirtualClock();
+    private final SendQueue mQueue = new SendQueue(mClock);
+    private final ByteBuffer[] mBatch = new ByteBuffer[BATCH];
+    private final byte[] mFrame = new byte[FrameCodec.MAX_FRAME_SIZE];
+
+    public SendQueueTest() {
+        for (int i = 0; i < BATCH; ++i) {
+            mBatch[i] = ByteBuffer.allocate(SendQueue.SLOT_SIZE);
+        }
+    }
+
+    /**
+     * A block that does not fit into the rest of a batch must wait for the next one, and bulk
+     * text offered after it must not overtake it.
+     */
+    @Test
+    public void blockIsNotSplitAcrossBatches() throws InterruptedException {
+        int len = FrameCodec.encodeSpecialKey(mFrame, 0, InputSink.TAB);
+        for (int i = 0; i < BATCH - 2; ++i) {
+            mQueue.offer(mFrame, 0, len);
+        }
+        byte[] block = new byte[3*SendQueue.SLOT_SIZE];
+        Arrays.fill(block, (byte)'X');
+        mQueue.offerBlock(block, 0, block.length);
+        char[] paste = new char[SendQueue.BULK_THRESHOLD];
+        Arrays.fill(paste, 'a');
+        mQueue.offerText(new String(paste), 0, paste.length);
+
+        assertEquals(BATCH - 2, drain());
+        int count = drain();
+        for (int i = 0; i < 3; ++i) {
+            assertEquals(SendQueue.SLOT_SIZE, mBatch[i].remaining());
+            assertEquals('X', mBatch[i].get(0));
+        }
+        assertTrue(count > 3);
+        assertEquals('a', mBatch[3].get(0));
+    }
+
+    /**
+     * A macro offered during a paste is sent in one batch after all of the pasted text, and
+     * an edit after the macro neither overtakes it nor deletes text before it.
+     */
+    @Test
+    public void macroDuringPasteFollowsIt() throws InterruptedException {
+        char[] paste = new char[3*SendQueue.BULK_THRESHOLD];
+        Arrays.fill(paste, 'a');
+        mQueue.offerText(new String(paste), 0, paste.length);
+        List<String> frames = new ArrayList<String>(drainFrames());
+        assertTrue(frames.size() < paste.length);
+
+        byte[] macro = new byte[MACRO_KEYS*FrameCodec.SPECIAL_KEY_FRAME_SIZE];
+        for (int i = 0; i < MACRO_KEYS; ++i) {
+            FrameCodec.encodeSpecialKey(macro, i*FrameCodec.SPECIAL_KEY_FRAME_SIZE,
+                                        InputSink.TAB);
+        }
+        assertTrue(mQueue.offerBlock(macro, 0, macro.length));
+        assertTrue(mQueue.offerEdit(InputSink.BACKSPACE, 2, "b", 0, 1));
+
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < paste.length; ++i) {
+            expected.add(Frames.text('a'));
+        }
+        for (int i = 0; i < MACRO_KEYS; ++i) {
+            expected.add(Frames.key(InputSink.TAB));
+        }
+        expected.add(Frames.key(InputSink.BACKSPACE));
+        expected.add(Frames.key(InputSink.BACKSPACE));
+        expected.add(Frames.text('b'));
+        for (long now = 0; frames.size() < expected.size() && now < PASTE_MILLIS; now += 10) {
+            mClock.advanceTo(now);
+            List<String> batch = drainFrames();
+            int keys = Collections.frequency(batch, Frames.key(InputSink.TAB));
+            assertTrue("Macro split, " + keys + " keys in one batch",
+                       keys == 0 || keys == MACRO_KEYS);
+            frames.addAll(batch);
+        }
+        assertEquals(expected, frames);
+    }
+
+    /**
+     * Mouse frames offered while the writer is busy are merged into one frame carrying the
+     * exact sum.
+     */
+    @Test
+    public void movesAreCoalesced() throws InterruptedException {
+        Random random = new Random(5);
+        int sumX = 0;
+        int sumY = 0;
+        for (int i = 0; i < MOVES; ++i) {
+            int x = random.nextInt(7) - 3;
+            int y = random.nextInt(7) - 3;
+            mQueue.offerMouse(x, y);
+            sumX += x;
+            sumY += y;
+        }
+        assertEquals(1, mQueue.getDepth());
+        assertEquals(Arrays.asList(Frames.mouse(sumX, sumY)), drainFrames());
+    }
+
+    /**
+     * A move beyond the range of a mouse frame is split into several frames without losing
+     * any distance, also when it is merged into a pending move.
+     */
+    @Test
+    public void saturatedMoveIsSplit() throws InterruptedException {
+        int max = FrameCodec.MAX_MOUSE_DELTA;
+        mQueue.offerMouse(max - 10, 0);
+        mQueue.offerMouse(2*max + 15, -max - 1);
+        int sumX = 0;
+        int sumY = 0;
+        List<String> frames = drainFrames();
+        assertEquals(4, frames.size());
+        for (String frame : frames) {
+            String[] fields = frame.split(" ");
+            int x = Integer.parseInt(fields[1]);
+            int y = Integer.parseInt(fields[2]);
+            assertTrue(frame, Math.abs(x) <= max && Math.abs(y) <= max);
+            sumX += x;
+            sumY += y;
+        }
+        assertEquals(3*max + 5, sumX);
+        assertEquals(-max - 1, sumY);
+    }
+
+    /**
+     * Key frames are never merged, neither with each other nor with a mouse frame, and moves
+     * are not merged across them.
+     */
+    @Test
+    public void keysAreNotCoalesced() throws InterruptedException {
+        int len = FrameCodec.encodeSpecialKey(mFrame, 0, InputSink.TAB);
+        mQueue.offerMouse(1, 1);
+        mQueue.offer(mFrame, 0, len);
+        mQueue.offer(mFrame, 0, len);
+        mQueue.offerMouse(2, 2);
+        mQueue.offer(mFrame, 0, len);
+        mQueue.offerMouse(3, 3);
+        mQueue.offerMouse(4, 4);
+        assertEquals(Arrays.asList(Frames.mouse(1, 1), Frames.key(InputSink.TAB),
+                                   Frames.key(InputSink.TAB), Frames.mouse(2, 2),
+                                   Frames.key(InputSink.TAB), Frames.mouse(7, 7)),
+                     drainFrames());
+    }
+
+    /**
+     * Mouse frames that waited longer than MOUSE_STALE_MILLIS are dropped, also when a new
+     * move would be merged into them, while key frames are sent no matter how old they are.
+     * A mouse frame that waited exactly MOUSE_STALE_MILLIS is still sent.
+     */
+    @Test
+    public void staleMovesAreDropped() throws InterruptedException {
+        int len = FrameCodec.encodeSpecialKey(mFrame, 0, InputSink.TAB);
+        mQueue.offer(mFrame, 0, len);
+        mQueue.offerMouse(1, 1);
+        mClock.advanceTo(SendQueue.MOUSE_STALE_MILLIS);
+        assertEquals(Arrays.asList(Frames.key(InputSink.TAB), Frames.mouse(1, 1)),
+                     drainFrames());
+
+        mQueue.offer(mFrame, 0, len);
+        mQueue.offerMouse(1, 1);
+        mClock.advanceTo(2*SendQueue.MOUSE_STALE_MILLIS + 1);
+        assertEquals(Arrays.asList(Frames.key(InputSink.TAB)), drainFrames());
+        assertEquals(1, mQueue.getDroppedMouse());
+
+        mQueue.offerMouse(1, 1);
+        mClock.advanceTo(3*SendQueue.MOUSE_STALE_MILLIS + 2);
+        mQueue.offerMouse(2, 2);
+        assertEquals(Arrays.asList(Frames.mouse(2, 2)), drainFrames());
+        assertEquals(2, mQueue.getDroppedMouse());
+    }
+
+    /**
+     * A full queue drops mouse frames to make room for keys, but never drops a key: an offer
+     * that does not fit is rejected instead.
+     */
+    @Test
+    public void keysAreNotDropped() throws InterruptedException {
+        int len = FrameCodec.encodeSpecialKey(mFrame, 0, InputSink.TAB);
+        mQueue.offerMouse(1, 1);
+        for (int i = 0; i < SendQueue.SLOT_COUNT - 1; ++i) {
+            assertTrue(mQueue.offer(mFrame, 0, len));
+        }
+        assertTrue(mQueue.offer(mFrame, 0, len));
+        assertEquals(1, mQueue.getDroppedMouse());
+        assertFalse(mQueue.offer(mFrame, 0, len));
+        assertFalse(mQueue.offerMouse(1, 1));
+        assertEquals(2, mQueue.getRejected());
+
+        int keys = 0;
+        List<String> frames;
+        while (!(frames = drainFrames()).isEmpty()) {
+            for (String frame : frames) {
+                assertEquals(Frames.key(InputSink.TAB), frame);
+                ++keys;
+            }
+        }
+        assertEquals(SendQueue.SLOT_COUNT, keys);
+    }
+
+    /**
+     * The queue is congested while a frame waits longer than CONGESTION_MILLIS and reports
+     * both transitions to its listener.
+     */
+    @Test
+    public void congestion() throws InterruptedException {
+        final List<Boolean> changes = new ArrayList<Boolean>();
+        mQueue.setListener(new SendQueue.Listener() {
+            @Override
+            public void congestionChanged(boolean congested) {
+                changes.add(congested);
+            }
+        });
+        int len = FrameCodec.encodeSpecialKey(mFrame, 0, InputSink.TAB);
+        mQueue.offer(mFrame, 0, len);
+        mClock.advanceTo(SendQueue.CONGESTION_MILLIS);
+        mQueue.offer(mFrame, 0, len);
+        assertFalse(mQueue.isCongested());
+        mClock.advanceTo(SendQueue.CONGESTION_MILLIS + 1);
+        mQueue.offer(mFrame, 0, len);
+        assertTrue(mQueue.isCongested());
+        drain();
+        assertFalse(mQueue.isCongested());
+        assertEquals(Arrays.asList(true, false), changes);
+    }
+
+    private List<String> drainFrames() throws InterruptedException {
+        int count = drain();
+        byte[] stream = new byte[count*SendQueue.SLOT_SIZE];
+        int len = 0;
+        for (int i = 0; i < count; ++i) {
+            int n = mBatch[i].remaining();
+            mBatch[i].get(stream, len, n);
+            len += n;
+        }
+        return Frames.decode(stream, 0, len);
+    }
+
+    private int drain() throws InterruptedException {
+        int count = mQueue.drainTo(mBatch, 0);
+        mQueue.writeCompleted();
+        return count;
+    }
+}
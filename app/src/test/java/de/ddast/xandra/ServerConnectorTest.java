@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2017  Dennis Dast
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.ddast.xandra;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ServerConnectorTest {
+    private static final long CONNECT_TIMEOUT = 1000L;
+
+    private final InetAddress mLoopback = InetAddress.getLoopbackAddress();
+    private final String mHost = mLoopback.getHostAddress();
+    private StandInServer mServer;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new StandInServer(new StandInServer.EmptyListener()).start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.close();
+    }
+
+    @Test
+    public void addressIsCached() throws IOException {
+        ServerConnector.connect(mHost, mServer.getPort(), CONNECT_TIMEOUT).close();
+        assertEquals(mLoopback, ServerConnector.cachedAddress(mHost));
+    }
+
+    /**
+     * If the cached address does not accept connections, the fresh lookup is used and
+     * replaces it in the cache.
+     */
+    @Test
+    public void staleAddressFallsBackToLookup() throws IOException {
+        InetAddress stale = InetAddress.getByAddress(new byte[] {127, 0, 0, 2});
+        ServerConnector.cacheAddress(mHost, stale);
+        ChannelTransport transport = ServerConnector.connect(mHost, mServer.getPort(),
+                                                             CONNECT_TIMEOUT);
+        try {
+            assertEquals(mLoopback, transport.getRemoteAddress().getAddress());
+            assertEquals(mLoopback, ServerConnector.cachedAddress(mHost));
+        } finally {
+            transport.close();
+        }
+    }
+
+    /**
+     * If the fresh lookup yields the cached address again, the connect is not repeated and
+     * its failure is reported.
+     */
+    @Test
+    public void failureOfCachedAddressIsReported() throws IOException {
+        int port = mServer.getPort();
+        mServer.close();
+        ServerConnector.cacheAddress(mHost, mLoopback);
+        try {
+            ServerConnector.connect(mHost, port, CONNECT_TIMEOUT).close();
+            fail("Connected to closed port");
+        } catch (ConnectException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void unknownHostFails() throws IOException {
+        try {
+            ServerConnector.connect("unknown.invalid", mServer.getPort(), CONNECT_TIMEOUT)
+                           .close();
+            fail("Connected to unknown host");
+        } catch (UnknownHostException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2017  Dennis Dast
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.ddast.xandra;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Runs ServerDiscovery over 127.0.0.0/24, where every loopback address is a StandInDiscoveryHost:
+ * two servers answering probes, one legacy server and black holes for all other hosts, which
+ * is the worst case for the TCP probes.
+ */
+public class ServerDiscoveryTest {
+    private static final long MAX_MILLIS = 1000L;
+    private static final long TIMEOUT = 5000L;
+    private static final long CACHED_MILLIS = 20L;
+
+    private final Map<Integer, StandInDiscoveryHost> mHosts =
+            new TreeMap<Integer, StandInDiscoveryHost>();
+
+    @After
+    public void closeHosts() throws IOException {
+        for (StandInDiscoveryHost host : mHosts.values()) {
+            host.close();
+        }
+    }
+
+    /**
+     * The first run must find all servers within MAX_MILLIS.  Before the second run one server
+     * is removed and another one added: the cached servers must be reported right away, the
+     * removed one as lost.
+     */
+    @Test
+    public void discovery() throws IOException {
+        int port = freePort();
+        mHosts.put(10, StandInDiscoveryHost.server(address(10), port, "desk"));
+        mHosts.put(20, StandInDiscoveryHost.server(address(20), port, "laptop"));
+        mHosts.put(30, StandInDiscoveryHost.server(address(30), port, null));
+        for (int i = 1; i < 255; ++i) {
+            if (!mHosts.containsKey(i)) {
+                mHosts.put(i, StandInDiscoveryHost.blackHole(address(i), port));
+            }
+        }
+        List<ServerDiscovery.Subnet> subnets = Collections.singletonList(
+                new ServerDiscovery.Subnet(address(1), 24, null));
+
+        Recorder first = new Recorder();
+        first.run(new ServerDiscovery(port, first), subnets);
+        first.expect(MAX_MILLIS, "found 127.0.0.10 desk", "found 127.0.0.20 laptop",
+                     "found 127.0.0.30 null");
+
+        mHosts.remove(20).close();
+        mHosts.remove(40).close();
+        mHosts.put(40, StandInDiscoveryHost.server(address(40), port, "new"));
+        Recorder second = new Recorder();
+        second.run(new ServerDiscovery(port, second), subnets);
+        second.expect(MAX_MILLIS, "found 127.0.0.10 desk", "found 127.0.0.30 null",
+                      "found 127.0.0.40 new", "lost 127.0.0.20 laptop");
+        assertTrue("Cached servers reported after " + second.mCachedMillis + " ms",
+                   second.mCachedMillis <= CACHED_MILLIS);
+    }
+
+    private static InetAddress address(int host) throws IOException {
+        return InetAddress.getByAddress(new byte[] {127, 0, 0, (byte)host});
+    }
+
+    private static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0, 1, address(10));
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Collects the last event of every server, the duration of the run and the time until
+     * the third server was reported.
+     */
+    private static class Recorder implements ServerDiscovery.Listener {
+        private final Map<String, String> mEvents = new TreeMap<String, String>();
+        private long mStart;
+        private double mMillis;
+        private double mCachedMillis = Double.NaN;
+        private int mFound = 0;
+
+        void run(ServerDiscovery discovery, List<ServerDiscovery.Subnet> subnets)
+                throws IOException {
+            mStart = System.nanoTime();
+            discovery.run(subnets, TIMEOUT);
+            mMillis = (System.nanoTime() - mStart)/1e6;
+        }
+
+        @Override
+        public synchronized void serverFound(ServerDiscovery.Server server) {
+            if (++mFound == 3) {
+                mCachedMillis = (System.nanoTime() - mStart)/1e6;
+            }
+            String address = server.getAddress().getHostAddress();
+            mEvents.put(address, "found " + address + " " + server.getName());
+        }
+
+        @Override
+        public synchronized void serverLost(ServerDiscovery.Server server) {
+            String address = server.getAddress().getHostAddress();
+            mEvents.put(address, "lost " + address + " " + server.getName());
+        }
+
+        synchronized void expect(long maxMillis, String... expected) {
+            List<String> events = new ArrayList<String>(mEvents.values());
+            List<String> sorted = new ArrayList<String>(Arrays.asList(expected));
+            Collections.sort(events);
+            Collections.sort(sorted);
+            assertEquals(sorted, events);
+            assertTrue("Run took " + mMillis + " ms", mMillis <= maxMillis);
+        }
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2017  Dennis Dast
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.ddast.xandra;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks the SessionPool the way ConnectionService uses it, with the send pipeline of
+ * TcpClient against one StandInServer per host and the idle timeout on a virtual clock.
+ */
+public class SessionPoolTest implements SessionPool.Factory<SessionPoolTest.Session> {
+    private static final long CONNECT_TIMEOUT    = 1000L;
+    private static final long HEARTBEAT_INTERVAL = 50L;
+    private static final long WRITE_TIMEOUT      = 5000L;
+    private static final long RECEIVE_TIMEOUT    = 2000L;
+    private static final long IDLE_TIMEOUT       = 60000L;
+    private static final int MIN_HEARTBEATS      = 3;
+
+    private final Map<String, Server> mServers = new HashMap<String, Server>();
+    private final List<String> mClosed = new ArrayList<String>();
+    private final VirtualClock mClock = new VirtualClock();
+    private final InputRouter mRouter = new InputRouter();
+    private SessionPool<Session> mPool;
+    private Server mA, mB, mC;
+
+    @Before
+    public void startServers() throws IOException {
+        for (String host : new String[] {"a", "b", "c"}) {
+            mServers.put(host, new Server());
+        }
+        mA = mServers.get("a");
+        mB = mServers.get("b");
+        mC = mServers.get("c");
+        mPool = new SessionPool<Session>(this, mClock.getTimerWheel(), IDLE_TIMEOUT);
+        mRouter.setTarget(mPool.activate("a"));
+        mPool.warm("b");
+        mPool.warm("c");
+    }
+
+    @After
+    public void closeServers() throws IOException {
+        mPool.close();
+        for (Server server : mServers.values()) {
+            server.mStandIn.close();
+        }
+    }
+
+    /**
+     * Warm sessions are connected right away and send their own heartbeats while idle.
+     */
+    @Test
+    public void warmSessions() throws InterruptedException {
+        mRouter.sendMouse(3, 0);
+        assertTrue(mA.awaitMouse(3));
+        Thread.sleep((MIN_HEARTBEATS + 1)*HEARTBEAT_INTERVAL);
+        for (Server server : mServers.values()) {
+            assertEquals(1, server.mStandIn.getAccepts());
+        }
+        assertTrue(mB.getHeartbeats() + " heartbeats", mB.getHeartbeats() >= MIN_HEARTBEATS);
+        assertTrue(mC.getHeartbeats() + " heartbeats", mC.getHeartbeats() >= MIN_HEARTBEATS);
+    }
+
+    /**
+     * Switching to a warm session must not open a connection, and a held mouse button is
+     * released on the previous server.
+     */
+    @Test
+    public void switchToWarmSession() throws InterruptedException {
+        mRouter.sendMouse(3, 0);
+        mRouter.setTarget(mPool.activate("b"));
+        mRouter.sendMouse(5, 0);
+        assertTrue(mB.awaitMouse(5));
+        assertEquals(1, mB.mStandIn.getAccepts());
+        assertTrue(mA.awaitMouse(3));
+
+        mRouter.sendSpecialKey(InputSink.LEFTMOUSEDOWN);
+        mRouter.setTarget(mPool.activate("c"));
+        assertTrue(mB.awaitKeys(InputSink.LEFTMOUSEDOWN, InputSink.LEFTMOUSEUP));
+        assertEquals(1, mC.mStandIn.getAccepts());
+    }
+
+    /**
+     * Idle sessions are closed after the idle timeout while the active one is kept, and are
+     * opened again when switched to.
+     */
+    @Test
+    public void idleSessionsAreEvicted() throws InterruptedException {
+        mRouter.setTarget(mPool.activate("b"));
+        mClock.advanceTo(1000);
+        mRouter.setTarget(mPool.activate("c"));
+
+        mClock.advanceTo(IDLE_TIMEOUT - 1);
+        assertEquals(Arrays.asList(), mClosed);
+        mClock.advanceTo(IDLE_TIMEOUT);
+        assertEquals(Arrays.asList("a"), mClosed);
+        mClock.advanceTo(IDLE_TIMEOUT + 1000);
+        assertEquals(Arrays.asList("a", "b"), mClosed);
+        mClock.advanceTo(10*IDLE_TIMEOUT);
+        assertEquals(Arrays.asList("c"), mPool.getHosts());
+
+        mRouter.setTarget(mPool.activate("a"));
+        mRouter.sendMouse(7, 0);
+        assertTrue(mA.awaitMouse(7));
+        assertEquals(2, mA.mStandIn.getAccepts());
+
+        mPool.setIdleTimeout(0);
+        mClock.advanceTo(20*IDLE_TIMEOUT);
+        assertEquals(Arrays.asList("c", "a"), mPool.getHosts());
+
+        mPool.close();
+        assertNull(mPool.getActive());
+        assertTrue(mPool.getHosts().isEmpty());
+        assertEquals(Arrays.asList("a", "b", "c", "a"), mClosed);
+    }
+
+    @Override
+    public Session open(String host) {
+        try {
+            return new Session(mServers.get(host).mStandIn.getPort());
+        } catch (IOException e) {
+            throw new RuntimeException("Could not connect to " + host, e);
+        }
+    }
+
+    @Override
+    public void close(String host, Session session) {
+        mClosed.add(host);
+        session.close();
+    }
+
+    /**
+     * The send pipeline of TcpClient without the Android parts.
+     */
+    static class Session implements InputSink {
+        private final ChannelTransport mTransport;
+        private final SendQueue mQueue = new SendQueue();
+        private final FrameSender mSender;
+        private final byte[] mFrame = new byte[FrameCodec.MAX_FRAME_SIZE];
+
+        Session(int port) throws IOException {
+            mTransport = ChannelTransport.connect(
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), port),
+                    CONNECT_TIMEOUT);
+            mSender = new FrameSender(mQueue, mTransport, HEARTBEAT_INTERVAL, WRITE_TIMEOUT,
+                    new FrameSender.Callback() {
+                        @Override
+                        public void sendFailed(FrameSender sender, IOException e) {
+                            System.err.println("Send failed: " + e);
+                        }
+                    });
+            mSender.start();
+        }
+
+        void close() {
+            mSender.shutdown();
+            try {
+                mTransport.close();
+            } catch (IOException e) {
+                System.err.println("Close failed: " + e);
+            }
+        }
+
+        @Override
+        public void sendMouse(int distanceX, int distanceY) {
+            mQueue.offerMouse(distanceX, distanceY);
+        }
+
+        @Override
+        public void sendSpecialKey(byte key) {
+            mQueue.offer(mFrame, 0, FrameCodec.encodeSpecialKey(mFrame, 0, key));
+        }
+
+        @Override
+        public boolean canSendKeyState() {
+            return false;
+        }
+
+        @Override
+        public void sendKeyState(byte key, boolean pressed) {}
+
+        @Override
+        public boolean canSendScroll() {
+            return false;
+        }
+
+        @Override
+        public void sendScroll(int deltaX, int deltaY) {}
+
+        @Override
+        public void sendEdit(int deletions, CharSequence s, int start, int end) {
+            mQueue.offerEdit(BACKSPACE, deletions, s, start, end);
+        }
+    }
+
+    /**
+     * StandInServer recording heartbeats, the accumulated x movement and the special keys.
+     */
+    private static class Server extends StandInServer.EmptyListener {
+        private final StandInServer mStandIn;
+        private final List<Integer> mKeys = new ArrayList<Integer>();
+        private int mHeartbeats = 0;
+        private int mMouse = 0;
+
+        Server() throws IOException {
+            mStandIn = new StandInServer(this).start();
+        }
+
+        synchronized int getHeartbeats() {
+            return mHeartbeats;
+        }
+
+        synchronized boolean awaitMouse(int distanceX) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + RECEIVE_TIMEOUT;
+            long remaining;
+            while (mMouse < distanceX
+                   && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                wait(remaining);
+            }
+            return mMouse == distanceX;
+        }
+
+        synchronized boolean awaitKeys(int... keys) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + RECEIVE_TIMEOUT;
+            long remaining;
+            while (mKeys.size() < keys.length
+                   && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                wait(remaining);
+            }
+            List<Integer> expected = new ArrayList<Integer>();
+            for (int key : keys) {
+                expected.add(key);
+            }
+            return mKeys.equals(expected);
+        }
+
+        @Override
+        public synchronized void onHeartbeat(long receivedNanos) {
+            ++mHeartbeats;
+        }
+
+        @Override
+        public synchronized void onMouse(int distanceX, int distanceY, long receivedNanos) {
+            mMouse += distanceX;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onSpecialKey(int key, long receivedNanos) {
+            mKeys.add(key);
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2017  Dennis Dast
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.ddast.xandra;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Random;
+
+/**
+ * Loopback stand-in for the datagram receiver of xandra-server.  Datagrams that are not newer
+ * than the last accepted one are dropped, the frames of all others are decoded and reported
+ * like StandInServer does.  Optionally discards a fraction of the datagrams before looking
+ * at them to simulate a lossy link.
+ */
+class StandInDatagramReceiver implements Closeable, Runnable {
+    private final DatagramSocket mSocket;
+    private final StandInServer.Listener mListener;
+    private final Thread mThread;
+    private final Random mRandom = new Random(3);
+    private volatile double mLoss = 0.0;
+    private volatile long mAccepted = 0;
+    private volatile long mOutOfOrder = 0;
+    private volatile long mLost = 0;
+    private long mNow;
+
+    StandInDatagramReceiver(StandInServer.Listener listener) throws IOException {
+        mSocket = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        mListener = listener;
+        mThread = new Thread(this, "StandInDatagramReceiver");
+        mThread.setDaemon(true);
+    }
+
+    StandInDatagramReceiver start() {
+        mThread.start();
+        return this;
+    }
+
+    InetSocketAddress getAddress() {
+        return (InetSocketAddress)mSocket.getLocalSocketAddress();
+    }
+
+    void setLoss(double loss) {
+        mLoss = loss;
+    }
+
+    long getAccepted() {
+        return mAccepted;
+    }
+
+    long getOutOfOrder() {
+        return mOutOfOrder;
+    }
+
+    long getLost() {
+        return mLost;
+    }
+
+    @Override
+    public void run() {
+        FrameCodec.Decoder decoder = new FrameCodec.Decoder(new FrameCodec.Decoder.Listener() {
+            @Override
+            public void onHeartbeat() {
+                mListener.onHeartbeat(mNow);
+            }
+
+            @Override
+            public void onMouse(int distanceX, int distanceY) {
+                mListener.onMouse(distanceX, distanceY, mNow);
+            }
+
+            @Override
+            public void onSpecialKey(int key) {
+                mListener.onSpecialKey(key, mNow);
+            }
+
+            @Override
+            public void onScroll(int deltaX, int deltaY) {
+                mListener.onScroll(deltaX, deltaY, mNow);
+            }
+
+            @Override
+            public void onKey(int key, boolean pressed) {
+                mListener.onKey(key, pressed, mNow);
+            }
+
+            @Override
+            public void onHello(int version, int features) {}
+
+            @Override
+            public void onText(int codePoint) {
+                mListener.onText(codePoint, mNow);
+            }
+        });
+        byte[] buf = new byte[1500];
+        DatagramPacket packet = new DatagramPacket(buf, buf.length);
+        boolean first = true;
+        int last = 0;
+        while (!mSocket.isClosed()) {
+            try {
+                packet.setLength(buf.length);
+                mSocket.receive(packet);
+            } catch (IOException e) {
+                return;
+            }
+            mNow = System.nanoTime();
+            if (mLoss > 0.0 && mRandom.nextDouble() < mLoss) {
+                ++mLost;
+                continue;
+            }
+            if (packet.getLength() < FrameCodec.DATAGRAM_HEADER_SIZE) {
+                continue;
+            }
+            int sequence = FrameCodec.decodeDatagramSequence(buf, 0);
+            if (!first && !FrameCodec.isNewerSequence(sequence, last)) {
+                ++mOutOfOrder;
+                continue;
+            }
+            first = false;
+            last = sequence;
+            ++mAccepted;
+            decoder.feed(buf, FrameCodec.DATAGRAM_HEADER_SIZE,
+                         packet.getLength() - FrameCodec.DATAGRAM_HEADER_SIZE);
+        }
+    }
+
+    @Override
+    public void close() {
+        mSocket.close();
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2017  Dennis Dast
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.ddast.xandra;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Loopback stand-in for a host on the LAN as seen by ServerDiscovery.  It is either a server
+ * that accepts TCP connections on the server port and, unless it is a legacy server, answers
+ * discovery probes on the port above, or a black hole: a host without server whose TCP
+ * connects neither succeed nor fail but time out, like for an address nobody uses.  The black
+ * hole is a listening socket whose backlog is filled up and that never accepts.
+ */
+class StandInDiscoveryHost implements Closeable {
+    private static final int BLACK_HOLE_BACKLOG = 1;
+    private static final int BLACK_HOLE_CONNECTIONS = 2;
+
+    private final ServerSocket mServerSocket;
+    private final DatagramSocket mResponder;
+    private final List<Socket> mFillers = new ArrayList<Socket>();
+    private final List<Thread> mThreads = new ArrayList<Thread>();
+    private volatile int mProbes = 0;
+
+    private StandInDiscoveryHost(InetAddress address, int port, int backlog, String name)
+            throws IOException {
+        mServerSocket = new ServerSocket();
+        mServerSocket.setReuseAddress(true);
+        mServerSocket.bind(new InetSocketAddress(address, port), backlog);
+        mResponder = name == null ? null
+                                  : new DatagramSocket(new InetSocketAddress(address, port + 1));
+        if (name != null) {
+            startResponder(name);
+        }
+    }
+
+    /**
+     * A server answering probes with name, or a legacy server if name is null.
+     */
+    static StandInDiscoveryHost server(InetAddress address, int port, String name)
+            throws IOException {
+        StandInDiscoveryHost host = new StandInDiscoveryHost(address, port, 50, name);
+        host.startAccepting();
+        return host;
+    }
+
+    static StandInDiscoveryHost blackHole(InetAddress address, int port) throws IOException {
+        StandInDiscoveryHost host = new StandInDiscoveryHost(address, port, BLACK_HOLE_BACKLOG,
+                                                             null);
+        for (int i = 0; i < BLACK_HOLE_CONNECTIONS; ++i) {
+            Socket filler = new Socket();
+            filler.connect(new InetSocketAddress(address, port));
+            host.mFillers.add(filler);
+        }
+        return host;
+    }
+
+    int getProbes() {
+        return mProbes;
+    }
+
+    private void startAccepting() {
+        start(new Runnable() {
+            @Override
+            public void run() {
+                while (!mServerSocket.isClosed()) {
+                    try {
+                        mServerSocket.accept().close();
+                    } catch (IOException e) {
+                        // server was closed
+                    }
+                }
+            }
+        });
+    }
+
+    private void startResponder(final String name) {
+        start(new Runnable() {
+            @Override
+            public void run() {
+                byte[] buf = new byte[64];
+                DatagramPacket packet = new DatagramPacket(buf, buf.length);
+                try {
+                    byte[] nameBytes = name.getBytes("UTF-8");
+                    byte[] answer = Arrays.copyOf(ServerDiscovery.MAGIC,
+                            ServerDiscovery.MAGIC.length + 1 + nameBytes.length);
+                    answer[ServerDiscovery.MAGIC.length] = ServerDiscovery.ANSWER;
+                    System.arraycopy(nameBytes, 0, answer, ServerDiscovery.MAGIC.length + 1,
+                                     nameBytes.length);
+                    while (true) {
+                        packet.setLength(buf.length);
+                        mResponder.receive(packet);
+                        if (packet.getLength() == ServerDiscovery.MAGIC.length + 1
+                                && buf[ServerDiscovery.MAGIC.length] == ServerDiscovery.PROBE) {
+                            ++mProbes;
+                            mResponder.send(new DatagramPacket(answer, answer.length,
+                                                               packet.getSocketAddress()));
+                        }
+                    }
+                } catch (IOException e) {
+                    // responder was closed
+                }
+            }
+        });
+    }
+
+    private void start(Runnable runnable) {
+        Thread thread = new Thread(runnable, "StandInDiscoveryHost");
+        thread.setDaemon(true);
+        thread.start();
+        mThreads.add(thread);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mServerSocket.close();
+        if (mResponder != null) {
+            mResponder.close();
+        }
+        for (Socket filler : mFillers) {
+            filler.close();
+        }
+    }
+}
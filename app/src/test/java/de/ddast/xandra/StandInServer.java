@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2017  Dennis Dast
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.ddast.xandra;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Loopback stand-in for xandra-server.  Accepts one client at a time, decodes the byte stream
+ * with FrameCodec.Decoder and reports every frame together with the System.nanoTime() at
+ * which the read that completed it returned.
+ *
+ * By default it behaves like a legacy server and ignores the hello frame.  With setFeatures()
+ * it answers the hello frame like a server supporting the given features, and echoes
+ * heartbeats if they include FEATURE_HEARTBEAT_ECHO.
+ */
+class StandInServer implements Closeable, Runnable {
+    interface Listener {
+        void onHeartbeat(long receivedNanos);
+        void onMouse(int distanceX, int distanceY, long receivedNanos);
+        void onSpecialKey(int key, long receivedNanos);
+        void onScroll(int deltaX, int deltaY, long receivedNanos);
+        void onKey(int key, boolean pressed, long receivedNanos);
+        void onText(int codePoint, long receivedNanos);
+    }
+
+    /**
+     * Listener that ignores all frames, for overriding only the methods of interest.
+     */
+    static class EmptyListener implements Listener {
+        @Override
+        public void onHeartbeat(long receivedNanos) {}
+
+        @Override
+        public void onMouse(int distanceX, int distanceY, long receivedNanos) {}
+
+        @Override
+        public void onSpecialKey(int key, long receivedNanos) {}
+
+        @Override
+        public void onScroll(int deltaX, int deltaY, long receivedNanos) {}
+
+        @Override
+        public void onKey(int key, boolean pressed, long receivedNanos) {}
+
+        @Override
+        public void onText(int codePoint, long receivedNanos) {}
+    }
+
+    private final ServerSocket mServerSocket;
+    private final Listener mListener;
+    private final Thread mThread;
+    private volatile Socket mClient;
+    private volatile long mReceivedBytes = 0;
+    private volatile long mReads = 0;
+    private volatile long mFrames = 0;
+    private volatile int mFeatures = -1;
+    private volatile int mHellos = 0;
+    private volatile boolean mEchoing = true;
+    private volatile int mAccepts = 0;
+    private long mNow;
+
+    StandInServer(Listener listener) throws IOException {
+        mServerSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        mListener = listener;
+        mThread = new Thread(this, "StandInServer");
+        mThread.setDaemon(true);
+    }
+
+    StandInServer start() {
+        mThread.start();
+        return this;
+    }
+
+    int getPort() {
+        return mServerSocket.getLocalPort();
+    }
+
+    long getReceivedBytes() {
+        return mReceivedBytes;
+    }
+
+    long getReads() {
+        return mReads;
+    }
+
+    long getFrames() {
+        return mFrames;
+    }
+
+    /**
+     * Answers hello frames with the given features, or not at all if features is negative.
+     */
+    StandInServer setFeatures(int features) {
+        mFeatures = features;
+        return this;
+    }
+
+    /**
+     * Stops or resumes echoing heartbeats while the connection stays open, as if the link to
+     * the client died.
+     */
+    StandInServer setEchoing(boolean echoing) {
+        mEchoing = echoing;
+        return this;
+    }
+
+    int getHellos() {
+        return mHellos;
+    }
+
+    /**
+     * Number of connections accepted so far.
+     */
+    int getAccepts() {
+        return mAccepts;
+    }
+
+    @Override
+    public void run() {
+        FrameCodec.Decoder decoder = new FrameCodec.Decoder(new FrameCodec.Decoder.Listener() {
+            @Override
+            public void onHeartbeat() {
+                ++mFrames;
+                mListener.onHeartbeat(mNow);
+                if (mFeatures >= 0 && (mFeatures & FrameCodec.FEATURE_HEARTBEAT_ECHO) != 0
+                        && mEchoing) {
+                    byte[] heartbeat = new byte[FrameCodec.HEARTBEAT_FRAME_SIZE];
+                    send(heartbeat, FrameCodec.encodeHeartbeat(heartbeat, 0));
+                }
+            }
+
+            @Override
+            public void onMouse(int distanceX, int distanceY) {
+                ++mFrames;
+                mListener.onMouse(distanceX, distanceY, mNow);
+            }
+
+            @Override
+            public void onSpecialKey(int key) {
+                ++mFrames;
+                mListener.onSpecialKey(key, mNow);
+            }
+
+            @Override
+            public void onScroll(int deltaX, int deltaY) {
+                ++mFrames;
+                mListener.onScroll(deltaX, deltaY, mNow);
+            }
+
+            @Override
+            public void onKey(int key, boolean pressed) {
+                ++mFrames;
+                mListener.onKey(key, pressed, mNow);
+            }
+
+            @Override
+            public void onHello(int version, int features) {
+                ++mHellos;
+                if (mFeatures >= 0) {
+                    byte[] hello = new byte[FrameCodec.HELLO_FRAME_SIZE];
+                    send(hello, FrameCodec.encodeHello(hello, 0, FrameCodec.PROTOCOL_VERSION,
+                                                       mFeatures));
+                }
+            }
+
+            @Override
+            public void onText(int codePoint) {
+                ++mFrames;
+                mListener.onText(codePoint, mNow);
+            }
+        });
+        byte[] buf = new byte[64*1024];
+        while (!mServerSocket.isClosed()) {
+            try {
+                mClient = mServerSocket.accept();
+                ++mAccepts;
+                InputStream input = mClient.getInputStream();
+                int n;
+                while ((n = input.read(buf)) > 0) {
+                    mNow = System.nanoTime();
+                    ++mReads;
+                    mReceivedBytes += n;
+                    decoder.feed(buf, 0, n);
+                }
+                mClient.close();
+            } catch (IOException e) {
+                // client went away or server was closed
+            }
+        }
+    }
+
+    private void send(byte[] frame, int len) {
+        try {
+            OutputStream output = mClient.getOutputStream();
+            output.write(frame, 0, len);
+            output.flush();
+        } catch (IOException e) {
+            // client went away
+        }
+    }
+
+    /**
+     * Drops the current client connection, as a crashed server or lost link would.
+     */
+    void dropClient() throws IOException {
+        Socket client = mClient;
+        if (client != null) {
+            client.close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mServerSocket.close();
+        dropClient();
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2017  Dennis Dast
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.ddast.xandra;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Creates a synthetic input trace that covers every gesture and the text field resets: tap,
+ * swipe with batched samples, long press, drag and drop, two finger scroll with the pointers
+ * lifted in either order, a third finger, typing, IME replacements, a newline and a paste.
+ * It serves as regression trace next to the real recordings; TraceReplayTest checks that the
+ * checked in synthetic.trace is the one created here.
+ */
+class SyntheticTrace {
+    private static final long TAPDELAY         = 250L;
+    private static final float TAPTOL          = 10.0f;
+    private static final float SENSITIVITY     = 1.0f;
+    private static final float ACCELERATION    = 1.2f;
+    private static final float SCROLLTHRESHOLD = 10.0f;
+    private static final long FRAME_INTERVAL   = 16L;
+    private static final int SAMPLES_PER_FRAME = 4;
+
+    private final InputTrace.Writer mWriter;
+    private final TouchEvent mEvent = new TouchEvent();
+    private final StringBuilder mText = new StringBuilder(TextInput.RESET_TEXT);
+    private long mTime = 1000L;
+
+    private SyntheticTrace(InputTrace.Writer writer) {
+        mWriter = writer;
+    }
+
+    static byte[] create() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InputTrace.Writer writer = new InputTrace.Writer(out, TAPDELAY, TAPTOL, SENSITIVITY,
+                                                         ACCELERATION, SCROLLTHRESHOLD);
+        try {
+            new SyntheticTrace(writer).write();
+        } finally {
+            writer.close();
+        }
+        return out.toByteArray();
+    }
+
+    private void write() throws IOException {
+        mWriter.textReset(mTime, mText);
+
+        // tap
+        touch(TouchEvent.ACTION_DOWN, 0, 0, 100f, 100f);
+        mTime += 80;
+        touch(TouchEvent.ACTION_UP, 0, 0, 102f, 101f);
+        mTime += 1000;
+
+        // swipe, slow at first and then fast
+        touch(TouchEvent.ACTION_DOWN, 0, 0, 100f, 400f);
+        float x = 100f;
+        for (int i = 0; i < 40; ++i) {
+            float step = i < 20 ? 0.3f : 6f + i;
+            x = move1(x, 400f - i, step);
+        }
+        touch(TouchEvent.ACTION_UP, 0, 0, x, 360f);
+        mTime += 1000;
+
+        // long press
+        touch(TouchEvent.ACTION_DOWN, 0, 0, 300f, 300f);
+        mTime += 600;
+        touch(TouchEvent.ACTION_UP, 0, 0, 303f, 298f);
+        mTime += 1000;
+
+        // drag and drop: tap, then touch again within the tap delay and move
+        touch(TouchEvent.ACTION_DOWN, 0, 0, 200f, 200f);
+        mTime += 60;
+        touch(TouchEvent.ACTION_UP, 0, 0, 200f, 200f);
+        mTime += 100;
+        touch(TouchEvent.ACTION_DOWN, 0, 0, 200f, 200f);
+        x = 200f;
+        for (int i = 0; i < 20; ++i) {
+            x = move1(x, 200f + 2*i, 3f);
+        }
+        touch(TouchEvent.ACTION_UP, 0, 0, x, 240f);
+        mTime += 1000;
+
+        // two finger scroll, the first finger is lifted first
+        touch(TouchEvent.ACTION_DOWN, 0, 0, 300f, 600f);
+        mTime += 20;
+        touch2(TouchEvent.ACTION_POINTER_DOWN, 1, 300f, 600f, 400f, 600f);
+        float y = 600f;
+        for (int i = 0; i < 30; ++i) {
+            mTime += FRAME_INTERVAL;
+            y -= i < 15 ? 4f : 12f;
+            touch2(TouchEvent.ACTION_MOVE, 0, 300f, y, 400f, y + 1f);
+        }
+        mTime += FRAME_INTERVAL;
+        touch2(TouchEvent.ACTION_POINTER_UP, 0, 300f, y, 400f, y + 1f);
+        mTime += FRAME_INTERVAL;
+        mEvent.set(TouchEvent.ACTION_MOVE, 0, 1, 0);
+        mEvent.setPointerId(0, 1);
+        mEvent.setEventTime(0, mTime);
+        mEvent.setPosition(0, 0, 410f, y - 5f);
+        mWriter.touchEvent(mEvent);
+        mTime += FRAME_INTERVAL;
+        mEvent.set(TouchEvent.ACTION_UP, 0, 1, 0);
+        mEvent.setPointerId(0, 1);
+        mEvent.setEventTime(0, mTime);
+        mEvent.setPosition(0, 0, 410f, y - 5f);
+        mWriter.touchEvent(mEvent);
+        mTime += 1000;
+
+        // two finger scroll down, a third finger is added and the second one lifted
+        touch(TouchEvent.ACTION_DOWN, 0, 0, 300f, 200f);
+        mTime += 20;
+        touch2(TouchEvent.ACTION_POINTER_DOWN, 1, 300f, 200f, 400f, 200f);
+        y = 200f;
+        for (int i = 0; i < 10; ++i) {
+            mTime += FRAME_INTERVAL;
+            y += 9f;
+            touch2(TouchEvent.ACTION_MOVE, 0, 300f, y, 400f, y);
+        }
+        mTime += FRAME_INTERVAL;
+        touch3(TouchEvent.ACTION_POINTER_DOWN, 2, y);
+        mTime += FRAME_INTERVAL;
+        touch3(TouchEvent.ACTION_POINTER_UP, 1, y);
+        mTime += FRAME_INTERVAL;
+        mEvent.set(TouchEvent.ACTION_CANCEL, 0, 2, 0);
+        mEvent.setPointerId(0, 0);
+        mEvent.setPointerId(1, 2);
+        mEvent.setEventTime(0, mTime);
+        mEvent.setPosition(0, 0, 300f, y);
+        mEvent.setPosition(1, 0, 500f, y);
+        mWriter.touchEvent(mEvent);
+        mTime += 1000;
+
+        // typing with composing text, a suggestion pick, backspace and an emoji
+        String[] composing = {"h", "he", "hel", "helo"};
+        for (int i = 0; i < composing.length; ++i) {
+            change(1, i == 0 ? 0 : composing[i - 1].length(), composing[i]);
+        }
+        change(1, 4, "hello ");
+        change(7, 0, "wrld");
+        change(7, 4, "world");
+        change(11, 1, "");
+        change(11, 0, "d");
+        change(12, 0, "\ud83d\ude00");
+        change(12, 2, "");
+        change(12, 0, "\n");
+
+        // paste that exceeds the bulk threshold
+        StringBuilder paste = new StringBuilder();
+        while (paste.length() <= SendQueue.BULK_THRESHOLD) {
+            paste.append("The quick brown fox jumps over the lazy d\u00f6g. ");
+        }
+        change(1, 0, paste.toString());
+        change(1, 0, "ok");
+    }
+
+    private void touch(int action, int actionIndex, int pointerId, float x, float y)
+            throws IOException {
+        mEvent.set(action, actionIndex, 1, 0);
+        mEvent.setPointerId(0, pointerId);
+        mEvent.setEventTime(0, mTime);
+        mEvent.setPosition(0, 0, x, y);
+        mWriter.touchEvent(mEvent);
+    }
+
+    /**
+     * One finger move event with SAMPLES_PER_FRAME samples, each step pixels to the right.
+     */
+    private float move1(float x, float y, float step) throws IOException {
+        mEvent.set(TouchEvent.ACTION_MOVE, 0, 1, SAMPLES_PER_FRAME - 1);
+        mEvent.setPointerId(0, 0);
+        for (int pos = 0; pos < SAMPLES_PER_FRAME; ++pos) {
+            x += step;
+            mEvent.setEventTime(pos, mTime + (pos + 1)*FRAME_INTERVAL/SAMPLES_PER_FRAME);
+            mEvent.setPosition(0, pos, x, y);
+        }
+        mTime += FRAME_INTERVAL;
+        mWriter.touchEvent(mEvent);
+        return x;
+    }
+
+    private void touch2(int action, int actionIndex, float x1, float y1, float x2, float y2)
+            throws IOException {
+        mEvent.set(action, actionIndex, 2, 0);
+        mEvent.setPointerId(0, 0);
+        mEvent.setPointerId(1, 1);
+        mEvent.setEventTime(0, mTime);
+        mEvent.setPosition(0, 0, x1, y1);
+        mEvent.setPosition(1, 0, x2, y2);
+        mWriter.touchEvent(mEvent);
+    }
+
+    private void touch3(int action, int actionIndex, float y) throws IOException {
+        mEvent.set(action, actionIndex, 3, 0);
+        for (int i = 0; i < 3; ++i) {
+            mEvent.setPointerId(i, i);
+            mEvent.setPosition(i, 0, 300f + 100f*i, y);
+        }
+        mEvent.setEventTime(0, mTime);
+        mWriter.touchEvent(mEvent);
+    }
+
+    /**
+     * Records the TextWatcher callbacks of replacing before characters at start with
+     * replacement, including the reset of the field the watcher would trigger.
+     */
+    private void change(int start, int before, String replacement) throws IOException {
+        mTime += 120;
+        mWriter.beforeTextChanged(mTime, start, before, replacement.length());
+        mText.replace(start, start + before, replacement);
+        mWriter.textChanged(mTime, mText, start, before, replacement.length());
+        mWriter.afterTextChanged(mTime);
+        if (replacement.indexOf('\n') >= 0 || replacement.length() >= SendQueue.BULK_THRESHOLD) {
+            mText.replace(0, mText.length(), TextInput.RESET_TEXT);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2017  Dennis Dast
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.ddast.xandra;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * Replays TextWatcher change sequences as produced by common IMEs (composing text,
+ * autocorrect, suggestion picks, emoji) through TextDiff and the SendQueue, decodes the
+ * resulting byte stream like the server and checks that the server ends up with the same
+ * text as the edit field.  No scenario may need more writes than the previous
+ * implementation, which only trimmed the common prefix and sent every backspace with its own
+ * write.
+ */
+public class TextDiffTest {
+    private static final byte BACKSPACE = InputSink.BACKSPACE;
+
+    /** start, before, replacement of each change, applied to an edit field holding " ". */
+    private static final Object[][][] SCENARIOS = {
+        {{"composing"},
+         {1, 0, "h"}, {1, 1, "he"}, {1, 2, "hel"}, {1, 3, "hell"}, {1, 4, "hello"},
+         {6, 0, " "}},
+        {{"autocorrect on space"},
+         {1, 0, "t"}, {1, 1, "te"}, {1, 2, "teh"}, {1, 3, "the "}},
+        {{"suggestion pick"},
+         {1, 0, "helo"}, {1, 4, "hello "}},
+        {{"correction before space"},
+         {1, 0, "teh "}, {1, 3, "the"}},
+        {{"auto capitalization"},
+         {1, 0, "quick"}, {1, 5, "Quick"}},
+        {{"composing backspace"},
+         {1, 0, "hello"}, {1, 5, "hell"}, {1, 4, "hel"}},
+        {{"swipe word replaced"},
+         {1, 0, "there"}, {1, 5, "three"}, {1, 5, "these"}},
+        {{"emoji"},
+         {1, 0, "ok"}, {3, 0, "👍"}, {3, 2, ""}, {3, 0, "😀"}},
+        {{"backspace sentinel"},
+         {0, 1, ""}, {0, 0, " "}},
+        {{"sentence"},
+         {1, 0, "Th"}, {1, 2, "The"}, {4, 0, " "}, {5, 0, "qu"}, {5, 2, "quick"},
+         {10, 0, " "}, {11, 0, "brwn"}, {11, 4, "brown "}},
+    };
+
+    @Test
+    public void imeScenarios() throws InterruptedException {
+        for (Object[][] scenario : SCENARIOS) {
+            Result current = replay(scenario, false);
+            Result legacy = replay(scenario, true);
+            String name = (String)scenario[0][0];
+            assertEquals(name, current.field, current.server);
+            assertTrue(name + ": " + current.writes + " writes instead of " + legacy.writes,
+                       current.writes <= legacy.writes);
+        }
+    }
+
+    private static class Result {
+        int writes;
+        String field;
+        String server;
+    }
+
+    private static Result replay(Object[][] scenario, boolean legacy)
+            throws InterruptedException {
+        final StringBuilder server = new StringBuilder(" ");
+        FrameCodec.Decoder decoder = new FrameCodec.Decoder(new FrameCodec.Decoder.Listener() {
+            @Override
+            public void onHeartbeat() {}
+
+            @Override
+            public void onMouse(int distanceX, int distanceY) {}
+
+            @Override
+            public void onSpecialKey(int key) {
+                if (key == BACKSPACE && server.length() > 0) {
+                    int last = server.offsetByCodePoints(server.length(), -1);
+                    server.setLength(last);
+                }
+            }
+
+            @Override
+            public void onScroll(int deltaX, int deltaY) {}
+
+            @Override
+            public void onHello(int version, int features) {}
+
+            @Override
+            public void onKey(int key, boolean pressed) {}
+
+            @Override
+            public void onText(int codePoint) {
+                server.appendCodePoint(codePoint);
+            }
+        });
+
+        StringBuilder field = new StringBuilder(" ");
+        TextDiff textDiff = new TextDiff();
+        SendQueue queue = new SendQueue();
+        ByteBuffer[] batch = new ByteBuffer[64];
+        for (int i = 0; i < batch.length; ++i) {
+            batch[i] = ByteBuffer.allocate(SendQueue.SLOT_SIZE);
+        }
+        Result result = new Result();
+        for (int i = 1; i < scenario.length; ++i) {
+            int start = (Integer)scenario[i][0];
+            int before = (Integer)scenario[i][1];
+            String replacement = (String)scenario[i][2];
+            String old = field.substring(start, start + before);
+            textDiff.beforeTextChanged(field, start, before);
+            field.replace(start, start + before, replacement);
+            int count = replacement.length();
+            if (legacy) {
+                result.writes += legacyChange(old, field, start, count, queue);
+            } else if (textDiff.onTextChanged(field, start, before, count)) {
+                queue.offerEdit(BACKSPACE, textDiff.getDeletions(), field,
+                                textDiff.getInsertStart(), textDiff.getInsertEnd());
+                ++result.writes;
+            }
+            int n;
+            while ((n = queue.drainTo(batch, 0)) > 0) {
+                for (int j = 0; j < n; ++j) {
+                    decoder.feed(batch[j].array(), 0, batch[j].limit());
+                }
+                queue.writeCompleted();
+            }
+        }
+        result.field = field.toString();
+        result.server = server.toString();
+        return result;
+    }
+
+    /**
+     * The previous SendCharsTextWatcher, with a correct snapshot of the old text.
+     */
+    private static int legacyChange(String old, CharSequence s, int start, int count,
+                                    SendQueue queue) {
+        int before = old.length();
+        int trimmed = 0;
+        while (trimmed < Math.min(before, count)
+               && old.charAt(trimmed) == s.charAt(start + trimmed)) {
+            ++trimmed;
+        }
+        int writes = 0;
+        byte[] frame = new byte[FrameCodec.MAX_FRAME_SIZE];
+        for (int i = 0; i < before - trimmed; ++i) {
+            queue.offer(frame, 0, FrameCodec.encodeSpecialKey(frame, 0, BACKSPACE));
+            ++writes;
+        }
+        if (count > trimmed) {
+            queue.offerText(s, start + trimmed, start + count);
+            ++writes;
+        }
+        return writes;
+    }
+}
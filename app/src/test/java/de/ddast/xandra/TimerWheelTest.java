@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2017  Dennis Dast
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.ddast.xandra;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TimerWheelTest {
+    /**
+     * Timers across several rotations of the wheel, cancelled and rescheduled timers and
+     * timers scheduled from a callback.
+     */
+    @Test
+    public void expiry() {
+        final VirtualClock clock = new VirtualClock();
+        final TimerWheel wheel = clock.getTimerWheel();
+        final List<String> expired = new ArrayList<String>();
+        final TimerWheel.Timer[] timers = new TimerWheel.Timer[5];
+        for (int i = 0; i < timers.length; ++i) {
+            final int id = i;
+            timers[i] = new TimerWheel.Timer() {
+                @Override
+                void expired() {
+                    expired.add(clock.now() + " timer " + id);
+                    if (id == 3) {
+                        wheel.schedule(timers[4], 0);
+                        wheel.schedule(timers[3], 100);
+                    }
+                }
+            };
+        }
+        clock.advanceTo(1000);
+        wheel.schedule(timers[0], 5000);
+        wheel.schedule(timers[1], 70000);
+        wheel.schedule(timers[2], 10);
+        wheel.schedule(timers[3], 1024);
+        wheel.schedule(timers[2], 20);
+        wheel.cancel(timers[1]);
+        clock.advanceTo(2100);
+        wheel.cancel(timers[3]);
+        clock.advanceTo(100000);
+        assertEquals(Arrays.asList("1020 timer 2", "2024 timer 3", "2024 timer 4",
+                                   "6000 timer 0"), expired);
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2017  Dennis Dast
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.ddast.xandra;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Replays the recorded input traces in the traces resource directory through the gesture and
+ * text handling with TraceReplayer and compares the produced frames with the golden file next
+ * to each trace (name.golden for name.trace).  With the system property updateGolden set
+ * (./gradlew test -PupdateGolden) the golden files and synthetic.trace are written to
+ * src/test/resources/traces instead, relative to the working directory of the tests.
+ */
+public class TraceReplayTest {
+    private static final File SOURCE_TRACES = new File("src/test/resources/traces");
+    private static final boolean UPDATE = Boolean.getBoolean("updateGolden");
+
+    @Test
+    public void syntheticTraceIsUpToDate() throws IOException, URISyntaxException {
+        byte[] created = SyntheticTrace.create();
+        File file = new File(tracesDir(), "synthetic.trace");
+        if (UPDATE) {
+            write(file, created);
+        }
+        assertArrayEquals(created, Frames.readFile(file));
+    }
+
+    @Test
+    public void framesMatchGolden() throws IOException, URISyntaxException {
+        for (File trace : traces()) {
+            byte[] frames = new TraceReplayer().replay(
+                    new ByteArrayInputStream(Frames.readFile(trace)));
+            File golden = new File(trace.getPath().replaceFirst("\\.trace$", ".golden"));
+            if (UPDATE) {
+                write(golden, frames);
+            }
+            assertEquals(trace.getName(), Frames.decode(Frames.readFile(golden)),
+                         Frames.decode(frames));
+        }
+    }
+
+    /**
+     * Legacy mouse frames and compact motion frames must decode to the same input, where
+     * consecutive mouse frames are summed since the legacy encoding splits large moves.
+     */
+    @Test
+    public void compactMotionDecodesLikeLegacy() throws IOException, URISyntaxException {
+        for (File trace : traces()) {
+            byte[] recorded = Frames.readFile(trace);
+            TraceReplayer replayer = new TraceReplayer();
+            List<String> legacy = coalesce(Frames.decode(
+                    replayer.replay(new ByteArrayInputStream(recorded))));
+            int legacyBytes = replayer.getMotionBytes();
+            replayer.setCompactMotion(true);
+            List<String> compact = coalesce(Frames.decode(
+                    replayer.replay(new ByteArrayInputStream(recorded))));
+            assertEquals(trace.getName(), legacy, compact);
+            assertFalse(trace.getName(), replayer.getMotionBytes() > legacyBytes);
+        }
+    }
+
+    /**
+     * The traces on the test classpath, or their sources if they are to be updated, since the
+     * classpath only holds a copy.
+     */
+    private File tracesDir() throws URISyntaxException {
+        if (UPDATE) {
+            return SOURCE_TRACES;
+        }
+        URL url = getClass().getResource("/traces");
+        assertNotNull("No traces on the classpath", url);
+        return new File(url.toURI());
+    }
+
+    private List<File> traces() throws URISyntaxException {
+        File dir = tracesDir();
+        File[] files = dir.listFiles();
+        Arrays.sort(files);
+        List<File> traces = new ArrayList<File>();
+        for (File file : files) {
+            if (file.getName().endsWith(".trace")) {
+                traces.add(file);
+            }
+        }
+        assertFalse("No traces in " + dir.getAbsolutePath(), traces.isEmpty());
+        return traces;
+    }
+
+    private static void write(File file, byte[] data) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Replaces every run of consecutive mouse frames with a single one holding their sum.
+     */
+    private static List<String> coalesce(List<String> frames) {
+        List<String> result = new ArrayList<String>();
+        long x = 0, y = 0;
+        boolean pending = false;
+        for (String frame : frames) {
+            if (frame.startsWith("mouse ")) {
+                String[] parts = frame.split(" ");
+                x += Integer.parseInt(parts[1]);
+                y += Integer.parseInt(parts[2]);
+                pending = true;
+                continue;
+            }
+            if (pending) {
+                result.add("mouse " + x + " " + y);
+                x = y = 0;
+                pending = false;
+            }
+            result.add(frame);
+        }
+        if (pending) {
+            result.add("mouse " + x + " " + y);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2017  Dennis Dast
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.ddast.xandra;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Drives GestureEngine and TextInput with the records of an InputTrace and encodes their
+ * output into the frame stream TcpClient would send.  Each call of the InputSink is encoded
+ * on its own, without the merging the SendQueue applies depending on the write timing, so
+ * the result is deterministic.  Mouse movements are encoded as legacy mouse frames unless
+ * setCompactMotion() was called.
+ *
+ * The timer wheel runs on a virtual clock that advances with the record times and jumps to
+ * every deadline in between.  The text field is mirrored in a StringBuilder and reset the way
+ * SendCharsTextWatcher does it.
+ */
+class TraceReplayer implements InputTrace.Listener, InputSink, TimerWheel.Clock,
+                               TimerWheel.WakeUp {
+    private static final long TICK_MILLIS = 16L;
+
+    private final ByteArrayOutputStream mFrames = new ByteArrayOutputStream();
+    private final byte[] mFrame = new byte[FrameCodec.MAX_FRAME_SIZE];
+    private final StringBuilder mText = new StringBuilder(TextInput.RESET_TEXT);
+    private TimerWheel mTimerWheel;
+    private GestureEngine mGestureEngine;
+    private TextInput mTextInput;
+    private byte[] mUtf8 = new byte[256];
+    private long mNow = 0;
+    private int mEvents = 0;
+    private boolean mCompactMotion = false;
+    private int mMotionFrames = 0;
+    private int mMotionBytes = 0;
+
+    /**
+     * Replays the whole trace and returns the frame stream.
+     */
+    byte[] replay(InputStream in) throws IOException {
+        InputTrace.Reader reader = new InputTrace.Reader(in);
+        try {
+            mNow = 0;
+            mTimerWheel = new TimerWheel(this, TICK_MILLIS, this);
+            mGestureEngine = new GestureEngine(this, mTimerWheel, reader.getTapdelay(),
+                                               reader.getTaptol(), reader.getSensitivity(),
+                                               reader.getAcceleration(),
+                                               reader.getScrollThreshold());
+            mTextInput = new TextInput(this);
+            mText.setLength(0);
+            mText.append(TextInput.RESET_TEXT);
+            mFrames.reset();
+            mEvents = 0;
+            mMotionFrames = 0;
+            mMotionBytes = 0;
+            while (reader.next(this)) {
+                ++mEvents;
+            }
+            advance(TimerWheel.NEVER - 1);
+        } finally {
+            reader.close();
+        }
+        return mFrames.toByteArray();
+    }
+
+    /**
+     * Number of records of the last replayed trace.
+     */
+    int getEvents() {
+        return mEvents;
+    }
+
+    void setCompactMotion(boolean compactMotion) {
+        mCompactMotion = compactMotion;
+    }
+
+    /**
+     * Number of mouse frames of the last replayed trace.
+     */
+    int getMotionFrames() {
+        return mMotionFrames;
+    }
+
+    /**
+     * Number of bytes of the mouse frames of the last replayed trace.
+     */
+    int getMotionBytes() {
+        return mMotionBytes;
+    }
+
+    private void advance(long time) {
+        long deadline;
+        while ((deadline = mTimerWheel.nextDeadline()) <= time) {
+            mNow = Math.max(mNow, deadline);
+            mTimerWheel.advance();
+        }
+        mNow = Math.max(mNow, time);
+    }
+
+    @Override
+    public void onTouchEvent(TouchEvent event) {
+        advance(event.getEventTime());
+        mGestureEngine.processTouchEvent(event);
+    }
+
+    @Override
+    public void onTextReset(long time, CharSequence text) {
+        advance(time);
+        mText.setLength(0);
+        mText.append(text);
+    }
+
+    @Override
+    public void onBeforeTextChanged(long time, int start, int count, int after) {
+        advance(time);
+        mTextInput.beforeTextChanged(mText, start, count);
+    }
+
+    @Override
+    public void onTextChanged(long time, int start, int before, CharSequence inserted) {
+        advance(time);
+        mText.delete(start, start + before).insert(start, inserted);
+        mTextInput.onTextChanged(mText, start, before, inserted.length());
+    }
+
+    @Override
+    public void onAfterTextChanged(long time) {
+        advance(time);
+        if (mTextInput.afterTextChanged(mText)) {
+            int length = mText.length();
+            mTextInput.beforeTextChanged(mText, 0, length);
+            mText.replace(0, length, TextInput.RESET_TEXT);
+            mTextInput.onTextChanged(mText, 0, length, TextInput.RESET_TEXT.length());
+            mTextInput.afterTextChanged(mText);
+        }
+    }
+
+    @Override
+    public long now() {
+        return mNow;
+    }
+
+    @Override
+    public void wakeUpAt(long time) {}
+
+    @Override
+    public void sendMouse(int distanceX, int distanceY) {
+        int max = mCompactMotion ? FrameCodec.MAX_MOTION_DELTA : FrameCodec.MAX_MOUSE_DELTA;
+        while (distanceX != 0 || distanceY != 0) {
+            int x = saturate(distanceX, max);
+            int y = saturate(distanceY, max);
+            int len = mCompactMotion ? FrameCodec.encodeMotion(mFrame, 0, x, y)
+                                     : FrameCodec.encodeMouse(mFrame, 0, x, y);
+            mFrames.write(mFrame, 0, len);
+            ++mMotionFrames;
+            mMotionBytes += len;
+            distanceX -= x;
+            distanceY -= y;
+        }
+    }
+
+    @Override
+    public void sendSpecialKey(byte key) {
+        mFrames.write(mFrame, 0, FrameCodec.encodeSpecialKey(mFrame, 0, key));
+    }
+
+    @Override
+    public boolean canSendKeyState() {
+        return false;
+    }
+
+    @Override
+    public void sendKeyState(byte key, boolean pressed) {
+        mFrames.write(mFrame, 0, FrameCodec.encodeKey(mFrame, 0, key, pressed));
+    }
+
+    /**
+     * Traces are replayed like for a server without scroll frames, so that their golden files
+     * keep the wheel keys.
+     */
+    @Override
+    public boolean canSendScroll() {
+        return false;
+    }
+
+    @Override
+    public void sendScroll(int deltaX, int deltaY) {
+        mFrames.write(mFrame, 0, FrameCodec.encodeScroll(mFrame, 0, deltaX, deltaY));
+    }
+
+    @Override
+    public void sendEdit(int deletions, CharSequence s, int start, int end) {
+        for (int i = 0; i < deletions; ++i) {
+            sendSpecialKey(BACKSPACE);
+        }
+        int length = FrameCodec.utf8Length(s, start, end);
+        if (mUtf8.length < length) {
+            mUtf8 = new byte[length];
+        }
+        mFrames.write(mUtf8, 0, FrameCodec.encodeUtf8(s, start, end, mUtf8, 0));
+    }
+
+    private static int saturate(int distance, int max) {
+        return Math.max(-max, Math.min(max, distance));
+    }
+}
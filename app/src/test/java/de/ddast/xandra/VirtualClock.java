@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2017  Dennis Dast
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.ddast.xandra;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Clock for a TimerWheel or a SendQueue that only advances when told to.  advanceTo() runs
+ * the wheel like the Handler would: the clock stops at every requested wake up on the way.
+ */
+class VirtualClock implements TimerWheel.Clock, TimerWheel.WakeUp, SendQueue.Clock {
+    private static final long TICK_MILLIS = 16L;
+
+    private final TimerWheel mTimerWheel = new TimerWheel(this, TICK_MILLIS, this);
+    private volatile long mNow = 0;
+    private long mWakeUpTime = TimerWheel.NEVER;
+
+    TimerWheel getTimerWheel() {
+        return mTimerWheel;
+    }
+
+    void advanceTo(long time) {
+        while (mWakeUpTime <= time) {
+            mNow = Math.max(mNow, mWakeUpTime);
+            mWakeUpTime = TimerWheel.NEVER;
+            mTimerWheel.advance();
+        }
+        mNow = time;
+    }
+
+    @Override
+    public long now() {
+        return mNow;
+    }
+
+    @Override
+    public long nanoTime() {
+        return TimeUnit.MILLISECONDS.toNanos(mNow);
+    }
+
+    @Override
+    public void wakeUpAt(long time) {
+        mWakeUpTime = time;
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2017  Dennis Dast
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.ddast.xandra;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+/**
+ * Acceleration math that MouseGestureWatcher runs for both axes of every move sample.  The
+ * legacy variant evaluates the formula with Math.pow as before the lookup table.
+ */
+@State(Scope.Thread)
+public class AccelerationBenchmark {
+    private static final int SAMPLES = 1024;
+
+    @Param({"1.0", "1.2", "1.5"})
+    public float acceleration;
+
+    private final float[] mLengths = new float[SAMPLES];
+    private final long[] mTimes = new long[SAMPLES];
+    private MouseAcceleration mMouseAcceleration;
+    private int mIndex = 0;
+
+    @Setup
+    public void setup() {
+        mMouseAcceleration = new MouseAcceleration(1.0f, acceleration);
+        Random random = new Random(42);
+        for (int i = 0; i < SAMPLES; ++i) {
+            mLengths[i] = (float)(random.nextGaussian()*20.0);
+            mTimes[i] = 8 + random.nextInt(12);
+        }
+    }
+
+    @Benchmark
+    public int mouseMovement() {
+        mIndex = (mIndex + 1) & (SAMPLES - 1);
+        return mMouseAcceleration.mouseMovement(mLengths[mIndex], mTimes[mIndex]);
+    }
+
+    @Benchmark
+    public double acceleratedMovement() {
+        mIndex = (mIndex + 1) & (SAMPLES - 1);
+        return mMouseAcceleration.acceleratedMovement(mLengths[mIndex], mTimes[mIndex]);
+    }
+
+    @Benchmark
+    public double acceleratedMovementLegacy() {
+        mIndex = (mIndex + 1) & (SAMPLES - 1);
+        return legacyAcceleratedMovement(mLengths[mIndex], mTimes[mIndex], acceleration);
+    }
+
+    static double legacyAcceleratedMovement(float len, long time, float acceleration) {
+        double velocity = (len < 0.0f ? -1.0 : 1.0)
+                * Math.pow(Math.abs(10.0*len/time), acceleration);
+        return velocity*time/10.0;
+    }
+}
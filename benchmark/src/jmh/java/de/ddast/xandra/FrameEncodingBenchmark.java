@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2017  Dennis Dast
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.ddast.xandra;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+
+/**
+ * Frame encoding as done for every mouse move, special key and text change.  The legacy
+ * variants reproduce the encoding TcpClient used before FrameCodec and serve as baseline.
+ */
+@State(Scope.Thread)
+public class FrameEncodingBenchmark {
+    @Param({"a", "Hello, World!", "Grüße aus Köln €"})
+    public String text;
+
+    private final byte[] mFrame = new byte[FrameCodec.MAX_FRAME_SIZE];
+    private byte[] mTextBuffer;
+    private int mDistance = 0;
+
+    @Setup
+    public void setup() {
+        mTextBuffer = new byte[FrameCodec.utf8Length(text, 0, text.length())];
+    }
+
+    @Benchmark
+    public byte[] mouseFrame() {
+        mDistance = (mDistance + 7) & 0x3ff;
+        FrameCodec.encodeMouse(mFrame, 0, mDistance, -mDistance);
+        return mFrame;
+    }
+
+    @Benchmark
+    public byte[] mouseFrameLegacy() {
+        mDistance = (mDistance + 7) & 0x3ff;
+        int distanceX = mDistance;
+        int distanceY = -mDistance;
+        boolean isNegX = distanceX < 0;
+        boolean isNegY = distanceY < 0;
+        distanceX = Math.abs(distanceX) & 0xfff;
+        distanceY = Math.abs(distanceY) & 0xfff;
+        return ByteBuffer.allocate(5)
+                .put((byte)(0xf8 | (isNegX ? 0x02 : 0x00) | distanceX>>>11))
+                .put((byte)(0x80 | distanceX>>>5 & 0x3f))
+                .put((byte)(0x80 | (distanceX & 0x1f)<<1 | (isNegY ? 0x01 : 0x00)))
+                .put((byte)(0x80 | distanceY>>>6))
+                .put((byte)(0x80 | distanceY & 0x3f))
+                .array();
+    }
+
+    @Benchmark
+    public byte[] specialKeyFrame() {
+        FrameCodec.encodeSpecialKey(mFrame, 0, (byte)0x08);
+        return mFrame;
+    }
+
+    @Benchmark
+    public byte[] specialKeyFrameLegacy() {
+        return new byte[] {(byte)0xfc, (byte)0x80, (byte)0x80, (byte)0x80, (byte)0x80,
+                           (byte)(0x80 | (byte)0x08)};
+    }
+
+    @Benchmark
+    public byte[] utf8Text() {
+        FrameCodec.encodeUtf8(text, 0, text.length(), mTextBuffer, 0);
+        return mTextBuffer;
+    }
+
+    @Benchmark
+    public byte[] utf8TextLegacy() throws UnsupportedEncodingException {
+        return text.getBytes("UTF8");
+    }
+}
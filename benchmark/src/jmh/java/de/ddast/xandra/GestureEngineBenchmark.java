@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2017  Dennis Dast
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.ddast.xandra;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of the gesture handling per touch event on a virtual clock: a move event with batched
+ * samples, a complete tap including its two timeouts, and scheduling and cancelling a timer.
+ */
+@State(Scope.Thread)
+public class GestureEngineBenchmark implements InputSink, TimerWheel.Clock, TimerWheel.WakeUp {
+    private static final int SAMPLES = 4;
+
+    private final TouchEvent mMove = new TouchEvent();
+    private final TouchEvent mDown = new TouchEvent();
+    private final TouchEvent mUp = new TouchEvent();
+    private final TimerWheel.Timer mTimer = new TimerWheel.Timer() {
+        @Override
+        void expired() {}
+    };
+    private TimerWheel mTimerWheel;
+    private GestureEngine mGestureEngine;
+    private long mNow = 0;
+    private long mWakeUpTime = TimerWheel.NEVER;
+    private int mFrames = 0;
+    private float mDirection = 1f;
+
+    @Setup
+    public void setup() {
+        mTimerWheel = new TimerWheel(this, 16L, this);
+        mGestureEngine = new GestureEngine(this, mTimerWheel, 250L, 10f, 1.0f, 1.2f, 10f);
+        mMove.set(TouchEvent.ACTION_MOVE, 0, 1, SAMPLES - 1);
+        mMove.setPointerId(0, 0);
+        mDown.set(TouchEvent.ACTION_DOWN, 0, 1, 0);
+        mDown.setPointerId(0, 0);
+        mDown.setPosition(0, 0, 100f, 100f);
+        mUp.set(TouchEvent.ACTION_UP, 0, 1, 0);
+        mUp.setPointerId(0, 0);
+        mUp.setPosition(0, 0, 100f, 100f);
+        mGestureEngine.processTouchEvent(mDown);
+    }
+
+    @Benchmark
+    public int move() {
+        mDirection = -mDirection;
+        for (int pos = 0; pos < SAMPLES; ++pos) {
+            mNow += 4;
+            mMove.setEventTime(pos, mNow);
+            mMove.setPosition(0, pos, 100f + mDirection*(pos + 1)*3f, 100f + (pos & 1));
+        }
+        mGestureEngine.processTouchEvent(mMove);
+        return mFrames;
+    }
+
+    @Benchmark
+    public int tap() {
+        mDown.setEventTime(0, mNow);
+        mGestureEngine.processTouchEvent(mDown);
+        advance(mNow + 50);
+        mUp.setEventTime(0, mNow);
+        mGestureEngine.processTouchEvent(mUp);
+        advance(mNow + 1000);
+        return mFrames;
+    }
+
+    @Benchmark
+    public boolean scheduleAndCancel() {
+        mTimerWheel.schedule(mTimer, 250L);
+        mTimerWheel.cancel(mTimer);
+        return mTimer.isScheduled();
+    }
+
+    private void advance(long time) {
+        while (mWakeUpTime <= time) {
+            mNow = Math.max(mNow, mWakeUpTime);
+            mWakeUpTime = TimerWheel.NEVER;
+            mTimerWheel.advance();
+        }
+        mNow = time;
+    }
+
+    @Override
+    public long now() {
+        return mNow;
+    }
+
+    @Override
+    public void wakeUpAt(long time) {
+        mWakeUpTime = time;
+    }
+
+    @Override
+    public void sendMouse(int distanceX, int distanceY) {
+        ++mFrames;
+    }
+
+    @Override
+    public void sendSpecialKey(byte key) {
+        ++mFrames;
+    }
+
+    @Override
+    public boolean canSendKeyState() {
+        return false;
+    }
+
+    @Override
+    public void sendKeyState(byte key, boolean pressed) {
+        ++mFrames;
+    }
+
+    @Override
+    public boolean canSendScroll() {
+        return false;
+    }
+
+    @Override
+    public void sendScroll(int deltaX, int deltaY) {
+        ++mFrames;
+    }
+
+    @Override
+    public void sendEdit(int deletions, CharSequence s, int start, int end) {
+        ++mFrames;
+    }
+}
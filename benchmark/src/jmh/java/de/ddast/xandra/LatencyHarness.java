@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2017  Dennis Dast
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.ddast.xandra;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays synthetic gesture and typing workloads through the send pipeline used by TcpClient
+ * (SendQueue, FrameSender, ChannelTransport) against a StandInServer and reports the latency
+ * from the send call to the receipt by the server as well as the received frame rate.
+ *
+ * Usage: LatencyHarness [events] [rate in Hz, 0 = unthrottled]
+ */
+public class LatencyHarness {
+    private static final long CONNECT_TIMEOUT    = 1000L;
+    private static final long HEARTBEAT_INTERVAL = 1000L;
+    private static final long WRITE_TIMEOUT      = 5000L;
+    private static final long DRAIN_TIMEOUT      = 5000L;
+
+    interface Workload {
+        String name();
+        void send(int i, SendQueue queue, Tracker tracker);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int events = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int rate = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+
+        System.out.println(String.format(Locale.US, "%-8s %7s %6s %8s %9s %8s %8s %8s %8s %8s",
+                "workload", "events", "rate", "frames", "frames/s", "reads", "p50 us",
+                "p99 us", "p999 us", "max us"));
+        Workload[] workloads = {new Swipe(), new Typing(), new Mixed(), new Paste()};
+        for (Workload workload : workloads) {
+            run(workload, events, rate);
+            run(workload, events, 0);
+        }
+    }
+
+    private static void run(Workload workload, int events, int rate) throws Exception {
+        Tracker tracker = new Tracker(events);
+        StandInServer server = new StandInServer(tracker).start();
+        ChannelTransport transport = ChannelTransport.connect(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort()),
+                CONNECT_TIMEOUT);
+        SendQueue queue = new SendQueue();
+        FrameSender sender = new FrameSender(queue, transport, HEARTBEAT_INTERVAL,
+                WRITE_TIMEOUT, new FrameSender.Callback() {
+                    @Override
+                    public void sendFailed(FrameSender sender, IOException e) {
+                        System.err.println("Send failed: " + e);
+                    }
+                });
+        sender.start();
+
+        long interval = rate > 0 ? TimeUnit.SECONDS.toNanos(1) / rate : 0;
+        long start = System.nanoTime();
+        long next = start;
+        for (int i = 0; i < events; ++i) {
+            if (interval > 0) {
+                next += interval;
+                while (System.nanoTime() < next) {
+                    LockSupport.parkNanos(next - System.nanoTime());
+                }
+            }
+            workload.send(i, queue, tracker);
+        }
+        tracker.awaitAll(DRAIN_TIMEOUT);
+        long elapsed = System.nanoTime() - start;
+
+        sender.shutdown();
+        transport.close();
+        server.close();
+
+        long[] latencies = tracker.latencies();
+        System.out.println(String.format(Locale.US,
+                "%-8s %7d %6s %8d %9.0f %8d %8.1f %8.1f %8.1f %8.1f",
+                workload.name(), events, rate > 0 ? String.valueOf(rate) : "max",
+                server.getFrames(), server.getFrames() * 1e9 / elapsed, server.getReads(),
+                percentile(latencies, 0.5), percentile(latencies, 0.99),
+                percentile(latencies, 0.999), percentile(latencies, 1.0)));
+        if (queue.getDroppedMouse() > 0 || queue.getRejected() > 0) {
+            System.out.println("  " + queue.getDroppedMouse() + " stale mouse frames dropped, "
+                               + queue.getRejected() + " offers rejected");
+        }
+        if (latencies.length < tracker.expected()) {
+            System.out.println("  " + (tracker.expected() - latencies.length)
+                               + " events were not received");
+        }
+    }
+
+    static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return Double.NaN;
+        }
+        int index = (int)Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1000.0;
+    }
+
+    /**
+     * The harness applies backpressure instead of dropping frames when the queue is full.
+     */
+    private static void offer(SendQueue queue, byte[] frame, int len) {
+        while (!queue.offer(frame, 0, len)) {
+            Thread.yield();
+        }
+    }
+
+    private static void offerText(SendQueue queue, CharSequence s, int start, int end) {
+        while (!queue.offerText(s, start, end)) {
+            Thread.yield();
+        }
+    }
+
+    /**
+     * One finger swipe: every event moves right by 1 to 16 pixels and randomly up or down.
+     */
+    private static class Swipe implements Workload {
+        private final Random mRandom = new Random(1);
+
+        @Override
+        public String name() {
+            return "swipe";
+        }
+
+        @Override
+        public void send(int i, SendQueue queue, Tracker tracker) {
+            int distanceX = 1 + mRandom.nextInt(16);
+            int distanceY = mRandom.nextInt(33) - 16;
+            tracker.mouseSent(distanceX);
+            while (!queue.offerMouse(distanceX, distanceY)) {
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * Typing: mostly single characters, every tenth event is a backspace.
+     */
+    private static class Typing implements Workload {
+        private static final String TEXT = "The quick brown fox jumps over the lazy dög. ";
+        private final byte[] mFrame = new byte[FrameCodec.MAX_FRAME_SIZE];
+
+        @Override
+        public String name() {
+            return "typing";
+        }
+
+        @Override
+        public void send(int i, SendQueue queue, Tracker tracker) {
+            if (i % 10 == 9) {
+                tracker.keySent();
+                offer(queue, mFrame, FrameCodec.encodeSpecialKey(mFrame, 0, (byte)0x08));
+            } else {
+                int index = i % TEXT.length();
+                tracker.textSent(1);
+                offerText(queue, TEXT, index, index + 1);
+            }
+        }
+    }
+
+    /**
+     * Pointer movement interleaved with clicks and short words.
+     */
+    private static class Mixed implements Workload {
+        private final Swipe mSwipe = new Swipe();
+        private final byte[] mFrame = new byte[FrameCodec.MAX_FRAME_SIZE];
+
+        @Override
+        public String name() {
+            return "mixed";
+        }
+
+        @Override
+        public void send(int i, SendQueue queue, Tracker tracker) {
+            if (i % 50 == 49) {
+                tracker.keySent();
+                offer(queue, mFrame, FrameCodec.encodeSpecialKey(mFrame, 0, (byte)0x00));
+            } else if (i % 50 == 24) {
+                tracker.textSent(5);
+                offerText(queue, "hello", 0, 5);
+            } else {
+                mSwipe.send(i, queue, tracker);
+            }
+        }
+    }
+
+    /**
+     * Swipe while a large paste is streamed.  Only the mouse latency is tracked.
+     */
+    private static class Paste implements Workload {
+        private static final int PASTE_LENGTH = 4 << 20;
+        private final Swipe mSwipe = new Swipe();
+        private final StringBuilder mText = new StringBuilder(PASTE_LENGTH);
+
+        Paste() {
+            while (mText.length() < PASTE_LENGTH) {
+                mText.append("The quick brown fox jumps over the lazy dög.\n");
+            }
+        }
+
+        @Override
+        public String name() {
+            return "paste";
+        }
+
+        @Override
+        public void send(int i, SendQueue queue, Tracker tracker) {
+            if (i == 0) {
+                offerText(queue, mText, 0, mText.length());
+            }
+            mSwipe.send(i, queue, tracker);
+        }
+    }
+
+    /**
+     * Matches received frames with the send calls that produced them.  Keys and code points
+     * are matched by their order.  Mouse events are matched by the accumulated x distance,
+     * since the SendQueue may merge several of them into one frame.
+     */
+    static class Tracker implements StandInServer.Listener {
+        private final AtomicLongArray mMouseSent, mMouseTarget, mKeySent, mTextSent;
+        private final AtomicInteger mMouseCount = new AtomicInteger();
+        private final AtomicInteger mKeyCount = new AtomicInteger();
+        private final AtomicInteger mTextCount = new AtomicInteger();
+        private final long[] mLatencies;
+        private long mMouseSentX = 0;
+        private long mMouseReceivedX = 0;
+        private int mMouseMatched, mKeyMatched, mTextMatched, mLatencyCount;
+
+        Tracker(int events) {
+            int capacity = 5*events;
+            mMouseSent = new AtomicLongArray(capacity);
+            mMouseTarget = new AtomicLongArray(capacity);
+            mKeySent = new AtomicLongArray(capacity);
+            mTextSent = new AtomicLongArray(capacity);
+            mLatencies = new long[3*capacity];
+        }
+
+        void mouseSent(int distanceX) {
+            int i = mMouseCount.get();
+            mMouseSentX += distanceX;
+            mMouseTarget.set(i, mMouseSentX);
+            mMouseSent.set(i, System.nanoTime());
+            mMouseCount.set(i + 1);
+        }
+
+        void keySent() {
+            int i = mKeyCount.get();
+            mKeySent.set(i, System.nanoTime());
+            mKeyCount.set(i + 1);
+        }
+
+        void textSent(int codePoints) {
+            int i = mTextCount.get();
+            long now = System.nanoTime();
+            for (int j = 0; j < codePoints; ++j) {
+                mTextSent.set(i + j, now);
+            }
+            mTextCount.set(i + codePoints);
+        }
+
+        int expected() {
+            return mMouseCount.get() + mKeyCount.get() + mTextCount.get();
+        }
+
+        synchronized long receivedMouse() {
+            return mMouseReceivedX;
+        }
+
+        @Override
+        public void onHeartbeat(long receivedNanos) {}
+
+        @Override
+        public synchronized void onMouse(int distanceX, int distanceY, long receivedNanos) {
+            mMouseReceivedX += distanceX;
+            while (mMouseMatched < mMouseCount.get()
+                   && mMouseTarget.get(mMouseMatched) <= mMouseReceivedX) {
+                record(receivedNanos - mMouseSent.get(mMouseMatched++));
+            }
+        }
+
+        @Override
+        public synchronized void onSpecialKey(int key, long receivedNanos) {
+            if (mKeyMatched < mKeyCount.get()) {
+                record(receivedNanos - mKeySent.get(mKeyMatched++));
+            }
+        }
+
+        @Override
+        public void onScroll(int deltaX, int deltaY, long receivedNanos) {}
+
+        @Override
+        public void onKey(int key, boolean pressed, long receivedNanos) {}
+
+        @Override
+        public synchronized void onText(int codePoint, long receivedNanos) {
+            if (mTextMatched < mTextCount.get()) {
+                record(receivedNanos - mTextSent.get(mTextMatched++));
+            }
+        }
+
+        private void record(long latency) {
+            mLatencies[mLatencyCount++] = latency;
+            notifyAll();
+        }
+
+        synchronized void awaitAll(long timeoutMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            long remaining;
+            while (mLatencyCount < expected()
+                   && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                wait(remaining);
+            }
+        }
+
+        synchronized long[] latencies() {
+            long[] latencies = Arrays.copyOf(mLatencies, mLatencyCount);
+            Arrays.sort(latencies);
+            return latencies;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2017  Dennis Dast
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.ddast.xandra;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Encoding of all mouse movements of a recorded trace as legacy mouse frames and as compact
+ * motion frames.  One operation encodes the whole trace and returns the number of bytes.
+ * Runs in the benchmark directory, so the trace path is relative to it.
+ */
+@State(Scope.Thread)
+public class MotionEncodingBenchmark {
+    @Param({"../app/src/test/resources/traces/synthetic.trace"})
+    public String trace;
+
+    private final byte[] mBuffer = new byte[FrameCodec.MAX_FRAME_SIZE];
+    private int[] mDistancesX;
+    private int[] mDistancesY;
+
+    @Setup
+    public void setup() throws IOException {
+        TraceReplayer replayer = new TraceReplayer();
+        replayer.setCompactMotion(true);
+        byte[] frames = replayer.replay(new ByteArrayInputStream(
+                Frames.readFile(new File(trace))));
+        List<String> decoded = Frames.decode(frames);
+        mDistancesX = new int[replayer.getMotionFrames()];
+        mDistancesY = new int[replayer.getMotionFrames()];
+        int i = 0;
+        for (String frame : decoded) {
+            if (frame.startsWith("mouse ")) {
+                String[] parts = frame.split(" ");
+                mDistancesX[i] = Integer.parseInt(parts[1]);
+                mDistancesY[i] = Integer.parseInt(parts[2]);
+                ++i;
+            }
+        }
+    }
+
+    @Benchmark
+    public int legacyFrames() {
+        int bytes = 0;
+        for (int i = 0; i < mDistancesX.length; ++i) {
+            int distanceX = mDistancesX[i];
+            int distanceY = mDistancesY[i];
+            do {
+                int x = saturate(distanceX);
+                int y = saturate(distanceY);
+                bytes += FrameCodec.encodeMouse(mBuffer, 0, x, y);
+                distanceX -= x;
+                distanceY -= y;
+            } while (distanceX != 0 || distanceY != 0);
+        }
+        return bytes;
+    }
+
+    @Benchmark
+    public int compactFrames() {
+        int bytes = 0;
+        for (int i = 0; i < mDistancesX.length; ++i) {
+            bytes += FrameCodec.encodeMotion(mBuffer, 0, mDistancesX[i], mDistancesY[i]);
+        }
+        return bytes;
+    }
+
+    private static int saturate(int distance) {
+        return Math.max(-FrameCodec.MAX_MOUSE_DELTA,
+                        Math.min(FrameCodec.MAX_MOUSE_DELTA, distance));
+    }
+}